@@ -0,0 +1,195 @@
+package net.ddns.arnautovevgeny.pricelist;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+// Reproducible products and csv files, the same parameters always give the same data
+public class Dataset implements AutoCloseable {
+    public enum IdSkew {
+        UNIFORM,
+        // Most of the rows belong to a small set of ids, so limitById works hard
+        HOT
+    }
+
+    public enum PriceDistribution {
+        UNIFORM,
+        // Cheapest products come first, so the cutoff gets tight at once
+        ASCENDING,
+        // Every next product is cheaper than all before, the worst case for the cutoff
+        DESCENDING
+    }
+
+    public enum FileSizes {
+        EQUAL,
+        // Every tenth file is much bigger than the rest, so some producers keep reading while others are idle
+        MIXED
+    }
+
+    private static final long seed = 20191107L;
+    private static final int minPriceInCents = 1;
+    private static final int maxPriceInCents = 9999999;
+    private static final int hotIdsPercent = 1;
+    private static final int hotRowsPercent = 80;
+    private static final int bigFileEvery = 10;
+    private static final int bigFileWeight = 20;
+
+    private static final String[] conditions = {"new", "used", "refurbished"};
+    private static final String[] states = {"ok", "damaged", "repaired"};
+    private static final String[] headers = {"product ID", "Name", "Condition", "State", "Price"};
+    private static final String[] extraValues = {"4006381333931", "supplier warehouse 17", "\"12, Main street\"", "EUR", "2019-11-07T10:15:30", "", "0.25"};
+    private static final String malformedPrice = "n/a";
+
+    private final Product[] products;
+    private Path directory;
+    private String[] files;
+
+    private Dataset(Product[] products) {
+        this.products = products;
+    }
+
+    public static Dataset generate(int productsCount, IdSkew idSkew, PriceDistribution priceDistribution) {
+        Random random = new Random(seed);
+
+        int idsCount = Math.max(1, productsCount / 10);
+        int hotIdsCount = Math.max(1, idsCount * hotIdsPercent / 100);
+
+        int[] pricesInCents = new int[productsCount];
+        for (int i = 0; i < productsCount; i++)
+            pricesInCents[i] = minPriceInCents + random.nextInt(maxPriceInCents - minPriceInCents + 1);
+
+        if (priceDistribution != PriceDistribution.UNIFORM)
+            Arrays.sort(pricesInCents);
+
+        Product[] products = new Product[productsCount];
+        for (int i = 0; i < productsCount; i++) {
+            boolean hot = idSkew == IdSkew.HOT && random.nextInt(100) < hotRowsPercent;
+            int id = 1 + random.nextInt(hot ? hotIdsCount : idsCount);
+
+            int priceInCents = priceDistribution == PriceDistribution.DESCENDING ? pricesInCents[productsCount - 1 - i] : pricesInCents[i];
+
+            products[i] = new Product(id, "product " + id,
+                    conditions[random.nextInt(conditions.length)],
+                    states[random.nextInt(states.length)],
+                    priceInCents);
+        }
+
+        return new Dataset(products);
+    }
+
+    public Dataset writeFiles(int filesCount, char delimiter) throws IOException {
+        return this.writeFiles(filesCount, FileSizes.EQUAL, delimiter);
+    }
+
+    public Dataset writeFiles(int filesCount, FileSizes fileSizes, char delimiter) throws IOException {
+        return this.writeFiles(filesCount, fileSizes, delimiter, 0, false);
+    }
+
+    public Dataset writeFiles(int filesCount, FileSizes fileSizes, char delimiter, int extraColumns, boolean withHeader) throws IOException {
+        return this.writeFiles(filesCount, fileSizes, delimiter, extraColumns, withHeader, 0);
+    }
+
+    // Rows are dealt round-robin by the weight of a file, so every file keeps the price distribution
+    // Extra columns go before the columns of a product, like in supplier files which carry a lot more than we need
+    // Given percent of rows has a price which can't be parsed, like in a dirty feed
+    public Dataset writeFiles(int filesCount, FileSizes fileSizes, char delimiter, int extraColumns, boolean withHeader, int malformedPercent) throws IOException {
+        int[] fileOfTurn = IntStream.range(0, filesCount)
+                .flatMap(file -> IntStream.range(0, fileSizes == FileSizes.MIXED && file % bigFileEvery == 0 ? bigFileWeight : 1).map(turn -> file))
+                .toArray();
+
+        this.directory = Files.createTempDirectory("priceListBenchmark");
+        this.files = new String[filesCount];
+
+        BufferedWriter[] writers = new BufferedWriter[filesCount];
+        try {
+            for (int i = 0; i < filesCount; i++) {
+                Path path = this.directory.resolve("products" + i + ".csv");
+                this.files[i] = path.toString();
+                writers[i] = Files.newBufferedWriter(path, StandardCharsets.UTF_8);
+
+                if (withHeader) {
+                    for (int column = 0; column < extraColumns; column++) {
+                        writers[i].write("extra " + column);
+                        writers[i].write(delimiter);
+                    }
+                    writers[i].write(String.join(String.valueOf(delimiter), headers));
+                    writers[i].newLine();
+                }
+            }
+
+            for (int i = 0; i < this.products.length; i++) {
+                Product product = this.products[i];
+
+                BufferedWriter writer = writers[fileOfTurn[i % fileOfTurn.length]];
+                for (int column = 0; column < extraColumns; column++) {
+                    writer.write(extraValues[column % extraValues.length]);
+                    writer.write(delimiter);
+                }
+                writer.write(Integer.toString(product.getId()));
+                writer.write(delimiter);
+                writer.write(product.getName());
+                writer.write(delimiter);
+                writer.write(product.getCondition());
+                writer.write(delimiter);
+                writer.write(product.getState());
+                writer.write(delimiter);
+                writer.write(i % 100 < malformedPercent ? malformedPrice : Price.toString(product.getPriceInCents()));
+                writer.newLine();
+            }
+        }
+        finally {
+            for (BufferedWriter writer : writers) {
+                if (writer != null)
+                    writer.close();
+            }
+        }
+
+        return this;
+    }
+
+    // Same round-robin dealing in ResultOutputBinary format, rows keep their generated order
+    public Dataset writeBinaryFiles(int filesCount) throws IOException {
+        this.directory = Files.createTempDirectory("priceListBenchmark");
+        this.files = new String[filesCount];
+
+        for (int i = 0; i < filesCount; i++) {
+            List<Product> fileProducts = new ArrayList<>(this.products.length / filesCount + 1);
+            for (int j = i; j < this.products.length; j += filesCount)
+                fileProducts.add(this.products[j]);
+
+            Path path = this.directory.resolve("products" + i + ResultOutputBinary.extension);
+            this.files[i] = path.toString();
+            new ResultOutputBinary(path).output(fileProducts);
+        }
+
+        return this;
+    }
+
+    public Product[] getProducts() {
+        return this.products;
+    }
+
+    public String[] getFiles() {
+        return this.files;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.directory == null)
+            return;
+
+        try (Stream<Path> paths = Files.walk(this.directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator)
+                Files.deleteIfExists(path);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package net.ddns.arnautovevgeny.pricelist;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class EnginesBenchmark {
+    private static final char delimiter = ',';
+
+    @Param({"1000000"})
+    private int productsCount;
+
+    @Param({"100"})
+    private int filesCount;
+
+    @Param({"UNIFORM", "HOT"})
+    private Dataset.IdSkew idSkew;
+
+    @Param({"UNIFORM", "ASCENDING", "DESCENDING"})
+    private Dataset.PriceDistribution priceDistribution;
+
+    @Param({"EQUAL", "MIXED"})
+    private Dataset.FileSizes fileSizes;
+
+    private Dataset dataset;
+    private Path output;
+
+    @Setup(Level.Trial)
+    public void createFiles() throws IOException {
+        this.dataset = Dataset.generate(this.productsCount, this.idSkew, this.priceDistribution).writeFiles(this.filesCount, this.fileSizes, delimiter);
+        this.output = Files.createTempFile("priceListBenchmark", ".csv");
+    }
+
+    @TearDown(Level.Trial)
+    public void removeFiles() throws IOException {
+        this.dataset.close();
+        Files.deleteIfExists(this.output);
+    }
+
+    private PriceList priceList() {
+        return new PriceList(this.output, false, delimiter);
+    }
+
+    @Benchmark
+    public Collection<Product> streamAPI() {
+        PriceList priceList = this.priceList();
+        priceList.processViaStreamAPI(this.dataset.getFiles());
+        return priceList.getProducts();
+    }
+
+    @Benchmark
+    public Collection<Product> streamCollector() {
+        PriceList priceList = this.priceList();
+        priceList.processViaStreamCollector(this.dataset.getFiles());
+        return priceList.getProducts();
+    }
+
+    // Only ASCENDING files are sorted and known to be, they are read only as far as the result needs,
+    // the rest are checked, noticed on the way and fall back to producer-consumer
+    @Benchmark
+    public Collection<Product> sortedMerge() throws InterruptedException {
+        PriceList priceList = this.priceList();
+        priceList.processViaSortedMerge(this.dataset.getFiles(), this.priceDistribution == Dataset.PriceDistribution.ASCENDING);
+        return priceList.getProducts();
+    }
+
+    @Benchmark
+    public Collection<Product> producerConsumer() throws InterruptedException {
+        PriceList priceList = this.priceList();
+        priceList.processViaProducerConsumer(this.dataset.getFiles(), false);
+        return priceList.getProducts();
+    }
+
+    @Benchmark
+    public Collection<Product> producerConsumerLoadBalancer() throws InterruptedException {
+        PriceList priceList = this.priceList();
+        priceList.processViaProducerConsumer(this.dataset.getFiles(), true);
+        return priceList.getProducts();
+    }
+
+    @Benchmark
+    public Collection<Product> producerConsumerSharded() throws InterruptedException {
+        PriceList priceList = this.priceList();
+        priceList.processViaProducerConsumer(this.dataset.getFiles(), false, TasksBroker.Option.SHARDED_STORAGE);
+        return priceList.getProducts();
+    }
+
+    @Benchmark
+    public Collection<Product> producerConsumerMappedFiles() throws InterruptedException {
+        PriceList priceList = this.priceList();
+        priceList.processViaProducerConsumer(this.dataset.getFiles(), false, TasksBroker.Option.MAPPED_FILES);
+        return priceList.getProducts();
+    }
+
+    @Benchmark
+    public Collection<Product> producerConsumerRingHandoff() throws InterruptedException {
+        PriceList priceList = this.priceList();
+        priceList.processViaProducerConsumer(this.dataset.getFiles(), false, TasksBroker.Option.RING_HANDOFF);
+        return priceList.getProducts();
+    }
+}
@@ -0,0 +1,111 @@
+package net.ddns.arnautovevgeny.pricelist;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+// Parsing alone, all files are read by a single thread
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FileHandleBenchmark {
+    private static final char delimiter = ',';
+    private static final int chunkSize = 1000;
+
+    public enum Reader {
+        CSV,
+        MAPPED,
+        BINARY
+    }
+
+    public enum Cutoff {
+        // Every row becomes a product
+        NONE,
+        // Only the cheapest percent of rows becomes products
+        TIGHT
+    }
+
+    @Param({"1000000"})
+    private int productsCount;
+
+    @Param({"10"})
+    private int filesCount;
+
+    @Param({"CSV", "MAPPED", "BINARY"})
+    private Reader reader;
+
+    @Param({"NONE", "TIGHT"})
+    private Cutoff cutoff;
+
+    @Param({"UNIFORM"})
+    private Dataset.PriceDistribution priceDistribution;
+
+    // Columns besides the product ones, csv readers only
+    @Param({"0"})
+    private int extraColumns;
+
+    // Columns are found by names in the header, csv readers only
+    @Param({"false"})
+    private boolean headers;
+
+    // Rows with a price which can't be parsed, csv readers only
+    @Param({"0"})
+    private int malformedPercent;
+
+    private Dataset dataset;
+    private PriceCutoff priceCutoff;
+    private CsvSchema csvSchema;
+
+    @Setup(Level.Trial)
+    public void createFiles() throws IOException {
+        Dataset generated = Dataset.generate(this.productsCount, Dataset.IdSkew.UNIFORM, this.priceDistribution);
+        this.dataset = this.reader == Reader.BINARY ? generated.writeBinaryFiles(this.filesCount) : generated.writeFiles(this.filesCount, Dataset.FileSizes.EQUAL, delimiter, this.extraColumns, this.headers, this.malformedPercent);
+
+        this.csvSchema = this.headers ? CsvSchema.byHeader : CsvSchema.byPositions(this.extraColumns, this.extraColumns + 1, this.extraColumns + 2, this.extraColumns + 3, this.extraColumns + 4);
+
+        this.priceCutoff = new PriceCutoff();
+        if (this.cutoff == Cutoff.TIGHT) {
+            int[] prices = new int[this.productsCount];
+            Product[] products = this.dataset.getProducts();
+            for (int i = 0; i < prices.length; i++)
+                prices[i] = products[i].getPriceInCents();
+
+            Arrays.sort(prices);
+            this.priceCutoff.tighten(prices[prices.length / 100]);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void removeFiles() throws IOException {
+        this.dataset.close();
+    }
+
+    @Benchmark
+    public int parse() {
+        int parsed = 0;
+        ProductDictionary dictionary = new ProductDictionary();
+        for (String file : this.dataset.getFiles()) {
+            FileHandle fileHandle;
+            if (this.reader == Reader.BINARY)
+                fileHandle = new FileHandleBinary(chunkSize, this.priceCutoff, dictionary);
+            else if (this.reader == Reader.MAPPED)
+                fileHandle = new FileHandleMapped(this.headers, delimiter, this.csvSchema, chunkSize, this.priceCutoff, dictionary);
+            else
+                fileHandle = new FileHandleCsv(this.headers, delimiter, this.csvSchema, chunkSize, this.priceCutoff, dictionary);
+            fileHandle.setFileName(file);
+
+            Optional<List<Product>> products;
+            while ((products = fileHandle.getProducts()).isPresent())
+                parsed += products.get().size();
+        }
+
+        return parsed;
+    }
+}
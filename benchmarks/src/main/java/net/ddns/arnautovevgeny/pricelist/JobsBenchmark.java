@@ -0,0 +1,100 @@
+package net.ddns.arnautovevgeny.pricelist;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+// Same files split between many jobs running at once, total time of all of them
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class JobsBenchmark {
+    private static final char delimiter = ',';
+
+    @Param({"1000000"})
+    private int productsCount;
+
+    @Param({"64"})
+    private int filesCount;
+
+    @Param({"1", "4", "16"})
+    private int jobsCount;
+
+    private Dataset dataset;
+    private String[][] jobsFiles;
+    private Path output;
+    private JobScheduler jobScheduler;
+
+    @Setup(Level.Trial)
+    public void createFiles() throws IOException {
+        this.dataset = Dataset.generate(this.productsCount, Dataset.IdSkew.UNIFORM, Dataset.PriceDistribution.UNIFORM).writeFiles(this.filesCount, delimiter);
+        this.output = Files.createTempFile("priceListBenchmark", ".csv");
+
+        String[] files = this.dataset.getFiles();
+        this.jobsFiles = new String[this.jobsCount][];
+        for (int job = 0; job < this.jobsCount; job++)
+            this.jobsFiles[job] = Arrays.copyOfRange(files, job * files.length / this.jobsCount, (job + 1) * files.length / this.jobsCount);
+
+        this.jobScheduler = new JobScheduler();
+    }
+
+    @TearDown(Level.Trial)
+    public void removeFiles() throws IOException {
+        this.jobScheduler.close();
+        this.dataset.close();
+        Files.deleteIfExists(this.output);
+    }
+
+    @Benchmark
+    public List<Collection<Product>> sharedScheduler() throws InterruptedException, ExecutionException {
+        List<Future<Collection<Product>>> jobs = new ArrayList<>(this.jobsCount);
+        for (String[] files : this.jobsFiles)
+            jobs.add(this.jobScheduler.submit(files, false, delimiter));
+
+        List<Collection<Product>> results = new ArrayList<>(this.jobsCount);
+        for (Future<Collection<Product>> job : jobs)
+            results.add(job.get());
+        return results;
+    }
+
+    // Every job has a broker with a pool of its own, like separate runs of today
+    @Benchmark
+    public List<Collection<Product>> brokerPerJob() throws InterruptedException {
+        List<PriceList> priceLists = new ArrayList<>(this.jobsCount);
+        List<Thread> jobs = new ArrayList<>(this.jobsCount);
+        for (String[] files : this.jobsFiles) {
+            PriceList priceList = new PriceList(this.output, false, delimiter);
+            priceLists.add(priceList);
+
+            Thread job = new Thread(() -> {
+                try {
+                    priceList.processViaProducerConsumer(files, false);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            jobs.add(job);
+            job.start();
+        }
+
+        List<Collection<Product>> results = new ArrayList<>(this.jobsCount);
+        for (int i = 0; i < this.jobsCount; i++) {
+            jobs.get(i).join();
+            results.add(priceLists.get(i).getProducts());
+        }
+        return results;
+    }
+}
@@ -0,0 +1,92 @@
+package net.ddns.arnautovevgeny.pricelist;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+// Storage alone, products are already in memory and split between the threads
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ResultStorageBenchmark {
+    public enum Storage {
+        CONCURRENT,
+        SHARDED
+    }
+
+    @Param({"1000000"})
+    private int productsCount;
+
+    @Param({"1", "2", "4", "8"})
+    private int threads;
+
+    @Param({"CONCURRENT", "SHARDED"})
+    private Storage storage;
+
+    @Param({"UNIFORM", "HOT"})
+    private Dataset.IdSkew idSkew;
+
+    @Param({"UNIFORM", "DESCENDING"})
+    private Dataset.PriceDistribution priceDistribution;
+
+    private ExecutorService executorService;
+    private List<List<Product>> productsByThread;
+
+    @Setup(Level.Trial)
+    public void prepareProducts() {
+        Product[] products = Dataset.generate(this.productsCount, this.idSkew, this.priceDistribution).getProducts();
+
+        // Sharded storage needs every shard to be owned by exactly one thread
+        ResultStorageSharded router = new ResultStorageSharded(this.threads);
+
+        this.productsByThread = new ArrayList<>(this.threads);
+        for (int i = 0; i < this.threads; i++)
+            this.productsByThread.add(new ArrayList<>(this.productsCount / this.threads + 1));
+
+        for (int i = 0; i < products.length; i++) {
+            int thread = this.storage == Storage.SHARDED ? router.shardOf(products[i]) : i % this.threads;
+            this.productsByThread.get(thread).add(products[i]);
+        }
+
+        this.executorService = Executors.newFixedThreadPool(this.threads);
+    }
+
+    @TearDown(Level.Trial)
+    public void stopThreads() {
+        this.executorService.shutdownNow();
+    }
+
+    @Benchmark
+    public Collection<Product> handle() throws Exception {
+        ResultStorage resultStorage = this.storage == Storage.SHARDED ? new ResultStorageSharded(this.threads) : new ResultStorageConcurrent();
+
+        List<Future<?>> futures = new ArrayList<>(this.threads);
+        for (int i = 0; i < this.threads; i++) {
+            int thread = i;
+            List<Product> products = this.productsByThread.get(thread);
+
+            futures.add(this.executorService.submit(() -> {
+                if (resultStorage instanceof ResultStorageSharded)
+                    ((ResultStorageSharded) resultStorage).handle(thread, products);
+                else {
+                    for (Product product : products)
+                        resultStorage.handle(product);
+                }
+            }));
+        }
+
+        for (Future<?> future : futures)
+            future.get();
+
+        return resultStorage.getResult();
+    }
+}
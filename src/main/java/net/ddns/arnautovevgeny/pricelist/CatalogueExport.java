@@ -0,0 +1,356 @@
+package net.ddns.arnautovevgeny.pricelist;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+// The whole catalogue ordered by price with the per-id limit applied, it doesn't have to fit into the heap
+// Sorted runs are built in memory within the budget and spilled, then merged in two phases:
+// by id, where products beyond the per-id limit are dropped, and by price straight into the output
+@Slf4j
+public class CatalogueExport implements AutoCloseable {
+    private static class Run {
+        private final Path path;
+        private final long count;
+
+        private Run(Path path, long count) {
+            this.path = path;
+            this.count = count;
+        }
+    }
+
+    private static class RunCursor implements Comparable<RunCursor> {
+        private final DataInputStream input;
+        private final Comparator<Product> comparator;
+        private long remaining;
+        private Product head;
+
+        private RunCursor(Run run, Comparator<Product> comparator) throws IOException {
+            this.input = new DataInputStream(new BufferedInputStream(Files.newInputStream(run.path), runBufferBytes));
+            this.comparator = comparator;
+            this.remaining = run.count;
+        }
+
+        // False when the run is over
+        private boolean advance() throws IOException {
+            if (this.remaining == 0) {
+                this.input.close();
+                return false;
+            }
+
+            this.remaining--;
+            this.head = ResultState.readProduct(this.input);
+            return true;
+        }
+
+        @Override
+        public int compareTo(RunCursor o) {
+            return this.comparator.compare(this.head, o.head);
+        }
+    }
+
+    private static class RunsMerger implements Iterator<Product>, Closeable {
+        private final Queue<RunCursor> heads;
+
+        private RunsMerger(List<Run> runs, Comparator<Product> comparator) throws IOException {
+            this.heads = new PriorityQueue<>(Math.max(1, runs.size()));
+            for (Run run : runs) {
+                RunCursor cursor = new RunCursor(run, comparator);
+                if (cursor.advance())
+                    this.heads.offer(cursor);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !this.heads.isEmpty();
+        }
+
+        @Override
+        public Product next() {
+            RunCursor cursor = this.heads.poll();
+            if (cursor == null)
+                throw new NoSuchElementException();
+
+            Product product = cursor.head;
+            try {
+                if (cursor.advance())
+                    this.heads.offer(cursor);
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return product;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (RunCursor cursor : this.heads)
+                cursor.input.close();
+            this.heads.clear();
+        }
+    }
+
+    // Products go sorted by id, so every id comes in a row and its cheapest products come first
+    // Same products are taken once, as the result storage does
+    private static class IdLimit {
+        private Product previous;
+        private int sameId;
+
+        private boolean admits(Product product) {
+            if (this.previous != null && this.previous.getId() == product.getId()) {
+                if (this.previous.compareTo(product) == 0)
+                    return false;
+
+                this.sameId++;
+            }
+            else
+                this.sameId = 1;
+
+            this.previous = product;
+            return this.sameId <= ResultStorage.limitById;
+        }
+    }
+
+    // Sorts what it was given within its share of the budget and spills it into a run
+    private class RunsBuilder {
+        private final Comparator<Product> comparator;
+        private final boolean limitedById;
+        private final long budgetBytes;
+        private final List<Product> buffer;
+        private final List<Run> runs;
+        private long bufferBytes;
+
+        {
+            buffer = new ArrayList<>();
+            runs = new ArrayList<>();
+        }
+
+        private RunsBuilder(Comparator<Product> comparator, boolean limitedById, long budgetBytes) {
+            this.comparator = comparator;
+            this.limitedById = limitedById;
+            this.budgetBytes = budgetBytes;
+        }
+
+        private void add(Product product) throws IOException {
+            this.buffer.add(product);
+            this.bufferBytes += sizeOf(product);
+            if (this.bufferBytes >= this.budgetBytes)
+                this.spill();
+        }
+
+        private void spill() throws IOException {
+            if (this.buffer.isEmpty())
+                return;
+
+            // Sorted in place, so no copy of the buffer is made outside of the budget
+            this.buffer.sort(this.comparator);
+
+            Path path = newRunPath();
+            long count = 0;
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), runBufferBytes))) {
+                IdLimit idLimit = new IdLimit();
+                for (Product product : this.buffer) {
+                    if (this.limitedById && !idLimit.admits(product))
+                        continue;
+
+                    ResultState.writeProduct(output, product);
+                    count++;
+                }
+            }
+            this.buffer.clear();
+            this.bufferBytes = 0;
+
+            this.runs.add(new Run(path, count));
+            log.debug("Run {} of {} products was spilled", path.getFileName(), count);
+        }
+    }
+
+    private static final Comparator<Product> byId = Comparator.comparingInt(Product::getId).thenComparing(Comparator.naturalOrder());
+    private static final Comparator<Product> byPrice = Comparator.naturalOrder();
+
+    // Heap footprint of a product with its three strings, rough but on the safe side
+    private static final int productOverheadBytes = 176;
+    private static final int runBufferBytes = 1 << 16;
+    private static final int maxFanIn = 256;
+    private static final int chunkSize = 1000;
+
+    private final String[] csvFiles;
+    private final boolean containsHeaders;
+    private final char delimiter;
+    private final long memoryBudgetBytes;
+    private final int workers;
+    private final int fanIn;
+    private final Path directory;
+    private final AtomicInteger runsCreated;
+
+    {
+        runsCreated = new AtomicInteger();
+    }
+
+    public CatalogueExport(String[] csvFiles, boolean containsHeaders, char delimiter, long memoryBudgetBytes, Path spillDirectory) throws IOException {
+        this.csvFiles = csvFiles;
+        this.containsHeaders = containsHeaders;
+        this.delimiter = delimiter;
+        this.memoryBudgetBytes = memoryBudgetBytes;
+        this.workers = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), csvFiles.length));
+
+        // Buffers of merged runs are taken from the budget as well, the rest of it is for sorting
+        this.fanIn = (int) Math.max(2, Math.min(maxFanIn, memoryBudgetBytes / 2 / runBufferBytes));
+        this.directory = Files.createTempDirectory(Files.createDirectories(spillDirectory), "catalogue");
+    }
+
+    private static long sizeOf(Product product) {
+        return productOverheadBytes + product.getName().length() + product.getCondition().length() + product.getState().length();
+    }
+
+    private Path newRunPath() {
+        return this.directory.resolve("run" + this.runsCreated.incrementAndGet() + ".bin");
+    }
+
+    // Every worker takes files one by one and keeps its own buffer of a share of the budget
+    private List<Run> buildRunsById() throws IOException, InterruptedException {
+        AtomicInteger nextFile = new AtomicInteger();
+        PriceCutoff noCutoff = new PriceCutoff();
+        ProductDictionary dictionary = new ProductDictionary();
+
+        ExecutorService workersService = Executors.newFixedThreadPool(this.workers);
+        try {
+            List<Future<List<Run>>> workersRuns = new ArrayList<>(this.workers);
+            for (int i = 0; i < this.workers; i++) {
+                workersRuns.add(workersService.submit(() -> {
+                    RunsBuilder runsBuilder = new RunsBuilder(byId, true, this.memoryBudgetBytes / this.workers);
+                    FileHandle fileHandle = new FileHandleCsv(this.containsHeaders, this.delimiter, chunkSize, noCutoff, dictionary);
+
+                    int file;
+                    while ((file = nextFile.getAndIncrement()) < this.csvFiles.length) {
+                        fileHandle.setFileName(this.csvFiles[file]);
+
+                        Optional<List<Product>> products;
+                        while ((products = fileHandle.getProducts()).isPresent()) {
+                            for (Product product : products.get())
+                                runsBuilder.add(product);
+                        }
+                        fileHandle.reset();
+                    }
+
+                    runsBuilder.spill();
+                    return runsBuilder.runs;
+                }));
+            }
+
+            List<Run> runs = new ArrayList<>();
+            for (Future<List<Run>> workerRuns : workersRuns) {
+                try {
+                    runs.addAll(workerRuns.get());
+                }
+                catch (ExecutionException e) {
+                    throw new IOException("Sorted runs can't be built", e.getCause());
+                }
+            }
+            return runs;
+        }
+        finally {
+            workersService.shutdownNow();
+        }
+    }
+
+    // Too many runs are merged in groups first, so there are never more open runs than the fan-in
+    private List<Run> reduceRuns(List<Run> runs, Comparator<Product> comparator) throws IOException {
+        while (runs.size() > this.fanIn) {
+            List<Run> reduced = new ArrayList<>(runs.size() / this.fanIn + 1);
+            for (int from = 0; from < runs.size(); from += this.fanIn) {
+                List<Run> group = runs.subList(from, Math.min(from + this.fanIn, runs.size()));
+                if (group.size() == 1) {
+                    reduced.add(group.get(0));
+                    continue;
+                }
+
+                Path path = this.newRunPath();
+                long count = 0;
+                try (RunsMerger merger = new RunsMerger(group, comparator);
+                     DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), runBufferBytes))) {
+                    while (merger.hasNext()) {
+                        ResultState.writeProduct(output, merger.next());
+                        count++;
+                    }
+                }
+
+                for (Run run : group)
+                    Files.delete(run.path);
+                reduced.add(new Run(path, count));
+            }
+
+            log.info("{} runs were merged into {}", runs.size(), reduced.size());
+            runs = reduced;
+        }
+
+        return runs;
+    }
+
+    // Per-id limit is applied to all runs together, survivors are sorted by price into new runs
+    private List<Run> buildRunsByPrice(List<Run> runsById) throws IOException {
+        RunsBuilder runsBuilder = new RunsBuilder(byPrice, false, this.memoryBudgetBytes / 2);
+
+        List<Run> reducedById = this.reduceRuns(runsById, byId);
+        try (RunsMerger merger = new RunsMerger(reducedById, byId)) {
+            IdLimit idLimit = new IdLimit();
+            while (merger.hasNext()) {
+                Product product = merger.next();
+                if (idLimit.admits(product))
+                    runsBuilder.add(product);
+            }
+        }
+        runsBuilder.spill();
+
+        for (Run run : reducedById)
+            Files.delete(run.path);
+
+        return runsBuilder.runs;
+    }
+
+    // Returns the count of exported products
+    public long export(ResultOutput resultOutput) throws IOException, InterruptedException {
+        List<Run> runsById = this.buildRunsById();
+        log.info("{} files were sorted into {} runs by id", this.csvFiles.length, runsById.size());
+
+        List<Run> runsByPrice = this.reduceRuns(this.buildRunsByPrice(runsById), byPrice);
+
+        long count = runsByPrice.stream().mapToLong(run -> run.count).sum();
+        log.info("{} products in {} runs by price are merged into the output", count, runsByPrice.size());
+
+        try (RunsMerger merger = new RunsMerger(runsByPrice, byPrice)) {
+            // Products are handed to the output one by one as they are merged, nothing is collected
+            resultOutput.output(new AbstractCollection<>() {
+                @Override
+                public Iterator<Product> iterator() {
+                    return merger;
+                }
+
+                @Override
+                public int size() {
+                    return (int) Math.min(count, Integer.MAX_VALUE);
+                }
+            });
+        }
+        catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try (Stream<Path> spilled = Files.list(this.directory)) {
+            spilled.forEach(path -> path.toFile().delete());
+        }
+        Files.deleteIfExists(this.directory);
+    }
+}
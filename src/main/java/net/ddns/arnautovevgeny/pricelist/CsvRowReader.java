@@ -0,0 +1,311 @@
+package net.ddns.arnautovevgeny.pricelist;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Rows of a csv file through a reusable buffer, only columns of the projection are located in a row
+// The rest of columns are stepped over without allocating anything, quoted delimiters and line breaks included
+// Empty rows are skipped, numbers are checked without exceptions, a malformed row is left to the caller
+class CsvRowReader implements Closeable {
+    private static final int defaultBufferSize = 1 << 16;
+    private static final byte quote = '"';
+
+    private final byte delimiter;
+
+    private InputStream input;
+    private byte[] buffer;
+    private int position;
+    private int limit;
+    private boolean over;
+
+    // Current row without its line break, rows are counted from the first one including the header and empty ones
+    private int rowStart;
+    private int rowEnd;
+    private long rowNumber;
+
+    private CsvSchema.Projection projection;
+
+    // Bounds of the columns of the current row which are kept, all of them while the header is read
+    private int[] columnStart;
+    private int[] columnEnd;
+    private boolean[] columnQuoted;
+    private int columnsKept;
+    private boolean keepAll;
+    private byte[] scratch;
+
+    {
+        scratch = new byte[256];
+    }
+
+    // Buffer grows beyond the given size only for a row which doesn't fit into it
+    CsvRowReader(char delimiter, int bufferSize) {
+        this.delimiter = delimiterByte(delimiter);
+        this.buffer = new byte[bufferSize];
+    }
+
+    CsvRowReader(char delimiter) {
+        this(delimiter, defaultBufferSize);
+    }
+
+    // Rows are split by bytes, a character beyond ASCII would be cut to another byte or to a part of a multibyte one
+    static byte delimiterByte(char delimiter) {
+        if (delimiter > 0x7F)
+            throw new IllegalArgumentException("Delimiter " + delimiter + " has to be an ASCII character");
+
+        return (byte) delimiter;
+    }
+
+    void open(InputStream input) {
+        this.input = input;
+        this.position = 0;
+        this.limit = 0;
+        this.over = false;
+        this.rowNumber = 0;
+        this.projection = null;
+    }
+
+    // Null when the file is empty
+    List<String> readHeader() throws IOException {
+        this.allocateColumns(CsvSchema.fieldsCount);
+        this.keepAll = true;
+        try {
+            if (!this.nextLine())
+                return null;
+        }
+        finally {
+            this.keepAll = false;
+        }
+
+        List<String> header = new ArrayList<>(this.columnsKept);
+        for (int column = 0; column < this.columnsKept; column++)
+            header.add(this.decodeColumn(column, null));
+
+        return header;
+    }
+
+    void project(CsvSchema.Projection projection) {
+        this.projection = projection;
+        this.allocateColumns(projection.lastColumn() + 1);
+    }
+
+    // False when the file is over
+    boolean nextRow() throws IOException {
+        return this.nextLine();
+    }
+
+    // Fields of a row which is shorter than the projection can't be read
+    boolean isComplete() {
+        return this.columnsKept > this.projection.lastColumn();
+    }
+
+    long getRowNumber() {
+        return this.rowNumber;
+    }
+
+    void reject(RejectedRows.Batch batch, String fileName, RejectedRows.Reason reason) {
+        batch.add(fileName, this.rowNumber, reason, this.buffer, this.rowStart, this.rowEnd);
+    }
+
+    Product product(int id, int priceInCents, ProductDictionary dictionary) {
+        return new Product(id,
+                this.decode(CsvSchema.nameField, dictionary.names),
+                this.decode(CsvSchema.conditionField, dictionary.conditions),
+                this.decode(CsvSchema.stateField, dictionary.states),
+                priceInCents);
+    }
+
+    private void allocateColumns(int count) {
+        this.columnStart = new int[count];
+        this.columnEnd = new int[count];
+        this.columnQuoted = new boolean[count];
+    }
+
+    private boolean nextLine() throws IOException {
+        while (true) {
+            int next = this.tokenize(this.position);
+            if (next < 0) {
+                this.fill();
+                continue;
+            }
+
+            if (next == this.position)
+                return false;
+
+            this.rowStart = this.position;
+            this.rowNumber++;
+            boolean empty = this.columnsKept == 1 && this.columnStart[0] == this.columnEnd[0] && !this.columnQuoted[0];
+            this.position = next;
+            if (!empty)
+                return true;
+        }
+    }
+
+    // Unread bytes are moved to the beginning of the buffer
+    private void fill() throws IOException {
+        int unread = this.limit - this.position;
+        if (this.position == 0 && this.limit == this.buffer.length)
+            this.buffer = Arrays.copyOf(this.buffer, 2 * this.buffer.length);
+        else
+            System.arraycopy(this.buffer, this.position, this.buffer, 0, unread);
+
+        this.position = 0;
+        this.limit = unread;
+
+        int read = this.input.read(this.buffer, this.limit, this.buffer.length - this.limit);
+        if (read < 0)
+            this.over = true;
+        else
+            this.limit += read;
+    }
+
+    // Position right after the row which starts at the given one, or -1 when the buffer ends before the row does
+    private int tokenize(int rowStart) {
+        byte[] bytes = this.buffer;
+        int limit = this.limit;
+        int position = rowStart;
+        int column = 0;
+        this.columnsKept = 0;
+
+        if (position == limit)
+            return this.over ? position : -1;
+
+        while (true) {
+            int start;
+            int end;
+            boolean quoted = bytes[position] == quote;
+            if (quoted) {
+                start = ++position;
+                while (true) {
+                    if (position >= limit) {
+                        if (!this.over)
+                            return -1;
+                        break;
+                    }
+
+                    if (bytes[position] == quote) {
+                        if (position + 1 >= limit && !this.over)
+                            return -1;
+                        if (position + 1 >= limit || bytes[position + 1] != quote)
+                            break;
+                        position += 2;
+                    }
+                    else
+                        position++;
+                }
+                end = position;
+                while (position < limit && bytes[position] != this.delimiter && bytes[position] != '\n' && bytes[position] != '\r')
+                    position++;
+            }
+            else {
+                start = position;
+                while (position < limit && bytes[position] != this.delimiter && bytes[position] != '\n' && bytes[position] != '\r')
+                    position++;
+                end = position;
+            }
+
+            if (position >= limit && !this.over)
+                return -1;
+
+            this.keep(column++, start, end, quoted);
+
+            if (position >= limit) {
+                this.rowEnd = limit;
+                return limit;
+            }
+
+            byte current = bytes[position++];
+            if (current == this.delimiter) {
+                // A delimiter at the very end still opens an empty column
+                if (position >= limit) {
+                    if (!this.over)
+                        return -1;
+                    this.keep(column, position, position, false);
+                    this.rowEnd = limit;
+                    return limit;
+                }
+                continue;
+            }
+
+            this.rowEnd = position - 1;
+
+            if (current == '\r') {
+                if (position >= limit && !this.over)
+                    return -1;
+                if (position < limit && bytes[position] == '\n')
+                    position++;
+            }
+            return position;
+        }
+    }
+
+    private void keep(int column, int start, int end, boolean quoted) {
+        if (column >= this.columnStart.length) {
+            if (!this.keepAll)
+                return;
+
+            int count = Math.max(column + 1, 2 * this.columnStart.length);
+            this.columnStart = Arrays.copyOf(this.columnStart, count);
+            this.columnEnd = Arrays.copyOf(this.columnEnd, count);
+            this.columnQuoted = Arrays.copyOf(this.columnQuoted, count);
+        }
+
+        this.columnStart[column] = start;
+        this.columnEnd[column] = end;
+        this.columnQuoted[column] = quoted;
+        this.columnsKept = column + 1;
+    }
+
+    // Price.invalidId when there is no id
+    long getId() {
+        int column = this.projection.columnOf(CsvSchema.idField);
+        return Price.parseId(this.buffer, this.columnStart[column], this.columnEnd[column]);
+    }
+
+    // Price.invalid when there is no price
+    long getPrice() {
+        int column = this.projection.columnOf(CsvSchema.priceField);
+        return Price.parseChecked(this.buffer, this.columnStart[column], this.columnEnd[column]);
+    }
+
+    private String decode(int field, StringInterner interner) {
+        return this.decodeColumn(this.projection.columnOf(field), interner);
+    }
+
+    // Values seen before come from the interner without a new string
+    private String decodeColumn(int column, StringInterner interner) {
+        int start = this.columnStart[column];
+        int end = this.columnEnd[column];
+
+        if (this.scratch.length < end - start)
+            this.scratch = new byte[Math.max(end - start, 2 * this.scratch.length)];
+
+        int length = 0;
+        for (int i = start; i < end; i++) {
+            byte current = this.buffer[i];
+            this.scratch[length++] = current;
+
+            // Escaped quote is written twice
+            if (current == quote && this.columnQuoted[column])
+                i++;
+        }
+
+        return interner == null ? new String(this.scratch, 0, length, StandardCharsets.UTF_8) : interner.intern(this.scratch, 0, length);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.input != null) {
+            try {
+                this.input.close();
+            }
+            finally {
+                this.input = null;
+            }
+        }
+    }
+}
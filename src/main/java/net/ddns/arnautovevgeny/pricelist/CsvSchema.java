@@ -0,0 +1,122 @@
+package net.ddns.arnautovevgeny.pricelist;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+// Where the fields of a product are in a row: at fixed positions, or under the given names in the header of a file
+// Every file is resolved once into a projection, rows are tokenized only up to its last column and only its columns are kept
+public class CsvSchema {
+    // Column of every field and the field of every column up to the last needed one
+    static class Projection {
+        private final int[] columns;
+        private final int[] fieldOfColumn;
+
+        private Projection(int[] columns) {
+            this.columns = columns;
+
+            this.fieldOfColumn = new int[Arrays.stream(columns).max().orElse(0) + 1];
+            Arrays.fill(this.fieldOfColumn, -1);
+            for (int field = 0; field < columns.length; field++)
+                this.fieldOfColumn[columns[field]] = field;
+        }
+
+        int columnOf(int field) {
+            return this.columns[field];
+        }
+
+        // -1 for a column which isn't needed
+        int fieldOf(int column) {
+            return column < this.fieldOfColumn.length ? this.fieldOfColumn[column] : -1;
+        }
+
+        int lastColumn() {
+            return this.fieldOfColumn.length - 1;
+        }
+    }
+
+    static final int idField = 0;
+    static final int nameField = 1;
+    static final int conditionField = 2;
+    static final int stateField = 3;
+    static final int priceField = 4;
+    static final int fieldsCount = 5;
+
+    static final CsvSchema byIndex = byPositions(0, 1, 2, 3, 4);
+    static final CsvSchema byHeader = byNames("product ID", "Name", "Condition", "State", "Price");
+
+    // Either names to look for in a header or a projection which is the same for every file
+    private final String[] names;
+    private final Projection fixed;
+
+    private CsvSchema(String[] names, Projection fixed) {
+        this.names = names;
+        this.fixed = fixed;
+    }
+
+    public static CsvSchema byPositions(int id, int name, int condition, int state, int price) {
+        int[] columns = {id, name, condition, state, price};
+        if (Arrays.stream(columns).anyMatch(column -> column < 0) || Arrays.stream(columns).distinct().count() != fieldsCount)
+            throw new IllegalArgumentException("Positions of columns " + Arrays.toString(columns) + " have to be distinct and not negative");
+
+        return new CsvSchema(null, new Projection(columns));
+    }
+
+    public static CsvSchema byNames(String id, String name, String condition, String state, String price) {
+        String[] names = {id, name, condition, state, price};
+        if (Arrays.stream(names).distinct().count() != fieldsCount)
+            throw new IllegalArgumentException("Names of columns " + Arrays.toString(names) + " have to be distinct");
+
+        return new CsvSchema(names, null);
+    }
+
+    // Columns of id, name, condition, state and price separated by commas, either all positions or all names
+    public static CsvSchema parse(String mapping) {
+        String[] columns = Arrays.stream(mapping.split(",")).map(String::trim).toArray(String[]::new);
+        if (columns.length != fieldsCount)
+            throw new IllegalArgumentException("Mapping " + mapping + " has to name " + fieldsCount + " columns");
+
+        if (Arrays.stream(columns).allMatch(column -> column.chars().allMatch(Character::isDigit)))
+            return byPositions(Integer.parseInt(columns[0]), Integer.parseInt(columns[1]), Integer.parseInt(columns[2]), Integer.parseInt(columns[3]), Integer.parseInt(columns[4]));
+
+        return byNames(columns[0], columns[1], columns[2], columns[3], columns[4]);
+    }
+
+    static CsvSchema of(boolean containsHeaders) {
+        return containsHeaders ? byHeader : byIndex;
+    }
+
+    boolean isByNames() {
+        return this.names != null;
+    }
+
+    // Same mapping as parse takes
+    @Override
+    public String toString() {
+        if (this.names != null)
+            return String.join(",", this.names);
+
+        StringBuilder mapping = new StringBuilder();
+        for (int field = 0; field < fieldsCount; field++)
+            mapping.append(field == 0 ? "" : ",").append(this.fixed.columnOf(field));
+        return mapping.toString();
+    }
+
+    // Header is null for a file without it
+    Projection resolve(List<String> header, String fileName) throws IOException {
+        if (this.fixed != null)
+            return this.fixed;
+
+        if (header == null)
+            throw new IOException("Columns of file " + fileName + " are looked up by names, but it has no header");
+
+        int[] columns = new int[fieldsCount];
+        for (int field = 0; field < fieldsCount; field++) {
+            columns[field] = header.indexOf(this.names[field]);
+            if (columns[field] < 0)
+                throw new IOException("There is no column " + this.names[field] + " in file " + fileName);
+        }
+
+        return new Projection(columns);
+    }
+}
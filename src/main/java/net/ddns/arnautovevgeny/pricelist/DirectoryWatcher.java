@@ -0,0 +1,222 @@
+package net.ddns.arnautovevgeny.pricelist;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Stream;
+
+// Folds every new csv file of the directories into the result and keeps the output file up to date
+// A file is taken once nothing happened to it for the debounce interval, so half-written files are skipped
+// Files changed after they were taken are folded once again, products which are already there are ignored
+// One storage and one pool of readers live as long as the watcher, every batch of files is read straight into them
+@Slf4j
+public class DirectoryWatcher implements Runnable, AutoCloseable {
+    private static final String extension = ".csv";
+    private static final int chunkSize = 1000;
+
+    private final List<Path> directories;
+    private final Path output;
+    private final boolean includeHeaders;
+    private final char delimiter;
+    private final long debounceNanos;
+
+    private final ResultOutput resultOutput;
+    private final WatchService watchService;
+    private final ResultStorage resultStorage;
+    private final ProductDictionary dictionary;
+    private final ExecutorService readersService;
+    private final Metrics.Watch watch;
+    private final Map<Path, Long> pendingFiles;
+    private final Map<Path, ResultState.FileStamp> foldedFiles;
+
+    private volatile Collection<Product> products;
+    private volatile ResultSnapshot snapshot;
+    private boolean outputOutdated;
+    private long outputWritten;
+
+    {
+        pendingFiles = new HashMap<>();
+        foldedFiles = new HashMap<>();
+        resultStorage = new ResultStorageConcurrent();
+        dictionary = new ProductDictionary();
+        readersService = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+            Thread thread = new Thread(runnable, "watchReader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        watch = Metrics.get().watch(resultStorage.getPriceCutoff());
+        products = List.of();
+        snapshot = ResultSnapshot.empty();
+    }
+
+    public DirectoryWatcher(List<Path> directories, Path output, boolean includeHeaders, char delimiter, long debounceMillis) throws IOException {
+        this.directories = directories;
+        this.output = output.toAbsolutePath().normalize();
+        this.includeHeaders = includeHeaders;
+        this.delimiter = delimiter;
+        this.debounceNanos = TimeUnit.MILLISECONDS.toNanos(debounceMillis);
+        this.outputWritten = System.nanoTime() - this.debounceNanos;
+        this.resultOutput = new ResultOutputCsv(this.output, includeHeaders, delimiter);
+
+        this.watchService = FileSystems.getDefault().newWatchService();
+        for (Path directory : directories)
+            directory.register(this.watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+    }
+
+    private boolean isInput(Path file) {
+        return file.getFileName().toString().endsWith(extension) && !file.toAbsolutePath().normalize().equals(this.output);
+    }
+
+    private boolean isFolded(Path file) {
+        try {
+            return ResultState.FileStamp.of(file).equals(this.foldedFiles.get(file));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Files which aren't folded yet as they are now, at start and whenever events were lost
+    private void scanDirectories(long changed) throws IOException {
+        for (Path directory : this.directories) {
+            try (Stream<Path> files = Files.list(directory)) {
+                files.filter(Files::isRegularFile).filter(this::isInput).filter(file -> !this.isFolded(file))
+                        .forEach(file -> this.pendingFiles.putIfAbsent(file, changed));
+            }
+        }
+    }
+
+    private void collectEvents(WatchKey watchKey) throws IOException {
+        Path directory = (Path) watchKey.watchable();
+        for (WatchEvent<?> event : watchKey.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                log.warn("Some events of {} were lost, looking through the directories", directory);
+                this.scanDirectories(System.nanoTime());
+                continue;
+            }
+
+            Path file = directory.resolve((Path) event.context());
+            if (this.isInput(file))
+                this.pendingFiles.put(file, System.nanoTime());
+        }
+
+        if (!watchKey.reset())
+            log.warn("Directory {} can't be watched anymore", directory);
+    }
+
+    private List<Path> settledFiles() {
+        long now = System.nanoTime();
+
+        List<Path> settled = new ArrayList<>();
+        Iterator<Map.Entry<Path, Long>> pending = this.pendingFiles.entrySet().iterator();
+        while (pending.hasNext()) {
+            Map.Entry<Path, Long> file = pending.next();
+            if (now - file.getValue() >= this.debounceNanos) {
+                pending.remove();
+                if (Files.isRegularFile(file.getKey()) && !this.isFolded(file.getKey()))
+                    settled.add(file.getKey());
+            }
+        }
+
+        return settled;
+    }
+
+    private void fold(List<Path> files) throws InterruptedException, IOException {
+        // Stamps are taken before reading, a change made meanwhile brings the file back later
+        for (Path file : files)
+            this.foldedFiles.put(file, ResultState.FileStamp.of(file));
+
+        List<Future<?>> reads = new ArrayList<>(files.size());
+        for (Path file : files)
+            reads.add(this.readersService.submit(() -> this.read(file)));
+
+        for (Future<?> read : reads) {
+            try {
+                read.get();
+            }
+            catch (ExecutionException e) {
+                log.error("File couldn't be folded", e.getCause());
+            }
+        }
+
+        this.products = this.resultStorage.getResult();
+        this.snapshot = new ResultSnapshot(this.snapshot.getVersion() + 1, this.products);
+        this.outputOutdated = true;
+
+        log.info("{} files were folded into the result", files.size());
+    }
+
+    private void read(Path file) {
+        FileHandle fileHandle = new FileHandleCsv(this.includeHeaders, this.delimiter, chunkSize, this.resultStorage.getPriceCutoff(), this.dictionary);
+        fileHandle.setFileName(file.toString());
+
+        Optional<List<Product>> products;
+        while ((products = fileHandle.getProducts()).isPresent()) {
+            for (Product product : products.get())
+                this.resultStorage.handle(product);
+        }
+
+        Metrics.get().fileRead(fileHandle.getFileName(), fileHandle.getLines() + fileHandle.getLinesRejected(), fileHandle.getBytes());
+    }
+
+    // Readers of the output see either the previous result or the new one, never a part of it
+    private void writeOutput() throws IOException {
+        this.resultOutput.output(this.products);
+
+        this.outputOutdated = false;
+        this.outputWritten = System.nanoTime();
+        log.info("Result of {} products was written to {}", this.products.size(), this.output);
+    }
+
+    @Override
+    public void run() {
+        log.info("Watching {}, output goes to {}", this.directories, this.output);
+        try {
+            this.scanDirectories(System.nanoTime() - this.debounceNanos);
+
+            while (!Thread.currentThread().isInterrupted()) {
+                WatchKey watchKey = this.watchService.poll(this.debounceNanos / 4, TimeUnit.NANOSECONDS);
+                if (watchKey != null)
+                    this.collectEvents(watchKey);
+
+                List<Path> settled = this.settledFiles();
+                if (!settled.isEmpty())
+                    this.fold(settled);
+
+                if (this.outputOutdated && System.nanoTime() - this.outputWritten >= this.debounceNanos)
+                    this.writeOutput();
+            }
+        }
+        catch (ClosedWatchServiceException e) {
+            log.info("Watching was stopped");
+        }
+        catch (InterruptedException e) {
+            log.info("Watching was interrupted");
+            Thread.currentThread().interrupt();
+        }
+        catch (IOException e) {
+            log.error("Watching failed", e);
+        }
+    }
+
+    public Collection<Product> getProducts() {
+        return this.products;
+    }
+
+    public ResultSnapshot getSnapshot() {
+        return this.snapshot;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            this.watchService.close();
+        }
+        finally {
+            this.readersService.shutdownNow();
+            this.watch.close();
+        }
+    }
+}
@@ -1,14 +1,27 @@
-package net.ddns.arnautovevgeny.pricelist;
-
-import java.util.List;
-import java.util.Optional;
-
-public interface FileHandle {
-    FileHandle reset();
-    void setFileName(String fileName);
-    String getFileName();
-    boolean isActive();
-    int getLines();
-
-    Optional<List<Product>> getProducts();
-}
+package net.ddns.arnautovevgeny.pricelist;
+
+import java.util.List;
+import java.util.Optional;
+
+public interface FileHandle {
+    FileHandle reset();
+    void setFileName(String fileName);
+    String getFileName();
+    boolean isActive();
+    // Reading of the file broke off, what was read of it is only a part
+    boolean isFailed();
+    int getLines();
+    int getLinesRejected();
+    long getBytes();
+    void setChunkSize(int chunkSize);
+
+    Optional<List<Product>> getProducts();
+
+    // Handle which isn't read to its end gives its file back, it's inactive afterwards
+    void close();
+
+    // Rest of the file which could be read by other producers
+    default List<FileHandle> split() {
+        return List.of();
+    }
+}
@@ -0,0 +1,290 @@
+package net.ddns.arnautovevgeny.pricelist;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@Slf4j
+// Reads files written by ResultOutputBinary block by block, see there for the format
+// A block whose cheapest product is above the price cutoff isn't even read, its rows are counted as rejected
+public class FileHandleBinary implements FileHandle {
+    private volatile int chunkSize;
+    private final PriceCutoff priceCutoff;
+    private final ProductDictionary dictionary;
+
+    private volatile String filename;
+    private volatile Path path;
+    private volatile long bytes;
+    private volatile boolean active;
+    private volatile boolean failed;
+
+    private FileChannel channel;
+    private long position;
+
+    private final ByteBuffer blockHeader;
+    private ByteBuffer block;
+
+    // Current block: its strings, where every column starts, the next row and the position of its name
+    private String[] values;
+    private int rows;
+    private int row;
+    private int idsStart;
+    private int pricesStart;
+    private int conditionsStart;
+    private int statesStart;
+    private int cursor;
+
+    private final AtomicInteger linesRead;
+    private final AtomicInteger linesRejected;
+
+    {
+        linesRead = new AtomicInteger();
+        linesRejected = new AtomicInteger();
+
+        blockHeader = ByteBuffer.allocate(ResultOutputBinary.blockHeaderBytes);
+        block = ByteBuffer.allocate(1 << 16);
+    }
+
+    FileHandleBinary(int chunkSize, PriceCutoff priceCutoff, ProductDictionary dictionary) {
+        this.chunkSize = chunkSize;
+        this.priceCutoff = priceCutoff;
+        this.dictionary = dictionary;
+    }
+
+    private void setInactive() {
+        log.debug("File {} is over, {} lines were rejected by price cutoff", filename, linesRejected.get());
+
+        this.active = false;
+        this.values = null;
+        if (this.channel != null) {
+            try {
+                this.channel.close();
+            }
+            catch (IOException e) {
+                log.warn("failed to properly close file {} {}", filename, e);
+            }
+            finally {
+                this.channel = null;
+            }
+        }
+    }
+
+    @Override
+    public void setFileName(String fileName) {
+        this.filename = fileName;
+        this.path = Paths.get(fileName);
+
+        try {
+            this.channel = FileChannel.open(this.path, StandardOpenOption.READ);
+            this.bytes = this.channel.size();
+
+            ByteBuffer fileHeader = ByteBuffer.allocate(ResultOutputBinary.fileHeaderBytes);
+            readFully(this.channel, fileHeader, 0);
+            if (fileHeader.getInt(0) != ResultOutputBinary.magic || fileHeader.getInt(4) != ResultOutputBinary.version)
+                throw new IOException("Unknown format of file " + fileName);
+
+            this.position = ResultOutputBinary.fileHeaderBytes;
+            this.rows = 0;
+            this.row = 0;
+            this.active = true;
+        }
+        catch (IOException e) {
+            log.error("Can't deal with handle of {} file: {}", filename, e.toString());
+            this.failed = true;
+            this.setInactive();
+        }
+    }
+
+    @Override
+    public FileHandle reset() {
+        this.filename = null;
+        this.path = null;
+        this.bytes = 0;
+        this.linesRead.set(0);
+        this.linesRejected.set(0);
+        this.failed = false;
+
+        return this;
+    }
+
+    @Override
+    public String getFileName() {
+        return this.filename;
+    }
+
+    @Override
+    public boolean isActive() {
+        return this.active;
+    }
+
+    @Override
+    public boolean isFailed() {
+        return this.failed;
+    }
+
+    @Override
+    public void close() {
+        if (this.active)
+            this.setInactive();
+    }
+
+    @Override
+    public int getLines() {
+        return this.linesRead.get();
+    }
+
+    @Override
+    public int getLinesRejected() {
+        return this.linesRejected.get();
+    }
+
+    @Override
+    public long getBytes() {
+        return this.bytes;
+    }
+
+    @Override
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public Optional<List<Product>> getProducts() {
+        if (!this.isActive()) {
+            return Optional.empty();
+        }
+
+        List<Product> products = new LinkedList<>();
+        int rejected = 0;
+        try {
+            while (products.size() < this.chunkSize) {
+                if (this.row == this.rows) {
+                    int skipped = this.nextBlock();
+                    if (skipped < 0) {
+                        this.setInactive();
+                        break;
+                    }
+
+                    rejected += skipped;
+                    continue;
+                }
+
+                int row = this.row++;
+                int nameLength = this.readLength();
+                int nameStart = this.cursor;
+                this.cursor += nameLength;
+
+                // Rows above the cutoff can't get into the result, so no strings are created for them
+                int priceInCents = this.block.getInt(this.pricesStart + 4 * row);
+                if (this.priceCutoff.rejects(priceInCents)) {
+                    rejected++;
+                    continue;
+                }
+
+                products.add(new Product(
+                        this.block.getInt(this.idsStart + 4 * row),
+                        this.dictionary.names.intern(this.block.array(), nameStart, nameLength),
+                        this.values[this.block.getShort(this.conditionsStart + 2 * row)],
+                        this.values[this.block.getShort(this.statesStart + 2 * row)],
+                        priceInCents));
+            }
+        }
+        catch (IOException | IndexOutOfBoundsException e) {
+            log.error("In file with filename {} an error was occupied {}", this.filename, e);
+            this.failed = true;
+            this.setInactive();
+        }
+
+        // Only products passed further are counted, the storage waits for exactly that amount
+        this.linesRead.addAndGet(products.size());
+        this.linesRejected.addAndGet(rejected);
+
+        return Optional.of(products);
+    }
+
+    // Rows of a block which was skipped as a whole, or -1 when the file is over
+    private int nextBlock() throws IOException {
+        if (this.position >= this.bytes)
+            return -1;
+
+        readFully(this.channel, this.blockHeader.clear(), this.position);
+        int rows = this.blockHeader.getInt(0);
+        int minPrice = this.blockHeader.getInt(4);
+        int bodyBytes = this.blockHeader.getInt(12);
+
+        // Nothing of a header is trusted, a broken block ends the file instead of the reader
+        if (rows < 0 || bodyBytes < 0 || bodyBytes > this.bytes - this.position - ResultOutputBinary.blockHeaderBytes)
+            throw new IOException("Block at " + this.position + " of " + rows + " rows and " + bodyBytes + " bytes is broken");
+
+        this.position += ResultOutputBinary.blockHeaderBytes;
+        if (this.priceCutoff.rejects(minPrice)) {
+            this.position += bodyBytes;
+            return rows;
+        }
+
+        if (this.block.capacity() < bodyBytes)
+            this.block = ByteBuffer.allocate(Math.max(bodyBytes, 2 * this.block.capacity()));
+
+        readFully(this.channel, this.block.clear().limit(bodyBytes), this.position);
+        this.position += bodyBytes;
+
+        this.cursor = 0;
+        // Conditions and states share the block dictionary, but get their instances from the run one
+        this.values = new String[this.readLength()];
+        for (int i = 0; i < this.values.length; i++) {
+            int length = this.readLength();
+            this.values[i] = this.dictionary.conditions.intern(this.block.array(), this.cursor, length);
+            this.cursor += length;
+        }
+
+        if (12L * rows > bodyBytes - this.cursor)
+            throw new IOException("Columns of " + rows + " rows go beyond the block at " + this.position);
+
+        this.idsStart = this.cursor;
+        this.pricesStart = this.idsStart + 4 * rows;
+        this.conditionsStart = this.pricesStart + 4 * rows;
+        this.statesStart = this.conditionsStart + 2 * rows;
+        this.cursor = this.statesStart + 2 * rows;
+
+        this.rows = rows;
+        this.row = 0;
+        return 0;
+    }
+
+    private int readVarint() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte current = this.block.get(this.cursor++);
+            value |= (current & 0x7F) << shift;
+            if (current >= 0)
+                return value;
+        }
+        throw new IOException("Varint at " + this.cursor + " of a block is too long");
+    }
+
+    // Length of a string or count of dictionary entries, every entry takes a byte at least, so both fit into the rest of the block
+    private int readLength() throws IOException {
+        int length = this.readVarint();
+        if (length < 0 || length > this.block.limit() - this.cursor)
+            throw new IOException("Length " + length + " at " + this.cursor + " goes beyond the block");
+        return length;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer bytes, long position) throws IOException {
+        while (bytes.hasRemaining()) {
+            int read = channel.read(bytes, position);
+            if (read < 0)
+                throw new IOException("File is truncated");
+            position += read;
+        }
+    }
+}
@@ -1,122 +1,224 @@
-package net.ddns.arnautovevgeny.pricelist;
-
-import de.siegmar.fastcsv.reader.CsvParser;
-import de.siegmar.fastcsv.reader.CsvReader;
-import de.siegmar.fastcsv.reader.CsvRow;
-import lombok.extern.slf4j.Slf4j;
-
-import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Optional;
-import java.util.concurrent.atomic.AtomicInteger;
-
-@Slf4j
-public class FileHandleCsv implements FileHandle {
-    private final CsvReader csvReader;
-    private final Product.ProductCSVCreator productsCreator;
-    private final int chunkSize;
-
-    private volatile String filename;
-    private volatile Path path;
-
-    private volatile CsvParser csvParser;
-
-    private final AtomicInteger linesRead;
-
-    {
-        linesRead = new AtomicInteger();
-        linesRead.set(0);
-    }
-
-    FileHandleCsv(boolean containsHeaders, char delimiter, int chunkSize) {
-        this.csvReader = new CsvReader();
-        this.csvReader.setContainsHeader(containsHeaders);
-        this.csvReader.setFieldSeparator(delimiter);
-
-        this.productsCreator = containsHeaders ? ProductCsvByHeader::new : ProductCsvByIndex::new;
-
-        this.chunkSize = chunkSize;
-    }
-
-    private void initParser() {
-        try {
-            csvParser = csvReader.parse(path, StandardCharsets.UTF_8);
-        }
-        catch (IOException e) {
-            log.error("Can't deal with handle of {} file", filename);
-            setInactive();
-        }
-    }
-
-    private void setInactive() {
-        try {
-            csvParser.close();
-        } catch (IOException e) {
-            log.warn("failed to properly close file {} {}", filename, e);
-        }
-        finally {
-            csvParser = null;
-        }
-    }
-
-    @Override
-    public void setFileName(String fileName) {
-        this.filename = fileName;
-
-        this.path = Paths.get(fileName);
-        this.initParser();
-    }
-
-    @Override
-    public FileHandle reset() {
-        this.filename = null;
-        this.linesRead.set(0);
-
-        return this;
-    }
-
-    @Override
-    public String getFileName() {
-        return this.filename;
-    }
-
-    @Override
-    public boolean isActive() {
-        return this.csvParser != null;
-    }
-
-    @Override
-    public int getLines() {
-        return this.linesRead.get();
-    }
-
-    @Override
-    public Optional<List<Product>> getProducts() {
-        if (!this.isActive()) {
-            return Optional.empty();
-        }
-
-        List<Product> products = new LinkedList<>();
-        try {
-            CsvRow csvRow;
-            for (int i = 0; i < this.chunkSize && (csvRow = csvParser.nextRow()) != null; i++)
-                products.add(productsCreator.create(csvRow));
-
-            int productsSize = products.size();
-            if (productsSize < this.chunkSize) {
-                this.setInactive();
-            }
-
-            this.linesRead.addAndGet(productsSize);
-        } catch (IOException e) {
-            log.error("In file with filename {} an error was occupied {}", this.filename, e);
-            this.setInactive();
-        }
-
-        return Optional.of(products);
-    }
+package net.ddns.arnautovevgeny.pricelist;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@Slf4j
+// Columns are resolved by the schema once per file, a row is turned into a product only when its price passes the cutoff
+// Malformed rows are skipped and counted by reason, with a sidecar they are kept there as they were
+public class FileHandleCsv implements FileHandle {
+    private final boolean containsHeaders;
+    private final CsvSchema csvSchema;
+    private final CsvRowReader rowReader;
+    private final PriceCutoff priceCutoff;
+    private final ProductDictionary dictionary;
+    private volatile int chunkSize;
+
+    private volatile String filename;
+    private volatile Path path;
+    private volatile long bytes;
+
+    private volatile boolean active;
+    private volatile boolean failed;
+
+    private final AtomicInteger linesRead;
+    private final AtomicInteger linesRejected;
+    private final long[] malformedByReason;
+    private RejectedRows.Batch rejectedBatch;
+
+    {
+        linesRead = new AtomicInteger();
+        linesRead.set(0);
+
+        linesRejected = new AtomicInteger();
+        malformedByReason = new long[RejectedRows.Reason.values().length];
+    }
+
+    FileHandleCsv(boolean containsHeaders, char delimiter, CsvSchema csvSchema, int chunkSize, PriceCutoff priceCutoff, ProductDictionary dictionary) {
+        this.containsHeaders = containsHeaders;
+        this.csvSchema = csvSchema;
+        this.rowReader = new CsvRowReader(delimiter);
+        this.priceCutoff = priceCutoff;
+        this.dictionary = dictionary;
+
+        this.chunkSize = chunkSize;
+    }
+
+    FileHandleCsv(boolean containsHeaders, char delimiter, int chunkSize, PriceCutoff priceCutoff, ProductDictionary dictionary) {
+        this(containsHeaders, delimiter, CsvSchema.of(containsHeaders), chunkSize, priceCutoff, dictionary);
+    }
+
+    void setRejectedRows(RejectedRows rejectedRows) {
+        this.rejectedBatch = rejectedRows.newBatch();
+    }
+
+    private void initParser() {
+        try {
+            this.rowReader.open(Files.newInputStream(path));
+            this.active = true;
+
+            // Empty file has nothing to resolve, it's simply over
+            List<String> header = this.containsHeaders ? this.rowReader.readHeader() : null;
+            if (this.containsHeaders && header == null) {
+                this.setInactive();
+                return;
+            }
+            this.rowReader.project(this.csvSchema.resolve(header, filename));
+        }
+        catch (IOException e) {
+            log.error("Can't deal with handle of {} file: {}", filename, e.toString());
+            this.failed = true;
+            setInactive();
+        }
+    }
+
+    private void setInactive() {
+        log.debug("File {} is over, {} lines were rejected by price cutoff", filename, linesRejected.get());
+
+        Metrics.get().rowsMalformed(filename, this.malformedByReason);
+        Arrays.fill(this.malformedByReason, 0);
+        if (this.rejectedBatch != null)
+            this.rejectedBatch.flush();
+
+        try {
+            this.rowReader.close();
+        } catch (IOException e) {
+            log.warn("failed to properly close file {} {}", filename, e);
+        }
+        finally {
+            this.active = false;
+        }
+    }
+
+    @Override
+    public void setFileName(String fileName) {
+        this.filename = fileName;
+
+        this.path = Paths.get(fileName);
+        this.initParser();
+
+        try {
+            this.bytes = Files.size(this.path);
+        } catch (IOException e) {
+            this.bytes = 0;
+        }
+    }
+
+    @Override
+    public FileHandle reset() {
+        this.filename = null;
+        this.bytes = 0;
+        this.linesRead.set(0);
+        this.linesRejected.set(0);
+        this.failed = false;
+
+        return this;
+    }
+
+    @Override
+    public String getFileName() {
+        return this.filename;
+    }
+
+    @Override
+    public boolean isActive() {
+        return this.active;
+    }
+
+    @Override
+    public boolean isFailed() {
+        return this.failed;
+    }
+
+    @Override
+    public void close() {
+        if (this.active)
+            this.setInactive();
+    }
+
+    @Override
+    public int getLines() {
+        return this.linesRead.get();
+    }
+
+    @Override
+    public int getLinesRejected() {
+        return this.linesRejected.get();
+    }
+
+    @Override
+    public long getBytes() {
+        return this.bytes;
+    }
+
+    @Override
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public Optional<List<Product>> getProducts() {
+        if (!this.isActive()) {
+            return Optional.empty();
+        }
+
+        List<Product> products = new LinkedList<>();
+        try {
+            int rejected = 0;
+            boolean rowRead = true;
+            while (products.size() < this.chunkSize && (rowRead = this.rowReader.nextRow())) {
+                if (!this.rowReader.isComplete()) {
+                    this.malformed(RejectedRows.Reason.MISSING_COLUMNS);
+                    continue;
+                }
+
+                long priceInCents = this.rowReader.getPrice();
+                if (priceInCents == Price.invalid) {
+                    this.malformed(RejectedRows.Reason.BAD_PRICE);
+                    continue;
+                }
+
+                long id = this.rowReader.getId();
+                if (id == Price.invalidId) {
+                    this.malformed(RejectedRows.Reason.BAD_ID);
+                    continue;
+                }
+
+                // Rows above the cutoff can't get into the result, so no strings are created for them
+                if (this.priceCutoff.rejects((int) priceInCents))
+                    rejected++;
+                else
+                    products.add(this.rowReader.product((int) id, (int) priceInCents, this.dictionary));
+            }
+
+            // Only products passed further are counted, the storage waits for exactly that amount
+            this.linesRead.addAndGet(products.size());
+            this.linesRejected.addAndGet(rejected);
+
+            if (!rowRead) {
+                this.setInactive();
+            }
+        } catch (IOException e) {
+            log.error("In file with filename {} an error was occupied {}", this.filename, e);
+            this.failed = true;
+            this.setInactive();
+        }
+
+        return Optional.of(products);
+    }
+
+    private void malformed(RejectedRows.Reason reason) {
+        this.malformedByReason[reason.ordinal()]++;
+        if (this.rejectedBatch != null)
+            this.rowReader.reject(this.rejectedBatch, this.filename, reason);
+    }
 }
\ No newline at end of file
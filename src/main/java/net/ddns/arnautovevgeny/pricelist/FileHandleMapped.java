@@ -0,0 +1,400 @@
+package net.ddns.arnautovevgeny.pricelist;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@Slf4j
+// Parses products right from the mapped bytes, a big file is split into newline-aligned segments
+// Quoted fields are supported, but line breaks inside of them are not
+// Malformed rows are skipped and counted by reason, segments don't know numbers of their rows, so there is no sidecar for them
+public class FileHandleMapped implements FileHandle {
+    private static final long segmentSize = 64L * 1024 * 1024;
+    private static final int alignBufferSize = 4096;
+
+    private static final int idField = CsvSchema.idField;
+    private static final int nameField = CsvSchema.nameField;
+    private static final int conditionField = CsvSchema.conditionField;
+    private static final int stateField = CsvSchema.stateField;
+    private static final int priceField = CsvSchema.priceField;
+
+    private final boolean containsHeaders;
+    private final byte delimiter;
+    private final CsvSchema csvSchema;
+    private volatile int chunkSize;
+    private final PriceCutoff priceCutoff;
+    private final ProductDictionary dictionary;
+
+    private volatile String filename;
+    private volatile Path path;
+    private volatile boolean active;
+    private volatile boolean failed;
+
+    private long start;
+    private long end;
+    private MappedByteBuffer buffer;
+
+    // Column of every needed field and for every column the field which it goes to
+    private CsvSchema.Projection projection;
+
+    private final int[] fieldStart;
+    private final int[] fieldEnd;
+    private final boolean[] fieldQuoted;
+    private byte[] scratch;
+
+    private final AtomicInteger linesRead;
+    private final AtomicInteger linesRejected;
+    private final long[] malformedByReason;
+
+    {
+        linesRead = new AtomicInteger();
+        linesRejected = new AtomicInteger();
+        malformedByReason = new long[RejectedRows.Reason.values().length];
+
+        fieldStart = new int[CsvSchema.fieldsCount];
+        fieldEnd = new int[CsvSchema.fieldsCount];
+        fieldQuoted = new boolean[CsvSchema.fieldsCount];
+        scratch = new byte[256];
+    }
+
+    FileHandleMapped(boolean containsHeaders, char delimiter, CsvSchema csvSchema, int chunkSize, PriceCutoff priceCutoff, ProductDictionary dictionary) {
+        this.containsHeaders = containsHeaders;
+        this.delimiter = CsvRowReader.delimiterByte(delimiter);
+        this.csvSchema = csvSchema;
+        this.chunkSize = chunkSize;
+        this.priceCutoff = priceCutoff;
+        this.dictionary = dictionary;
+    }
+
+    FileHandleMapped(boolean containsHeaders, char delimiter, int chunkSize, PriceCutoff priceCutoff, ProductDictionary dictionary) {
+        this(containsHeaders, delimiter, CsvSchema.of(containsHeaders), chunkSize, priceCutoff, dictionary);
+    }
+
+    private FileHandleMapped(FileHandleMapped whole, long start, long end) {
+        this(whole.containsHeaders, (char) whole.delimiter, whole.csvSchema, whole.chunkSize, whole.priceCutoff, whole.dictionary);
+
+        this.filename = whole.filename;
+        this.path = whole.path;
+        this.projection = whole.projection;
+
+        this.start = start;
+        this.end = end;
+        this.active = true;
+    }
+
+    private void setInactive() {
+        log.debug("Segment {}-{} of file {} is over, {} lines were rejected by price cutoff", start, end, filename, linesRejected.get());
+
+        Metrics.get().rowsMalformed(filename, this.malformedByReason);
+        Arrays.fill(this.malformedByReason, 0);
+
+        this.active = false;
+        this.buffer = null;
+    }
+
+    @Override
+    public void setFileName(String fileName) {
+        this.filename = fileName;
+        this.path = Paths.get(fileName);
+
+        try (FileChannel channel = FileChannel.open(this.path, StandardOpenOption.READ)) {
+            this.start = 0;
+            this.end = channel.size();
+
+            if (this.containsHeaders) {
+                long headerEnd = alignToLine(channel, 0, this.end);
+                this.projection = this.csvSchema.resolve(this.readHeader(channel, headerEnd), this.filename);
+                this.start = headerEnd;
+            }
+            else
+                this.projection = this.csvSchema.resolve(null, this.filename);
+
+            this.active = true;
+        }
+        catch (IOException e) {
+            log.error("Can't deal with handle of {} file", filename);
+            this.failed = true;
+            this.setInactive();
+        }
+    }
+
+    // Header is read the way the default handle reads it, quoted names included
+    private List<String> readHeader(FileChannel channel, long headerEnd) throws IOException {
+        ByteBuffer headerBytes = ByteBuffer.allocate((int) headerEnd);
+        channel.read(headerBytes, 0);
+
+        try (CsvRowReader headerReader = new CsvRowReader((char) this.delimiter)) {
+            headerReader.open(new ByteArrayInputStream(headerBytes.array(), 0, headerBytes.position()));
+            List<String> header = headerReader.readHeader();
+            return header == null ? List.of() : header;
+        }
+    }
+
+    // Position right after the first line break at or after the given one
+    private static long alignToLine(FileChannel channel, long position, long end) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(alignBufferSize);
+        while (position < end) {
+            bytes.clear();
+            int read = channel.read(bytes, position);
+            if (read <= 0)
+                break;
+
+            for (int i = 0; i < read; i++) {
+                if (bytes.get(i) == '\n')
+                    return position + i + 1;
+            }
+            position += read;
+        }
+
+        return end;
+    }
+
+    @Override
+    public List<FileHandle> split() {
+        if (!this.active || this.end - this.start <= segmentSize)
+            return List.of();
+
+        List<FileHandle> segments = new LinkedList<>();
+        try (FileChannel channel = FileChannel.open(this.path, StandardOpenOption.READ)) {
+            long segmentStart = alignToLine(channel, this.start + segmentSize, this.end);
+            long firstEnd = segmentStart;
+
+            while (segmentStart < this.end) {
+                long segmentEnd = alignToLine(channel, segmentStart + segmentSize, this.end);
+                segments.add(new FileHandleMapped(this, segmentStart, segmentEnd));
+                segmentStart = segmentEnd;
+            }
+
+            this.end = firstEnd;
+        }
+        catch (IOException e) {
+            log.error("Can't split {} file, it will be read as a whole", filename);
+            return List.of();
+        }
+
+        log.info("File {} was split into {} segments", filename, segments.size() + 1);
+        return segments;
+    }
+
+    @Override
+    public FileHandle reset() {
+        this.filename = null;
+        this.path = null;
+        this.start = 0;
+        this.end = 0;
+        this.linesRead.set(0);
+        this.linesRejected.set(0);
+        this.failed = false;
+
+        return this;
+    }
+
+    @Override
+    public String getFileName() {
+        return this.filename;
+    }
+
+    @Override
+    public boolean isActive() {
+        return this.active;
+    }
+
+    @Override
+    public boolean isFailed() {
+        return this.failed;
+    }
+
+    @Override
+    public void close() {
+        if (this.active)
+            this.setInactive();
+    }
+
+    @Override
+    public int getLines() {
+        return this.linesRead.get();
+    }
+
+    @Override
+    public int getLinesRejected() {
+        return this.linesRejected.get();
+    }
+
+    // Header isn't counted, segments of a file sum up to the rest of it
+    @Override
+    public long getBytes() {
+        return this.end - this.start;
+    }
+
+    @Override
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public Optional<List<Product>> getProducts() {
+        if (!this.isActive()) {
+            return Optional.empty();
+        }
+
+        List<Product> products = new LinkedList<>();
+        try {
+            if (this.buffer == null) {
+                try (FileChannel channel = FileChannel.open(this.path, StandardOpenOption.READ)) {
+                    this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, this.start, this.end - this.start);
+                }
+            }
+
+            int rejected = 0;
+            int limit = this.buffer.limit();
+            int position = this.buffer.position();
+            while (products.size() < this.chunkSize && position < limit) {
+                int lineEnd = position;
+                while (lineEnd < limit && this.buffer.get(lineEnd) != '\n')
+                    lineEnd++;
+
+                int nextLine = lineEnd + 1;
+                if (lineEnd > position && this.buffer.get(lineEnd - 1) == '\r')
+                    lineEnd--;
+
+                if (lineEnd > position) {
+                    if (!this.tokenize(position, lineEnd)) {
+                        this.malformed(RejectedRows.Reason.MISSING_COLUMNS);
+                        position = Math.min(nextLine, limit);
+                        continue;
+                    }
+
+                    // Rows above the cutoff can't get into the result, so no strings are created for them
+                    long priceInCents = this.parsePrice();
+                    long id = priceInCents == Price.invalid ? Price.invalidId : this.parseId();
+                    if (priceInCents == Price.invalid)
+                        this.malformed(RejectedRows.Reason.BAD_PRICE);
+                    else if (id == Price.invalidId)
+                        this.malformed(RejectedRows.Reason.BAD_ID);
+                    else if (this.priceCutoff.rejects((int) priceInCents))
+                        rejected++;
+                    else
+                        products.add(new Product((int) id, this.decode(nameField, this.dictionary.names),
+                                this.decode(conditionField, this.dictionary.conditions), this.decode(stateField, this.dictionary.states), (int) priceInCents));
+                }
+
+                position = Math.min(nextLine, limit);
+            }
+            this.buffer.position(position);
+
+            this.linesRead.addAndGet(products.size());
+            this.linesRejected.addAndGet(rejected);
+
+            if (position >= limit)
+                this.setInactive();
+        }
+        catch (IOException e) {
+            log.error("In file with filename {} an error was occupied {}", this.filename, e);
+            this.failed = true;
+            this.setInactive();
+        }
+
+        return Optional.of(products);
+    }
+
+    private void malformed(RejectedRows.Reason reason) {
+        this.malformedByReason[reason.ordinal()]++;
+    }
+
+    // False when the line is shorter than the projection
+    private boolean tokenize(int lineStart, int lineEnd) {
+        Arrays.fill(this.fieldStart, -1);
+
+        int column = 0;
+        int position = lineStart;
+        int maxColumn = this.projection.lastColumn();
+        while (column <= maxColumn && position <= lineEnd) {
+            int start = position;
+            int end;
+            boolean quoted = position < lineEnd && this.buffer.get(position) == '"';
+            if (quoted) {
+                start = ++position;
+                while (position < lineEnd) {
+                    if (this.buffer.get(position) == '"') {
+                        if (position + 1 < lineEnd && this.buffer.get(position + 1) == '"')
+                            position += 2;
+                        else
+                            break;
+                    }
+                    else
+                        position++;
+                }
+                end = position;
+                while (position < lineEnd && this.buffer.get(position) != this.delimiter)
+                    position++;
+            }
+            else {
+                while (position < lineEnd && this.buffer.get(position) != this.delimiter)
+                    position++;
+                end = position;
+            }
+
+            int field = this.projection.fieldOf(column);
+            if (field >= 0) {
+                this.fieldStart[field] = start;
+                this.fieldEnd[field] = end;
+                this.fieldQuoted[field] = quoted;
+            }
+
+            column++;
+            position++;
+        }
+
+        for (int field = 0; field < CsvSchema.fieldsCount; field++) {
+            if (this.fieldStart[field] < 0)
+                return false;
+        }
+        return true;
+    }
+
+    // Price.invalidId when there is no id
+    private long parseId() {
+        return Price.parseId(this.scratch, 0, this.unescape(idField));
+    }
+
+    // Price.invalid when there is no price
+    private long parsePrice() {
+        return Price.parseChecked(this.scratch, 0, this.unescape(priceField));
+    }
+
+    // Bytes of the field go into the scratch, the length is returned
+    private int unescape(int field) {
+        int start = this.fieldStart[field];
+        int end = this.fieldEnd[field];
+
+        if (this.scratch.length < end - start)
+            this.scratch = new byte[Math.max(end - start, 2 * this.scratch.length)];
+
+        int length = 0;
+        for (int i = start; i < end; i++) {
+            byte current = this.buffer.get(i);
+            this.scratch[length++] = current;
+
+            // Escaped quote is written twice
+            if (current == '"' && this.fieldQuoted[field])
+                i++;
+        }
+        return length;
+    }
+
+    // Values seen before come from the interner without a new string
+    private String decode(int field, StringInterner interner) {
+        int length = this.unescape(field);
+        return interner == null ? new String(this.scratch, 0, length, StandardCharsets.UTF_8) : interner.intern(this.scratch, 0, length);
+    }
+}
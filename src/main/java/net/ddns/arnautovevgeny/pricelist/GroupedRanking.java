@@ -0,0 +1,153 @@
+package net.ddns.arnautovevgeny.pricelist;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Evaluates several rankings in a single scan of the files, every product is offered to its group of every ranking
+// Every group is a bounded shard with the limits of its ranking, so groups of workers are merged as partial results are
+// Files aren't pruned by price: a product too expensive for one group may still be among the cheapest of another
+@Slf4j
+public class GroupedRanking {
+    // Groups of every ranking in the order of rankings, single writer only
+    private class Groups {
+        private final List<Map<Comparable<?>, ResultStorageShard>> byRanking;
+
+        {
+            byRanking = new ArrayList<>(specs.size());
+            for (int i = 0; i < specs.size(); i++)
+                byRanking.add(new HashMap<>());
+        }
+
+        private void handle(Product product) {
+            for (int i = 0; i < specs.size(); i++) {
+                RankingSpec spec = specs.get(i);
+                Map<Comparable<?>, ResultStorageShard> groups = this.byRanking.get(i);
+
+                Comparable<?> key = spec.getGroupBy().keyOf(product);
+                ResultStorageShard group = groups.get(key);
+                if (group == null) {
+                    group = new ResultStorageShard(new PriceCutoff(), spec.getLimitTotal(), spec.getLimitById());
+                    groups.put(key, group);
+                }
+
+                group.handle(product);
+            }
+        }
+
+        // Smaller group is offered to the bigger one, what's dropped there couldn't get into the merged group either
+        private Groups merge(Groups other) {
+            for (int i = 0; i < specs.size(); i++) {
+                Map<Comparable<?>, ResultStorageShard> groups = this.byRanking.get(i);
+
+                for (Map.Entry<Comparable<?>, ResultStorageShard> otherGroup : other.byRanking.get(i).entrySet()) {
+                    ResultStorageShard group = groups.get(otherGroup.getKey());
+                    if (group == null) {
+                        groups.put(otherGroup.getKey(), otherGroup.getValue());
+                        continue;
+                    }
+
+                    ResultStorageShard smaller = group.size() < otherGroup.getValue().size() ? group : otherGroup.getValue();
+                    ResultStorageShard bigger = smaller == group ? otherGroup.getValue() : group;
+                    for (Product product : smaller.getResult())
+                        bigger.handle(product);
+
+                    groups.put(otherGroup.getKey(), bigger);
+                }
+            }
+
+            return this;
+        }
+    }
+
+    private static final int chunkSize = 1000;
+
+    private final String[] csvFiles;
+    private final boolean containsHeaders;
+    private final char delimiter;
+    private final List<RankingSpec> specs;
+    private final int workers;
+
+    public GroupedRanking(String[] csvFiles, boolean containsHeaders, char delimiter, List<RankingSpec> specs) {
+        Set<String> names = new HashSet<>();
+        for (RankingSpec spec : specs) {
+            if (!names.add(spec.getName()))
+                throw new IllegalArgumentException("Ranking " + spec.getName() + " is given twice");
+        }
+
+        this.csvFiles = csvFiles;
+        this.containsHeaders = containsHeaders;
+        this.delimiter = delimiter;
+        this.specs = List.copyOf(specs);
+        this.workers = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), csvFiles.length));
+    }
+
+    // Every worker takes files one by one into its own groups, they are merged when all files are read
+    private Groups scan() throws IOException, InterruptedException {
+        AtomicInteger nextFile = new AtomicInteger();
+        PriceCutoff noCutoff = new PriceCutoff();
+        ProductDictionary dictionary = new ProductDictionary();
+
+        ExecutorService workersService = Executors.newFixedThreadPool(this.workers);
+        try {
+            List<Future<Groups>> workersGroups = new ArrayList<>(this.workers);
+            for (int i = 0; i < this.workers; i++) {
+                workersGroups.add(workersService.submit(() -> {
+                    Groups groups = new Groups();
+                    FileHandle fileHandle = new FileHandleCsv(this.containsHeaders, this.delimiter, chunkSize, noCutoff, dictionary);
+
+                    int file;
+                    while ((file = nextFile.getAndIncrement()) < this.csvFiles.length) {
+                        fileHandle.setFileName(this.csvFiles[file]);
+
+                        Optional<List<Product>> products;
+                        while ((products = fileHandle.getProducts()).isPresent()) {
+                            for (Product product : products.get())
+                                groups.handle(product);
+                        }
+                        fileHandle.reset();
+                    }
+
+                    return groups;
+                }));
+            }
+
+            Groups merged = null;
+            for (Future<Groups> workerGroups : workersGroups) {
+                try {
+                    merged = merged == null ? workerGroups.get() : merged.merge(workerGroups.get());
+                }
+                catch (ExecutionException e) {
+                    throw new IOException("Files can't be ranked", e.getCause());
+                }
+            }
+            return merged;
+        }
+        finally {
+            workersService.shutdownNow();
+        }
+    }
+
+    // Result of every ranking by its name, groups go one after another ordered by their key, products of a group by price
+    public Map<String, List<Product>> evaluate() throws IOException, InterruptedException {
+        Groups groups = this.scan();
+
+        Map<String, List<Product>> rankings = new LinkedHashMap<>();
+        for (int i = 0; i < this.specs.size(); i++) {
+            RankingSpec spec = this.specs.get(i);
+            Map<Comparable<?>, ResultStorageShard> byKey = new TreeMap<>(groups.byRanking.get(i));
+
+            List<Product> ranking = new ArrayList<>();
+            for (ResultStorageShard group : byKey.values())
+                ranking.addAll(group.getResult());
+
+            rankings.put(spec.getName(), ranking);
+            log.info("Ranking {} by {} has {} products in {} groups", spec.getName(), spec.getGroupBy(), ranking.size(), byKey.size());
+        }
+
+        return rankings;
+    }
+}
@@ -0,0 +1,90 @@
+package net.ddns.arnautovevgeny.pricelist;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+// Submits a job to the daemon found by its port file and waits for it, a short-lived JVM doesn't warm anything up
+// Nothing is logged here: configuring the logger costs a client more than its whole job takes the daemon
+public class JobClient {
+    private final Path portPath;
+
+    public JobClient(Path portPath) {
+        this.portPath = portPath;
+    }
+
+    // Every status is passed on as it comes, the result is the output file of the job
+    public Path submit(JobDaemon.Job job, BiConsumer<JobDaemon.Status, String> statuses) throws IOException {
+        int port;
+        String token;
+        try {
+            List<String> daemon = Files.readAllLines(this.portPath);
+            port = Integer.parseInt(daemon.get(0).strip());
+            token = daemon.get(1).strip();
+        }
+        catch (NoSuchFileException | NumberFormatException | IndexOutOfBoundsException e) {
+            throw new IOException("There is no daemon behind " + this.portPath, e);
+        }
+
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+             DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+             DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            output.writeInt(JobDaemon.magic);
+            output.writeInt(JobDaemon.version);
+            output.writeUTF(token);
+            job.write(output);
+            output.flush();
+
+            while (true) {
+                int ordinal = input.readUnsignedByte();
+                if (ordinal >= JobDaemon.Status.values().length)
+                    throw new IOException("Unknown status " + ordinal);
+
+                JobDaemon.Status status = JobDaemon.Status.values()[ordinal];
+                String message = input.readUTF();
+                statuses.accept(status, message);
+
+                if (status == JobDaemon.Status.DONE)
+                    return Paths.get(message);
+                if (status == JobDaemon.Status.FAILED)
+                    throw new IOException("Job failed: " + message);
+            }
+        }
+    }
+
+    public Path submit(JobDaemon.Job job) throws IOException {
+        return this.submit(job, (status, message) -> {});
+    }
+
+    // Same files and result.csv as main, options go before the files: --submit <port file> of the daemon,
+    // --headers <true or false>, --delimiter <char>, --limits <total:by id> and --priority <weight of the job among the running ones>,
+    // statuses are printed as they come
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = new HashMap<>();
+        int first = 0;
+        for (; first + 1 < args.length && args[first].startsWith("--"); first += 2)
+            options.put(args[first], args[first + 1]);
+        String[] csvFiles = Arrays.copyOfRange(args, first, args.length);
+
+        if (!options.containsKey("--submit") || csvFiles.length == 0) {
+            System.out.println("No daemon or no files to proceed was specified");
+            return;
+        }
+
+        String[] limits = options.getOrDefault("--limits", ResultStorage.limitTotal + ":" + ResultStorage.limitById).split(":");
+        JobDaemon.Job job = new JobDaemon.Job(csvFiles, Paths.get("result.csv"), Boolean.parseBoolean(options.get("--headers")),
+                options.getOrDefault("--delimiter", ",").charAt(0), Integer.parseInt(limits[0]), Integer.parseInt(limits[1]),
+                Integer.parseInt(options.getOrDefault("--priority", Integer.toString(JobScheduler.defaultPriority))));
+
+        new JobClient(Paths.get(options.get("--submit"))).submit(job, (status, message) -> System.out.println(status + " " + message));
+    }
+}
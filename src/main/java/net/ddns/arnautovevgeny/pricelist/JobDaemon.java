@@ -0,0 +1,319 @@
+package net.ddns.arnautovevgeny.pricelist;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Keeps a warmed JVM for many short runs, every job reduces its files into its own output file like a run of main does
+// There are no Unix domain sockets before Java 16, so the daemon listens on the loopback only and puts its port into a file,
+// clients find the daemon by the path of that file as they would by the path of a socket
+// Any local user can connect to the loopback, so the file also keeps a random token and is readable by its owner only,
+// a client which doesn't send the token back is dropped, as others can't get it the way they couldn't use the socket
+// Jobs of the storage limits run at once sharing the threads of one scheduler, up to a bound and the rest are queued,
+// rankings of other limits go one by one, statuses are streamed back to the client while it waits
+@Slf4j
+public class JobDaemon implements AutoCloseable {
+    public enum Status {
+        QUEUED,
+        RUNNING,
+        DONE,
+        FAILED
+    }
+
+    // Paths are absolute, so the working directory of the daemon doesn't matter
+    public static class Job {
+        final String[] csvFiles;
+        final String output;
+        final boolean containsHeaders;
+        final char delimiter;
+        final int limitTotal;
+        final int limitById;
+        final int priority;
+
+        public Job(String[] csvFiles, Path output, boolean containsHeaders, char delimiter, int limitTotal, int limitById, int priority) {
+            this.csvFiles = Arrays.stream(csvFiles).map(file -> Paths.get(file).toAbsolutePath().normalize().toString()).toArray(String[]::new);
+            this.output = output.toAbsolutePath().normalize().toString();
+            this.containsHeaders = containsHeaders;
+            CsvRowReader.delimiterByte(delimiter);
+            this.delimiter = delimiter;
+            this.limitTotal = limitTotal;
+            this.limitById = limitById;
+            this.priority = priority;
+        }
+
+        public Job(String[] csvFiles, Path output, boolean containsHeaders, char delimiter, int limitTotal, int limitById) {
+            this(csvFiles, output, containsHeaders, delimiter, limitTotal, limitById, JobScheduler.defaultPriority);
+        }
+
+        public Job(String[] csvFiles, Path output) {
+            this(csvFiles, output, false, ',', ResultStorage.limitTotal, ResultStorage.limitById);
+        }
+
+        private boolean isScheduled() {
+            return this.limitTotal == ResultStorage.limitTotal && this.limitById == ResultStorage.limitById;
+        }
+
+        void write(DataOutputStream output) throws IOException {
+            output.writeUTF(this.output);
+            output.writeBoolean(this.containsHeaders);
+            output.writeChar(this.delimiter);
+            output.writeInt(this.limitTotal);
+            output.writeInt(this.limitById);
+            output.writeInt(this.priority);
+
+            output.writeInt(this.csvFiles.length);
+            for (String file : this.csvFiles)
+                output.writeUTF(file);
+        }
+
+        static Job read(DataInputStream input) throws IOException {
+            String output = input.readUTF();
+            boolean containsHeaders = input.readBoolean();
+            char delimiter = input.readChar();
+            int limitTotal = input.readInt();
+            int limitById = input.readInt();
+            int priority = input.readInt();
+
+            int filesCount = input.readInt();
+            if (filesCount < 0 || filesCount > maxFiles)
+                throw new IllegalArgumentException("Job can't have " + filesCount + " files");
+
+            String[] csvFiles = new String[filesCount];
+            for (int i = 0; i < filesCount; i++)
+                csvFiles[i] = input.readUTF();
+
+            return new Job(csvFiles, Paths.get(output), containsHeaders, delimiter, limitTotal, limitById, priority);
+        }
+    }
+
+    static final int magic = 0x504C4A44;
+    static final int version = 3;
+
+    private static final int backlog = 64;
+    private static final int maxConnections = 64;
+    private static final int clientReadMillis = 10000;
+    private static final int tokenBits = 128;
+    private static final int maxFiles = 1 << 20;
+    private static final int maxScheduledJobs = 16;
+    private static final int warmUpRows = 20000;
+    private static final int warmUpRounds = 5;
+
+    private final Path portPath;
+    private final String token;
+    private final ServerSocket serverSocket;
+    private final ExecutorService connectionsService;
+    private final ExecutorService jobsService;
+    private final ExecutorService scheduledJobsService;
+    private final CountDownLatch warmedUp;
+    private final JobScheduler jobScheduler;
+    private final AtomicBoolean closed;
+
+    public JobDaemon(Path portPath) throws IOException {
+        this.portPath = portPath;
+        this.token = new BigInteger(tokenBits, new SecureRandom()).toString(Character.MAX_RADIX);
+        this.serverSocket = new ServerSocket(0, backlog, InetAddress.getLoopbackAddress());
+
+        // Connection waits for its job on a thread of its own, clients beyond the threads and their queue are dropped
+        ThreadPoolExecutor connectionsExecutor = new ThreadPoolExecutor(maxConnections, maxConnections, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(backlog), runnable -> {
+            Thread thread = new Thread(runnable, "jobConnection");
+            thread.setDaemon(true);
+            return thread;
+        });
+        connectionsExecutor.allowCoreThreadTimeOut(true);
+        this.connectionsService = connectionsExecutor;
+        this.jobsService = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "job"));
+        this.scheduledJobsService = Executors.newFixedThreadPool(maxScheduledJobs, runnable -> new Thread(runnable, "scheduledJob"));
+        this.warmedUp = new CountDownLatch(1);
+        this.jobScheduler = new JobScheduler();
+        this.closed = new AtomicBoolean();
+
+        // Port and token appear at once, a client never reads a half-written file
+        Path written = portPath.resolveSibling(portPath.getFileName() + ".tmp");
+        Files.deleteIfExists(written);
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix"))
+            Files.createFile(written, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        Files.writeString(written, this.getPort() + "\n" + this.token + "\n");
+        Files.move(written, portPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        log.info("Daemon listens on {}, its port is in {}", this.serverSocket.getLocalSocketAddress(), portPath.toAbsolutePath());
+
+        this.jobsService.execute(this::warmUp);
+    }
+
+    // Jobs of generated rows go first, every job of a client waits until they are over, so even the first one doesn't run
+    // behind the compiler
+    private void warmUp() {
+        try {
+            Path directory = Files.createTempDirectory("priceListWarmUp");
+            Path csvFile = directory.resolve("products.csv");
+            Path output = directory.resolve("result.csv");
+            try {
+                StringBuilder rows = new StringBuilder();
+                for (int i = 0; i < warmUpRows; i++)
+                    rows.append(i % 500).append(",product ").append(i).append(",new,ok,").append(Price.toString(i * 7919 % 100000)).append('\n');
+                Files.writeString(csvFile, rows);
+
+                long started = System.nanoTime();
+                for (int i = 0; i < warmUpRounds; i++)
+                    this.run(new Job(new String[]{csvFile.toString()}, output));
+                log.info("Daemon was warmed up in {} ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+            }
+            finally {
+                Files.deleteIfExists(csvFile);
+                Files.deleteIfExists(output);
+                Files.deleteIfExists(directory);
+            }
+        }
+        catch (IOException e) {
+            log.warn("Daemon wasn't warmed up: {}", e.toString());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            this.warmedUp.countDown();
+        }
+    }
+
+    public int getPort() {
+        return this.serverSocket.getLocalPort();
+    }
+
+    // Until the daemon is stopped or closed, a client which doesn't send its job in time is dropped
+    public void serve() {
+        while (!this.serverSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = this.serverSocket.accept();
+                socket.setSoTimeout(clientReadMillis);
+            }
+            catch (IOException e) {
+                if (!this.serverSocket.isClosed())
+                    log.warn("Client couldn't be accepted: {}", e.toString());
+                continue;
+            }
+
+            try {
+                this.connectionsService.execute(() -> this.handle(socket));
+            }
+            catch (RejectedExecutionException e) {
+                if (this.connectionsService.isShutdown())
+                    log.info("Daemon is closed, no more jobs are accepted");
+                else
+                    log.warn("Too many clients, client {} is dropped", socket.getRemoteSocketAddress());
+                try {
+                    socket.close();
+                }
+                catch (IOException closeFailed) {
+                    log.warn("Client {} wasn't properly dropped: {}", socket.getRemoteSocketAddress(), closeFailed.toString());
+                }
+            }
+        }
+    }
+
+    private void handle(Socket socket) {
+        try (Socket client = socket;
+             DataInputStream input = new DataInputStream(new BufferedInputStream(client.getInputStream()));
+             DataOutputStream output = new DataOutputStream(new BufferedOutputStream(client.getOutputStream()))) {
+            if (input.readInt() != magic || input.readInt() != version)
+                throw new IOException("Unknown client");
+            // Compared in constant time, so the token can't be guessed a character after another
+            if (!MessageDigest.isEqual(input.readUTF().getBytes(StandardCharsets.UTF_8), this.token.getBytes(StandardCharsets.UTF_8)))
+                throw new IOException("Client doesn't know the token");
+
+            Job job;
+            try {
+                job = Job.read(input);
+            }
+            catch (IllegalArgumentException e) {
+                log.warn("Job of client {} is malformed: {}", socket.getRemoteSocketAddress(), e.toString());
+                send(output, Status.FAILED, e.toString());
+                return;
+            }
+            send(output, Status.QUEUED, job.csvFiles.length + " files");
+
+            // Connection only waits, the job itself takes a thread of a bounded service
+            FutureTask<Integer> done = new FutureTask<>(() -> {
+                this.warmedUp.await();
+                send(output, Status.RUNNING, job.csvFiles.length + " files");
+                return this.run(job);
+            });
+            (job.isScheduled() ? this.scheduledJobsService : this.jobsService).execute(done);
+
+            try {
+                int size = done.get();
+                log.info("Job of {} files was reduced to {} products in {}", job.csvFiles.length, size, job.output);
+                send(output, Status.DONE, job.output);
+            }
+            catch (ExecutionException e) {
+                log.warn("Job of {} files failed: {}", job.csvFiles.length, e.getCause().toString());
+                send(output, Status.FAILED, e.getCause().toString());
+            }
+            catch (InterruptedException e) {
+                send(output, Status.FAILED, "Daemon is closed");
+                Thread.currentThread().interrupt();
+            }
+        }
+        catch (IOException | RejectedExecutionException e) {
+            log.warn("Client {} failed: {}", socket.getRemoteSocketAddress(), e.toString());
+        }
+    }
+
+    private static void send(DataOutputStream output, Status status, String message) throws IOException {
+        output.writeByte(status.ordinal());
+        output.writeUTF(message);
+        output.flush();
+    }
+
+    // Same as a run of main, only limits other than the ones of the storages take a ranking instead
+    private int run(Job job) throws IOException, InterruptedException {
+        PriceList priceList = new PriceList(Paths.get(job.output), job.containsHeaders, job.delimiter);
+        if (job.isScheduled())
+            priceList.processViaScheduler(job.csvFiles, this.jobScheduler, job.priority);
+        else
+            priceList.processWithLimits(job.csvFiles, job.limitTotal, job.limitById);
+
+        priceList.output();
+        return priceList.getSize();
+    }
+
+    // No more clients are accepted and serve() returns, the daemon is still to be closed
+    public void stop() throws IOException {
+        this.serverSocket.close();
+    }
+
+    // Only the first call closes the daemon
+    @Override
+    public void close() throws IOException {
+        if (!this.closed.compareAndSet(false, true))
+            return;
+
+        try {
+            this.serverSocket.close();
+        }
+        finally {
+            this.jobsService.shutdownNow();
+            this.scheduledJobsService.shutdownNow();
+            this.connectionsService.shutdownNow();
+            this.jobScheduler.close();
+            Files.deleteIfExists(this.portPath);
+        }
+    }
+}
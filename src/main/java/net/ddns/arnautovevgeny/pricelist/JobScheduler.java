@@ -0,0 +1,255 @@
+package net.ddns.arnautovevgeny.pricelist;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+// Runs many jobs on one bounded pool of threads, every job has its own storage, cutoff and dictionary, so results never mix
+// Work is taken in slices: a thread reads one file of a job for a while and gives it back, so no thread ever waits on a queue
+// Every job is charged for its slices by its priority, the job charged the least goes next, so a job of twice the priority
+// gets twice the time, a new job starts level with the others and doesn't take the pool until it catches up
+@Slf4j
+public class JobScheduler implements AutoCloseable {
+    // Guarded by the scheduler, only a slice is read without it
+    private static class Job {
+        private final long number;
+        private final boolean containsHeaders;
+        private final char delimiter;
+        private final int priority;
+
+        private final Queue<String> filesToOpen;
+        private final Queue<FileHandle> handlesToRead;
+        private final ResultStorage resultStorage;
+        private final ProductDictionary dictionary;
+        private final CompletableFuture<Collection<Product>> result;
+
+        private long charged;
+        private int filesLeft;
+        private int slicesRunning;
+
+        {
+            handlesToRead = new ArrayDeque<>();
+            resultStorage = new ResultStorageConcurrent();
+            dictionary = new ProductDictionary();
+            result = new CompletableFuture<>();
+        }
+
+        private Job(long number, String[] csvFiles, boolean containsHeaders, char delimiter, int priority) {
+            this.number = number;
+            this.containsHeaders = containsHeaders;
+            this.delimiter = delimiter;
+            this.priority = priority;
+
+            this.filesToOpen = new ArrayDeque<>(Arrays.asList(csvFiles));
+            this.filesLeft = csvFiles.length;
+        }
+
+        // Failed job isn't read any further
+        private boolean hasWork() {
+            return !this.result.isDone() && (!this.handlesToRead.isEmpty() || !this.filesToOpen.isEmpty());
+        }
+
+        // Null file name for a handle which is already open
+        private Slice nextSlice() {
+            this.slicesRunning++;
+
+            FileHandle fileHandle = this.handlesToRead.poll();
+            if (fileHandle != null)
+                return new Slice(this, fileHandle, null);
+
+            return new Slice(this, new FileHandleCsv(this.containsHeaders, this.delimiter, chunkSize, this.resultStorage.getPriceCutoff(), this.dictionary),
+                    this.filesToOpen.poll());
+        }
+
+        // Handles of a job which is over are never read to their end
+        private void closeHandles() {
+            FileHandle fileHandle;
+            while ((fileHandle = this.handlesToRead.poll()) != null)
+                fileHandle.close();
+        }
+    }
+
+    private static class Slice {
+        private final Job job;
+        private final FileHandle fileHandle;
+        private final String fileName;
+
+        private Slice(Job job, FileHandle fileHandle, String fileName) {
+            this.job = job;
+            this.fileHandle = fileHandle;
+            this.fileName = fileName;
+        }
+    }
+
+    public static final int defaultPriority = 10;
+
+    private static final int chunkSize = 1000;
+    private static final long sliceNanos = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final List<Job> jobs;
+    private final List<Thread> threads;
+    private long jobsSubmitted;
+    private boolean closed;
+
+    {
+        jobs = new ArrayList<>();
+        threads = new ArrayList<>();
+    }
+
+    public JobScheduler(int threadsCount) {
+        if (threadsCount <= 0)
+            throw new IllegalArgumentException("Scheduler needs at least one thread, but " + threadsCount + " were given");
+
+        for (int i = 0; i < threadsCount; i++) {
+            Thread thread = new Thread(this::work, "jobScheduler-" + i);
+            thread.setDaemon(true);
+            this.threads.add(thread);
+            thread.start();
+        }
+    }
+
+    public JobScheduler() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    // Result is the top-K of the files, a job of a higher priority gets proportionally more time while others run
+    public synchronized Future<Collection<Product>> submit(String[] csvFiles, boolean containsHeaders, char delimiter, int priority) {
+        if (priority <= 0)
+            throw new IllegalArgumentException("Priority of a job has to be positive, but it's " + priority);
+        if (this.closed)
+            throw new IllegalStateException("Scheduler is closed");
+
+        Job job = new Job(++this.jobsSubmitted, csvFiles, containsHeaders, delimiter, priority);
+        job.charged = this.jobs.stream().mapToLong(running -> running.charged).min().orElse(0);
+        if (job.filesLeft == 0) {
+            job.result.complete(List.of());
+            return job.result;
+        }
+
+        this.jobs.add(job);
+        this.notifyAll();
+        log.info("Job {} of {} files with priority {} was submitted, {} jobs are running", job.number, csvFiles.length, priority, this.jobs.size());
+
+        return job.result;
+    }
+
+    public Future<Collection<Product>> submit(String[] csvFiles, boolean containsHeaders, char delimiter) {
+        return this.submit(csvFiles, containsHeaders, delimiter, defaultPriority);
+    }
+
+    private void work() {
+        Slice slice;
+        while ((slice = this.take()) != null) {
+            long began = System.nanoTime();
+            try {
+                this.read(slice);
+            }
+            catch (RuntimeException e) {
+                log.error("Job {} failed in file {}", slice.job.number, slice.fileHandle.getFileName(), e);
+                slice.job.result.completeExceptionally(e);
+            }
+            this.giveBack(slice, System.nanoTime() - began);
+        }
+    }
+
+    // Null when the scheduler is closed
+    private synchronized Slice take() {
+        while (!this.closed) {
+            Job next = null;
+            for (Job job : this.jobs) {
+                if (job.hasWork() && (next == null || job.charged < next.charged))
+                    next = job;
+            }
+
+            if (next != null)
+                return next.nextSlice();
+
+            try {
+                this.wait();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private void read(Slice slice) {
+        if (slice.fileName != null)
+            slice.fileHandle.setFileName(slice.fileName);
+
+        ResultStorage resultStorage = slice.job.resultStorage;
+        long deadline = System.nanoTime() + sliceNanos;
+
+        Optional<List<Product>> products;
+        while ((products = slice.fileHandle.getProducts()).isPresent()) {
+            for (Product product : products.get())
+                resultStorage.handle(product);
+
+            if (System.nanoTime() - deadline >= 0)
+                break;
+        }
+    }
+
+    private synchronized void giveBack(Slice slice, long elapsedNanos) {
+        Job job = slice.job;
+        job.slicesRunning--;
+        job.charged += elapsedNanos * defaultPriority / job.priority;
+
+        // Handle of a failed job is closed even if its slice didn't fail itself
+        FileHandle fileHandle = slice.fileHandle;
+        if (fileHandle.isActive() && !job.result.isDone())
+            job.handlesToRead.offer(fileHandle);
+        else {
+            fileHandle.close();
+            job.filesLeft--;
+            job.resultStorage.addRead(fileHandle.getLines());
+            Metrics.get().fileRead(fileHandle.getFileName(), fileHandle.getLines() + fileHandle.getLinesRejected(), fileHandle.getBytes());
+        }
+
+        // Failed job is done as soon as its last slice is back
+        if (job.result.isDone() && job.slicesRunning == 0)
+            this.remove(job);
+        else if (job.filesLeft == 0 && job.slicesRunning == 0) {
+            job.resultStorage.setStopped();
+            job.result.complete(job.resultStorage.getResult());
+            this.remove(job);
+            log.info("Job {} is done, {} jobs are running", job.number, this.jobs.size());
+        }
+
+        this.notifyAll();
+    }
+
+    private void remove(Job job) {
+        this.jobs.remove(job);
+        job.closeHandles();
+        job.resultStorage.close();
+    }
+
+    // Jobs which aren't done yet fail, handles of running slices are closed as they are given back
+    @Override
+    public void close() {
+        synchronized (this) {
+            this.closed = true;
+            for (Job job : this.jobs) {
+                job.result.completeExceptionally(new IllegalStateException("Scheduler is closed"));
+                job.closeHandles();
+            }
+            this.jobs.clear();
+            this.notifyAll();
+        }
+
+        // Interrupted close leaves the rest of the threads to finish their slices by themselves
+        try {
+            for (Thread thread : this.threads)
+                thread.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
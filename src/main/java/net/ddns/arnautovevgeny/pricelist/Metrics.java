@@ -0,0 +1,328 @@
+package net.ddns.arnautovevgeny.pricelist;
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Collectors;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+// Counters of every stage for the whole process, published over JMX
+// Recording is done by striped adders, so the hot path never takes a lock
+// Counts by file are kept for the last files only, a daemon or a watcher reads new files for as long as it lives
+@Slf4j
+public class Metrics implements MetricsMXBean {
+    // Live values of one run, the run stops being watched when it's closed, so runs going at once don't hide each other
+    static class Watch implements AutoCloseable {
+        private final PriceCutoff priceCutoff;
+        private final IntSupplier producersActive;
+        private final IntSupplier consumersActive;
+
+        private Watch(PriceCutoff priceCutoff, IntSupplier producersActive, IntSupplier consumersActive) {
+            this.priceCutoff = priceCutoff;
+            this.producersActive = producersActive;
+            this.consumersActive = consumersActive;
+        }
+
+        @Override
+        public void close() {
+            metrics.watches.remove(this);
+        }
+    }
+
+    // Counts by file don't take a lock, the oldest file is evicted apart from the map by the order files came in
+    private static class LastFiles {
+        private final ConcurrentMap<String, LongAdder> byFile = new ConcurrentHashMap<>();
+        private final Queue<String> fileNames = new ConcurrentLinkedQueue<>();
+
+        private void add(String fileName, long count) {
+            LongAdder adder = this.byFile.get(fileName);
+            if (adder == null) {
+                LongAdder added = new LongAdder();
+                adder = this.byFile.putIfAbsent(fileName, added);
+                if (adder == null) {
+                    adder = added;
+                    this.fileNames.offer(fileName);
+                    this.evict();
+                }
+            }
+            adder.add(count);
+        }
+
+        private void evict() {
+            String eldest;
+            while (this.byFile.size() > filesTracked && (eldest = this.fileNames.poll()) != null)
+                this.byFile.remove(eldest);
+        }
+    }
+
+    private static final String objectName = "net.ddns.arnautovevgeny.pricelist:type=Metrics";
+    private static final int filesTracked = 1024;
+    private static final Metrics metrics = new Metrics();
+
+    private final LongAdder filesRead;
+    private final LongAdder rowsRead;
+    private final LongAdder bytesRead;
+    private final LastFiles rowsReadByFile;
+    private final LastFiles bytesReadByFile;
+
+    private final LongAdder rowsMalformed;
+    private final LastFiles rowsMalformedByFile;
+    private final ConcurrentMap<String, LongAdder> rowsMalformedByReason;
+
+    private final LongAdder chunksParsed;
+    private final LongAdder parseNanosTotal;
+    private final LongAccumulator parseNanosMax;
+
+    private final LongAdder producersWaitNanos;
+    private final LongAdder consumersWaitNanos;
+
+    private final LongAdder shrinkTotalCount;
+    private final LongAdder shrinkTotalNanos;
+    private final LongAdder shrinkTotalEvicted;
+    private final LongAdder shrinkByIdNanos;
+    private final LongAdder shrinkByIdEvicted;
+
+    private final Set<Watch> watches;
+
+    {
+        filesRead = new LongAdder();
+        rowsRead = new LongAdder();
+        bytesRead = new LongAdder();
+        rowsReadByFile = new LastFiles();
+        bytesReadByFile = new LastFiles();
+
+        rowsMalformed = new LongAdder();
+        rowsMalformedByFile = new LastFiles();
+        rowsMalformedByReason = new ConcurrentHashMap<>();
+
+        chunksParsed = new LongAdder();
+        parseNanosTotal = new LongAdder();
+        parseNanosMax = new LongAccumulator(Math::max, 0);
+
+        producersWaitNanos = new LongAdder();
+        consumersWaitNanos = new LongAdder();
+
+        shrinkTotalCount = new LongAdder();
+        shrinkTotalNanos = new LongAdder();
+        shrinkTotalEvicted = new LongAdder();
+        shrinkByIdNanos = new LongAdder();
+        shrinkByIdEvicted = new LongAdder();
+
+        watches = ConcurrentHashMap.newKeySet();
+    }
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, new ObjectName(objectName));
+        } catch (JMException e) {
+            log.warn("Metrics couldn't be published over JMX", e);
+        }
+    }
+
+    private Metrics() {
+    }
+
+    public static Metrics get() {
+        return metrics;
+    }
+
+    Watch watch(PriceCutoff priceCutoff) {
+        return this.watch(priceCutoff, () -> 0, () -> 0);
+    }
+
+    Watch watch(PriceCutoff priceCutoff, IntSupplier producersActive, IntSupplier consumersActive) {
+        Watch watch = new Watch(priceCutoff, producersActive, consumersActive);
+        this.watches.add(watch);
+        return watch;
+    }
+
+    // Once per file or segment when it's over
+    void fileRead(String fileName, long rows, long bytes) {
+        this.filesRead.increment();
+        this.rowsRead.add(rows);
+        this.bytesRead.add(bytes);
+        this.rowsReadByFile.add(fileName, rows);
+        this.bytesReadByFile.add(fileName, bytes);
+    }
+
+    // Once per file or segment when it's over, counts go by the ordinal of a reason
+    void rowsMalformed(String fileName, long[] byReason) {
+        long malformed = 0;
+        for (RejectedRows.Reason reason : RejectedRows.Reason.values()) {
+            long count = byReason[reason.ordinal()];
+            if (count != 0)
+                this.rowsMalformedByReason.computeIfAbsent(reason.name(), name -> new LongAdder()).add(count);
+            malformed += count;
+        }
+
+        if (malformed != 0) {
+            this.rowsMalformed.add(malformed);
+            this.rowsMalformedByFile.add(fileName, malformed);
+        }
+    }
+
+    // Row of unknown file
+    void rowMalformed(RejectedRows.Reason reason) {
+        this.rowsMalformed.increment();
+        this.rowsMalformedByReason.computeIfAbsent(reason.name(), name -> new LongAdder()).increment();
+    }
+
+    void chunkParsed(long nanos) {
+        this.chunksParsed.increment();
+        this.parseNanosTotal.add(nanos);
+        this.parseNanosMax.accumulate(nanos);
+    }
+
+    void producerWaited(long nanos) {
+        this.producersWaitNanos.add(nanos);
+    }
+
+    void consumerWaited(long nanos) {
+        this.consumersWaitNanos.add(nanos);
+    }
+
+    void shrunkTotal(long nanos, int evicted) {
+        this.shrinkTotalCount.increment();
+        this.shrinkTotalNanos.add(nanos);
+        this.shrinkTotalEvicted.add(evicted);
+    }
+
+    void shrunkById(long nanos) {
+        this.shrinkByIdNanos.add(nanos);
+    }
+
+    void evictedTotal() {
+        this.shrinkTotalEvicted.increment();
+    }
+
+    void evictedById() {
+        this.shrinkByIdEvicted.increment();
+    }
+
+    private static Map<String, Long> snapshot(Map<String, LongAdder> byFile) {
+        Map<String, Long> snapshot = new TreeMap<>();
+        byFile.forEach((fileName, adder) -> snapshot.put(fileName, adder.sum()));
+        return snapshot;
+    }
+
+    @Override
+    public long getFilesRead() {
+        return this.filesRead.sum();
+    }
+
+    @Override
+    public long getRowsRead() {
+        return this.rowsRead.sum();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return this.bytesRead.sum();
+    }
+
+    @Override
+    public Map<String, Long> getRowsReadByFile() {
+        return snapshot(this.rowsReadByFile.byFile);
+    }
+
+    @Override
+    public Map<String, Long> getBytesReadByFile() {
+        return snapshot(this.bytesReadByFile.byFile);
+    }
+
+    @Override
+    public long getRowsMalformed() {
+        return this.rowsMalformed.sum();
+    }
+
+    @Override
+    public Map<String, Long> getRowsMalformedByFile() {
+        return snapshot(this.rowsMalformedByFile.byFile);
+    }
+
+    @Override
+    public Map<String, Long> getRowsMalformedByReason() {
+        return snapshot(this.rowsMalformedByReason);
+    }
+
+    @Override
+    public long getChunksParsed() {
+        return this.chunksParsed.sum();
+    }
+
+    @Override
+    public long getParseNanosTotal() {
+        return this.parseNanosTotal.sum();
+    }
+
+    @Override
+    public long getParseNanosMax() {
+        return this.parseNanosMax.get();
+    }
+
+    @Override
+    public long getProducersWaitNanos() {
+        return this.producersWaitNanos.sum();
+    }
+
+    @Override
+    public long getConsumersWaitNanos() {
+        return this.consumersWaitNanos.sum();
+    }
+
+    @Override
+    public long getShrinkTotalCount() {
+        return this.shrinkTotalCount.sum();
+    }
+
+    @Override
+    public long getShrinkTotalNanos() {
+        return this.shrinkTotalNanos.sum();
+    }
+
+    @Override
+    public long getShrinkTotalEvicted() {
+        return this.shrinkTotalEvicted.sum();
+    }
+
+    @Override
+    public long getShrinkByIdNanos() {
+        return this.shrinkByIdNanos.sum();
+    }
+
+    @Override
+    public long getShrinkByIdEvicted() {
+        return this.shrinkByIdEvicted.sum();
+    }
+
+    // One per run which has a cutoff already
+    @Override
+    public String getPriceCutoff() {
+        String priceCutoffs = this.watches.stream()
+                .mapToInt(watch -> watch.priceCutoff.get())
+                .filter(priceCutoff -> priceCutoff != Integer.MAX_VALUE)
+                .sorted()
+                .mapToObj(Price::toString)
+                .collect(Collectors.joining(", "));
+
+        return priceCutoffs.isEmpty() ? "none" : priceCutoffs;
+    }
+
+    @Override
+    public int getProducersActive() {
+        return this.watches.stream().mapToInt(watch -> watch.producersActive.getAsInt()).sum();
+    }
+
+    @Override
+    public int getConsumersActive() {
+        return this.watches.stream().mapToInt(watch -> watch.consumersActive.getAsInt()).sum();
+    }
+}
@@ -0,0 +1,32 @@
+package net.ddns.arnautovevgeny.pricelist;
+
+import java.util.Map;
+
+public interface MetricsMXBean {
+    long getFilesRead();
+    long getRowsRead();
+    long getBytesRead();
+    Map<String, Long> getRowsReadByFile();
+    Map<String, Long> getBytesReadByFile();
+
+    long getRowsMalformed();
+    Map<String, Long> getRowsMalformedByFile();
+    Map<String, Long> getRowsMalformedByReason();
+
+    long getChunksParsed();
+    long getParseNanosTotal();
+    long getParseNanosMax();
+
+    long getProducersWaitNanos();
+    long getConsumersWaitNanos();
+
+    long getShrinkTotalCount();
+    long getShrinkTotalNanos();
+    long getShrinkTotalEvicted();
+    long getShrinkByIdNanos();
+    long getShrinkByIdEvicted();
+
+    String getPriceCutoff();
+    int getProducersActive();
+    int getConsumersActive();
+}
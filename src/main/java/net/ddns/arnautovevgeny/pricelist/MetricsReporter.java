@@ -0,0 +1,63 @@
+package net.ddns.arnautovevgeny.pricelist;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.TimeUnit;
+
+// Prints what was done since the previous report
+@Slf4j
+public class MetricsReporter implements Runnable {
+    private final Metrics metrics;
+
+    private long rowsBefore;
+    private long bytesBefore;
+    private long chunksBefore;
+    private long parseNanosBefore;
+    private long producersWaitBefore;
+    private long consumersWaitBefore;
+    private long evictedBefore;
+
+    public MetricsReporter(Metrics metrics) {
+        this.metrics = metrics;
+
+        this.rowsBefore = metrics.getRowsRead();
+        this.bytesBefore = metrics.getBytesRead();
+        this.chunksBefore = metrics.getChunksParsed();
+        this.parseNanosBefore = metrics.getParseNanosTotal();
+        this.producersWaitBefore = metrics.getProducersWaitNanos();
+        this.consumersWaitBefore = metrics.getConsumersWaitNanos();
+        this.evictedBefore = metrics.getShrinkTotalEvicted() + metrics.getShrinkByIdEvicted();
+    }
+
+    private static long millis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    @Override
+    public void run() {
+        long rows = this.metrics.getRowsRead();
+        long bytes = this.metrics.getBytesRead();
+        long chunks = this.metrics.getChunksParsed();
+        long parseNanos = this.metrics.getParseNanosTotal();
+        long producersWait = this.metrics.getProducersWaitNanos();
+        long consumersWait = this.metrics.getConsumersWaitNanos();
+        long evicted = this.metrics.getShrinkTotalEvicted() + this.metrics.getShrinkByIdEvicted();
+
+        long chunksParsed = chunks - this.chunksBefore;
+        log.info("Read {} rows, {} bytes; parsed {} chunks, {} us per chunk; waited {} ms by producers, {} ms by consumers; "
+                        + "evicted {}; cutoff {}; {} producers and {} consumers active",
+                rows - this.rowsBefore, bytes - this.bytesBefore,
+                chunksParsed, chunksParsed == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros((parseNanos - this.parseNanosBefore) / chunksParsed),
+                millis(producersWait - this.producersWaitBefore), millis(consumersWait - this.consumersWaitBefore),
+                evicted - this.evictedBefore, this.metrics.getPriceCutoff(),
+                this.metrics.getProducersActive(), this.metrics.getConsumersActive());
+
+        this.rowsBefore = rows;
+        this.bytesBefore = bytes;
+        this.chunksBefore = chunks;
+        this.parseNanosBefore = parseNanos;
+        this.producersWaitBefore = producersWait;
+        this.consumersWaitBefore = consumersWait;
+        this.evictedBefore = evicted;
+    }
+}
@@ -0,0 +1,165 @@
+package net.ddns.arnautovevgeny.pricelist;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+
+// Prices are kept as an exact amount of cents, float can't hold values like 99999.99
+public final class Price {
+    private static final int centsInUnit = 100;
+    private static final int fractionDigits = 2;
+    // Any more cents or any bigger id don't fit into an int even with a sign
+    private static final long maxMagnitude = 1L << 31;
+
+    // Result of a checked parse which has no price
+    static final long invalid = Long.MIN_VALUE;
+    // Result of a checked parse which has no id, it's never mistaken for a missing price
+    static final long invalidId = Long.MAX_VALUE;
+
+    private Price() {
+    }
+
+    public static int ofFloat(float price) {
+        return toCents(Math.round((double) price * centsInUnit));
+    }
+
+    public static float toFloat(int priceInCents) {
+        return (float) priceInCents / centsInUnit;
+    }
+
+    public static int parse(String price) {
+        long priceInCents = parseChecked(price);
+        if (priceInCents == invalid)
+            throw new NumberFormatException("There is no price in \"" + price + "\"");
+
+        return (int) priceInCents;
+    }
+
+    // Same as parse, but invalid instead of an exception, so a dirty feed costs about as much as a clean one
+    static long parseChecked(String price) {
+        byte[] bytes = price.getBytes(StandardCharsets.UTF_8);
+        return parseChecked(bytes, 0, bytes.length);
+    }
+
+    // Every reader parses prices right on its bytes here, so all of them take and reject the same values
+    // Whitespace around is trimmed, fraction digits beyond cents are rounded half up, only an exponent takes the slow way
+    static long parseChecked(byte[] bytes, int start, int end) {
+        while (start < end && isWhitespace(bytes[start]))
+            start++;
+        while (end > start && isWhitespace(bytes[end - 1]))
+            end--;
+
+        int signed = start;
+        boolean negative = start < end && bytes[start] == '-';
+        if (start < end && (negative || bytes[start] == '+'))
+            start++;
+
+        long cents = 0;
+        int scale = -1;
+        int digits = 0;
+        boolean roundUp = false;
+        for (int i = start; i < end; i++) {
+            byte current = bytes[i];
+            if (current == '.' && scale < 0)
+                scale = 0;
+            else if (current >= '0' && current <= '9') {
+                digits++;
+                if (scale < fractionDigits) {
+                    cents = cents * 10 + (current - '0');
+                    if (cents > maxMagnitude)
+                        return invalid;
+                    if (scale >= 0)
+                        scale++;
+                }
+                else if (scale == fractionDigits) {
+                    roundUp = current >= '5';
+                    scale++;
+                }
+            }
+            else if ((current == 'e' || current == 'E') && digits != 0)
+                return parseSlow(new String(bytes, signed, end - signed, StandardCharsets.ISO_8859_1));
+            else
+                return invalid;
+        }
+
+        if (digits == 0)
+            return invalid;
+
+        for (int i = Math.max(scale, 0); i < fractionDigits; i++)
+            cents *= 10;
+        if (roundUp)
+            cents++;
+
+        return checked(negative ? -cents : cents);
+    }
+
+    // Exponent form
+    private static long parseSlow(String price) {
+        try {
+            BigDecimal cents = new BigDecimal(price).movePointRight(fractionDigits).setScale(0, RoundingMode.HALF_UP);
+            return cents.intValueExact();
+        }
+        catch (NumberFormatException | ArithmeticException e) {
+            return invalid;
+        }
+    }
+
+    // Only ASCII whitespace, that's all a reader of bytes can tell without decoding them
+    private static boolean isWhitespace(byte value) {
+        return value >= 0 && Character.isWhitespace(value);
+    }
+
+    static long parseId(String id) {
+        byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+        return parseId(bytes, 0, bytes.length);
+    }
+
+    // Same as Integer.parseInt, but invalidId instead of an exception, ids of every reader are parsed here as well
+    static long parseId(byte[] bytes, int start, int end) {
+        boolean negative = start < end && bytes[start] == '-';
+        if (start < end && (negative || bytes[start] == '+'))
+            start++;
+        if (start == end)
+            return invalidId;
+
+        long id = 0;
+        for (int i = start; i < end; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9)
+                return invalidId;
+
+            id = id * 10 + digit;
+            if (id > maxMagnitude)
+                return invalidId;
+        }
+
+        id = negative ? -id : id;
+        return id > Integer.MAX_VALUE ? invalidId : id;
+    }
+
+    private static long checked(long cents) {
+        return cents < Integer.MIN_VALUE || cents > Integer.MAX_VALUE ? invalid : cents;
+    }
+
+    private static int toCents(long cents) {
+        if (checked(cents) == invalid)
+            throw new NumberFormatException("Price of " + cents + " cents is out of range");
+
+        return (int) cents;
+    }
+
+    public static String toString(int priceInCents) {
+        StringBuilder price = new StringBuilder(12);
+        if (priceInCents < 0)
+            price.append('-');
+
+        long cents = Math.abs((long) priceInCents);
+        price.append(cents / centsInUnit).append('.');
+
+        long fraction = cents % centsInUnit;
+        if (fraction < 10)
+            price.append('0');
+
+        return price.append(fraction).toString();
+    }
+}
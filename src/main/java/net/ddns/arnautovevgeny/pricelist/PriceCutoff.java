@@ -0,0 +1,30 @@
+package net.ddns.arnautovevgeny.pricelist;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+@Slf4j
+// Price of the last product which is certainly in the result, it only goes down
+public class PriceCutoff {
+    private final AtomicInteger priceInCents;
+
+    {
+        priceInCents = new AtomicInteger(Integer.MAX_VALUE);
+    }
+
+    public int get() {
+        return this.priceInCents.get();
+    }
+
+    public boolean rejects(int priceInCents) {
+        // Equal price could still win by name, condition, state or id
+        return priceInCents > this.priceInCents.get();
+    }
+
+    void tighten(int priceInCents) {
+        int previous = this.priceInCents.getAndAccumulate(priceInCents, Math::min);
+        if (priceInCents < previous)
+            log.debug("Price cutoff was tightened to {}", Price.toString(priceInCents));
+    }
+}
@@ -1,86 +1,446 @@
-package net.ddns.arnautovevgeny.pricelist;
-
-import lombok.Getter;
-import lombok.extern.slf4j.Slf4j;
-
-import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.Collection;
-import java.util.stream.Stream;
-
-@Slf4j
-public class PriceList {
-    @Getter
-    private Collection<Product> products;
-    private Path path;
-    private boolean includeHeaders;
-    private char delimiter;
-
-    public PriceList(Path path, boolean includeHeaders, char delimiter) {
-        this.path = path;
-        this.includeHeaders = includeHeaders;
-        this.delimiter = delimiter;
-    }
-
-    public static void main(String[] csvFiles) throws InterruptedException, IOException {
-        if (csvFiles.length != 0) {
-            Path path = Paths.get("result.csv");
-
-            PriceList priceList = new PriceList(path, false, ',');
-            priceList.processViaStreamAPI(csvFiles);
-            log.info("Result contains {} elements", priceList.getSize());
-
-            priceList.output();
-            log.info("Finished");
-        }
-        else
-            System.out.println("No files to proceed was specified");
-    }
-
-    public void processViaProducerConsumer(String[] csvFiles, boolean loadBalancer) throws InterruptedException {
-        try (TasksBroker tasksBroker = new TasksBroker(csvFiles, this.includeHeaders, this.delimiter)) {
-            tasksBroker.start(loadBalancer);
-
-            tasksBroker.awaitsTermination();
-
-            this.products = tasksBroker.getResult();
-        }
-    }
-
-    public void processViaStreamAPI(String[] csvFiles) {
-        String strDelimiter = "" + this.delimiter;
-        try (ResultStorage resultStorage = new ResultStorage()) {
-
-            Stream<Path> pathStream = Stream.of(csvFiles).parallel().map(file -> Paths.get(file));
-            Stream<String> lines = pathStream.flatMap(path -> {
-                try {
-                    Stream<String> linesOfFile = Files.lines(path);
-                    if (this.includeHeaders) {
-                        linesOfFile = linesOfFile.skip(1);
-                    }
-
-                    return linesOfFile;
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-                return Stream.empty();
-            });
-
-            lines.map(line -> new ProductFromStringArray(line.split(strDelimiter))).forEach(resultStorage::handle);
-            this.products = resultStorage.getResult();
-        }
-    }
-
-    public void output() throws IOException {
-        ResultOutput resultOutput = new ResultOutputCsv(path, includeHeaders, delimiter);
-        resultOutput.output(this.products);
-
-        log.info("Result was outputted to {}", path.toAbsolutePath());
-    }
-
-    public int getSize() {
-        return this.products.size();
-    }
-}
+package net.ddns.arnautovevgeny.pricelist;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+@Slf4j
+public class PriceList {
+    private static final int reduceChunkSize = 1000;
+    private static final long defaultDebounceMillis = 500;
+    private static final int serverThreads = 4;
+    private static final long workersAcceptMillis = 60000;
+    private static final long workersExchangeMillis = 600000;
+    private static final long daemonCloseMillis = 10000;
+    private static final long megabyte = 1 << 20;
+    // Options which a mode of a run can't take, such a run isn't started instead of silently dropping them
+    private static final Map<String, List<String>> unsupportedOptions = Map.of(
+            "--daemon", List.of("--columns", "--rejected", "--serve"),
+            "--worker", List.of("--columns", "--rejected", "--serve"),
+            "--watch", List.of("--columns", "--rejected"),
+            "--export", List.of("--columns", "--rejected", "--serve"),
+            "--rank", List.of("--columns", "--rejected", "--serve"),
+            "--workers", List.of("--columns", "--rejected", "--serve"),
+            "--state", List.of("--columns", "--rejected", "--serve"),
+            "--cache", List.of("--rejected", "--serve"));
+
+    @Getter
+    private Collection<Product> products;
+    private Path path;
+    private boolean includeHeaders;
+    private char delimiter;
+    @Setter
+    private SnapshotServer snapshotServer;
+    // Columns of the files read by producer-consumer, sorted merge and per-file cache, the default one follows includeHeaders
+    @Setter
+    private CsvSchema csvSchema;
+    // Sidecar for malformed rows of the files read by producer-consumer, they are only counted without it
+    @Setter
+    private Path rejectedRowsPath;
+    // Files of the last producer-consumer run which couldn't be read to their end
+    private Set<String> failedFiles;
+
+    public PriceList(Path path, boolean includeHeaders, char delimiter) {
+        this.path = path;
+        this.includeHeaders = includeHeaders;
+        CsvRowReader.delimiterByte(delimiter);
+        this.delimiter = delimiter;
+        this.csvSchema = CsvSchema.of(includeHeaders);
+    }
+
+    public static void main(String[] args) throws InterruptedException, IOException {
+        // Options go before the files: --state <file> for incremental mode, --cache <directory> for per-file cache,
+        // --watch <directories separated by path separator> with optional --debounce <millis> for watch mode,
+        // --serve <port> to query the current result over http while it's being built,
+        // --workers <count> to split files between worker processes, they are started locally unless --coordinate <port> is given,
+        // then workers are started elsewhere by --worker <coordinator host:port> and read files from the same shared directory,
+        // --export <memory budget in megabytes> writes the whole catalogue ordered by price into catalogue.csv,
+        // --rank <rankings, see RankingSpec> evaluates all of them in a single scan, every one into <its name>.csv,
+        // --columns <positions or header names of id, name, condition, state and price> for files of other layout,
+        // --rejected <file> keeps malformed rows there instead of only counting them,
+        // --daemon <port file> keeps this JVM for jobs which are submitted by JobClient instead of running them here,
+        // files of ResultOutputBinary format are recognized by their extension
+        Map<String, String> options = new HashMap<>();
+        int first = 0;
+        for (; first + 1 < args.length && args[first].startsWith("--"); first += 2)
+            options.put(args[first], args[first + 1]);
+        String[] csvFiles = Arrays.copyOfRange(args, first, args.length);
+
+        Optional<String> unsupported = unsupportedOptions.entrySet().stream()
+                .filter(mode -> options.containsKey(mode.getKey()))
+                .flatMap(mode -> mode.getValue().stream().filter(options::containsKey).map(option -> mode.getKey() + " can't be combined with " + option))
+                .findFirst();
+        if (unsupported.isPresent()) {
+            System.out.println(unsupported.get());
+            return;
+        }
+
+        // Server is stopped once the result is written, its dispatcher would keep a finished run alive
+        SnapshotServer server = options.containsKey("--serve")
+                ? new SnapshotServer(new InetSocketAddress(Integer.parseInt(options.get("--serve"))), serverThreads, false, ',')
+                : null;
+        try (SnapshotServer snapshotServer = server) {
+            if (options.containsKey("--daemon")) {
+                try (JobDaemon jobDaemon = new JobDaemon(Paths.get(options.get("--daemon")))) {
+                    // Daemon is closed by this thread once serve() returns, the hook only waits for that
+                    Thread serving = Thread.currentThread();
+                    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                        try {
+                            jobDaemon.stop();
+                            serving.join(daemonCloseMillis);
+                        }
+                        catch (IOException e) {
+                            log.warn("Daemon wasn't properly stopped: {}", e.toString());
+                        }
+                        catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }));
+
+                    jobDaemon.serve();
+                }
+            }
+            else if (options.containsKey("--submit"))
+                System.out.println("Jobs are submitted by java -cp <class path> " + JobClient.class.getName() + " --submit <port file> ...");
+            else if (options.containsKey("--worker")) {
+                String token = System.getenv(ShardCoordinator.tokenVariable);
+                if (token == null) {
+                    System.out.println("Worker needs the token of its coordinator in " + ShardCoordinator.tokenVariable);
+                    return;
+                }
+
+                String[] coordinator = options.get("--worker").split(":");
+                new ShardWorker(new InetSocketAddress(coordinator[0], Integer.parseInt(coordinator[1])), token).work();
+            }
+            else if (options.containsKey("--watch")) {
+                List<Path> directories = Stream.of(options.get("--watch").split(File.pathSeparator)).map(Paths::get).collect(Collectors.toList());
+                long debounceMillis = Long.parseLong(options.getOrDefault("--debounce", Long.toString(defaultDebounceMillis)));
+
+                try (DirectoryWatcher directoryWatcher = new DirectoryWatcher(directories, Paths.get("result.csv"), false, ',', debounceMillis)) {
+                    if (snapshotServer != null)
+                        snapshotServer.setSource(directoryWatcher::getSnapshot);
+
+                    directoryWatcher.run();
+                }
+            }
+            else if (options.containsKey("--export") && csvFiles.length != 0) {
+                PriceList priceList = new PriceList(Paths.get("catalogue.csv"), false, ',');
+                long exported = priceList.exportCatalogue(csvFiles, Long.parseLong(options.get("--export")) * megabyte);
+                log.info("Catalogue of {} products was exported", exported);
+            }
+            else if (options.containsKey("--rank") && csvFiles.length != 0) {
+                PriceList priceList = new PriceList(Paths.get("result.csv"), false, ',');
+                priceList.rank(csvFiles, RankingSpec.parseAll(options.get("--rank")));
+                log.info("Finished");
+            }
+            else if (csvFiles.length != 0) {
+                Path path = Paths.get("result.csv");
+
+                // Files with columns looked up by names have a header
+                CsvSchema csvSchema = options.containsKey("--columns") ? CsvSchema.parse(options.get("--columns")) : null;
+                PriceList priceList = new PriceList(path, csvSchema != null && csvSchema.isByNames(), ',');
+                priceList.setSnapshotServer(snapshotServer);
+                if (csvSchema != null)
+                    priceList.setCsvSchema(csvSchema);
+                if (options.containsKey("--rejected"))
+                    priceList.setRejectedRowsPath(Paths.get(options.get("--rejected")));
+                boolean binaryFiles = Stream.of(csvFiles).allMatch(file -> file.endsWith(ResultOutputBinary.extension));
+                if (binaryFiles)
+                    priceList.processViaProducerConsumer(csvFiles, false, TasksBroker.Option.BINARY_FILES);
+                else if (options.containsKey("--workers"))
+                    priceList.processViaWorkers(csvFiles, Integer.parseInt(options.get("--workers")), options.get("--coordinate"));
+                else if (options.containsKey("--state"))
+                    priceList.processIncrementally(csvFiles, Paths.get(options.get("--state")));
+                else if (options.containsKey("--cache"))
+                    priceList.processViaCache(csvFiles, Paths.get(options.get("--cache")));
+                else if (snapshotServer != null || csvSchema != null || options.containsKey("--rejected"))
+                    priceList.processViaProducerConsumer(csvFiles, false);
+                else
+                    priceList.processViaStreamAPI(csvFiles);
+                log.info("Result contains {} elements", priceList.getSize());
+
+                priceList.output();
+                log.info("Finished");
+            }
+            else
+                System.out.println("No files to proceed was specified");
+        }
+    }
+
+    public void processViaProducerConsumer(String[] csvFiles, boolean loadBalancer, TasksBroker.Option... options) throws InterruptedException {
+        RejectedRows rejectedRows = this.openRejectedRows();
+        try (rejectedRows; TasksBroker tasksBroker = new TasksBroker(csvFiles, this.includeHeaders, this.delimiter, this.csvSchema, options)) {
+            if (rejectedRows != null)
+                tasksBroker.setRejectedRows(rejectedRows);
+            if (this.snapshotServer != null)
+                this.snapshotServer.setSource(tasksBroker::getSnapshot);
+
+            tasksBroker.start(loadBalancer);
+
+            tasksBroker.awaitsTermination();
+
+            this.products = tasksBroker.getResult();
+            this.failedFiles = tasksBroker.getFailedFiles();
+        }
+
+        if (this.snapshotServer != null) {
+            ResultSnapshot result = new ResultSnapshot(0, this.products);
+            this.snapshotServer.setSource(() -> result);
+        }
+    }
+
+    // Sidecar which can't be opened doesn't stop processing, malformed rows are still counted
+    private RejectedRows openRejectedRows() {
+        if (this.rejectedRowsPath == null)
+            return null;
+
+        try {
+            return new RejectedRows(this.rejectedRowsPath);
+        }
+        catch (IOException e) {
+            log.error("Rejected rows can't be kept in {}: {}", this.rejectedRowsPath, e.toString());
+            return null;
+        }
+    }
+
+    // Without a port of coordinator workers are started locally, otherwise they are expected to connect to it,
+    // the token shared with them is taken from the environment and is required for workers started elsewhere
+    public void processViaWorkers(String[] csvFiles, int workers, String coordinatorPort) throws IOException, InterruptedException {
+        String token = System.getenv(ShardCoordinator.tokenVariable);
+        if (token == null && coordinatorPort != null)
+            throw new IllegalArgumentException("Workers started elsewhere need the token shared with them in " + ShardCoordinator.tokenVariable);
+        if (token == null)
+            token = ShardCoordinator.newToken();
+
+        InetSocketAddress address = coordinatorPort == null
+                ? new InetSocketAddress(InetAddress.getLoopbackAddress(), 0)
+                : new InetSocketAddress(Integer.parseInt(coordinatorPort));
+
+        try (ShardCoordinator shardCoordinator = new ShardCoordinator(address, this.includeHeaders, this.delimiter, workersAcceptMillis,
+                workersExchangeMillis, token)) {
+            if (coordinatorPort == null)
+                shardCoordinator.spawnWorkers(workers);
+
+            this.products = shardCoordinator.process(csvFiles, workers);
+        }
+    }
+
+    // Files which aren't known to be sorted by price are checked to their end, an unsorted one makes all files be read
+    // by producer-consumer; files known to be sorted are read only as far as the result needs, unsorted ones give an undefined result
+    public void processViaSortedMerge(String[] csvFiles, boolean filesSorted) throws InterruptedException {
+        Optional<Collection<Product>> merged;
+        try (SortedFilesMerger merger = new SortedFilesMerger(csvFiles, this.includeHeaders, this.delimiter, this.csvSchema, filesSorted)) {
+            merged = merger.merge();
+        }
+
+        if (merged.isPresent())
+            this.products = merged.get();
+        else {
+            log.warn("Files aren't sorted by price, falling back to a full scan");
+            this.processViaProducerConsumer(csvFiles, false);
+        }
+    }
+
+    public void processViaSortedMerge(String[] csvFiles) throws InterruptedException {
+        this.processViaSortedMerge(csvFiles, false);
+    }
+
+    // Only files which aren't in the state yet are read, the rest is taken from the state,
+    // a file which couldn't be read to its end fails the run and the state isn't saved, so it's read again next time
+    public void processIncrementally(String[] csvFiles, Path statePath) throws InterruptedException, IOException {
+        Map<String, ResultState.FileStamp> inputFiles = new LinkedHashMap<>();
+        for (String csvFile : csvFiles) {
+            Path filePath = Paths.get(csvFile).toAbsolutePath().normalize();
+            inputFiles.put(filePath.toString(), ResultState.FileStamp.of(filePath));
+        }
+
+        ResultState state = ResultState.load(statePath).filter(loaded -> loaded.isReusableFor(inputFiles)).orElseGet(ResultState::empty);
+
+        String[] newFiles = inputFiles.keySet().stream().filter(file -> !state.getFiles().containsKey(file)).toArray(String[]::new);
+        log.info("{} files are taken from the state, {} new files to proceed", inputFiles.size() - newFiles.length, newFiles.length);
+
+        if (newFiles.length != 0) {
+            this.processViaProducerConsumer(newFiles, false);
+            if (!this.failedFiles.isEmpty())
+                throw new IOException("Files " + this.failedFiles + " couldn't be read to their end, the state isn't saved");
+            this.products = merge(List.of(state.getProducts(), this.products));
+        }
+        else
+            this.products = state.getProducts();
+
+        new ResultState(inputFiles, this.products).save(statePath);
+    }
+
+    // Unchanged files are served by their cached partial result, the rest are reduced one by one and cached,
+    // a file which couldn't be read to its end fails the run and is never cached
+    public void processViaCache(String[] csvFiles, Path cacheDirectory) throws IOException {
+        ResultCache resultCache = new ResultCache(cacheDirectory, this.includeHeaders, this.delimiter, this.csvSchema);
+        AtomicInteger cached = new AtomicInteger();
+
+        List<Collection<Product>> partialResults = Stream.of(csvFiles).parallel().map(csvFile -> {
+            try {
+                String file = Paths.get(csvFile).toAbsolutePath().normalize().toString();
+                ResultState.FileStamp stamp = ResultState.FileStamp.of(Paths.get(file));
+
+                Optional<Collection<Product>> partialResult = resultCache.get(file, stamp);
+                if (partialResult.isPresent()) {
+                    cached.incrementAndGet();
+                    return partialResult.get();
+                }
+
+                Collection<Product> reduced = this.reduce(file);
+                resultCache.put(file, stamp, reduced);
+                return reduced;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }).collect(Collectors.toList());
+
+        log.info("{} of {} files were served from the cache", cached.get(), csvFiles.length);
+        this.products = merge(partialResults);
+    }
+
+    private Collection<Product> reduce(String csvFile) throws IOException {
+        PriceCutoff priceCutoff = new PriceCutoff();
+        ResultStorageShard reduced = new ResultStorageShard(priceCutoff);
+
+        FileHandle fileHandle = new FileHandleCsv(this.includeHeaders, this.delimiter, this.csvSchema, reduceChunkSize, priceCutoff, new ProductDictionary());
+        fileHandle.setFileName(csvFile);
+
+        Optional<List<Product>> products;
+        while ((products = fileHandle.getProducts()).isPresent()) {
+            for (Product product : products.get())
+                reduced.handle(product);
+        }
+
+        if (fileHandle.isFailed())
+            throw new IOException("File " + csvFile + " couldn't be read to its end");
+
+        return new ArrayList<>(reduced.getResult());
+    }
+
+    static Collection<Product> merge(Collection<Collection<Product>> results) {
+        ResultStorageShard merged = new ResultStorageShard(new PriceCutoff());
+        for (Collection<Product> result : results) {
+            for (Product product : result)
+                merged.handle(product);
+        }
+
+        return new LinkedList<>(merged.getResult());
+    }
+
+    private Stream<String> linesOf(String[] csvFiles) {
+        Stream<Path> pathStream = Stream.of(csvFiles).parallel().map(file -> Paths.get(file));
+        return pathStream.flatMap(path -> {
+            try {
+                Stream<String> linesOfFile = Files.lines(path);
+                if (this.includeHeaders) {
+                    linesOfFile = linesOfFile.skip(1);
+                }
+
+                return linesOfFile;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return Stream.empty();
+        });
+    }
+
+    public void processViaStreamAPI(String[] csvFiles) {
+        String strDelimiter = "" + this.delimiter;
+        try (ResultStorage resultStorage = new ResultStorageConcurrent()) {
+            PriceCutoff priceCutoff = resultStorage.getPriceCutoff();
+            Metrics.Watch watch = Metrics.get().watch(priceCutoff);
+            try {
+                Stream<String> lines = this.linesOf(csvFiles);
+
+                lines.map(line -> line.split(strDelimiter))
+                        .filter(ProductFromStringArray::isWellFormed)
+                        .filter(values -> !priceCutoff.rejects(ProductFromStringArray.priceOf(values)))
+                        .map(ProductFromStringArray::new)
+                        .forEach(resultStorage::handle);
+                this.products = resultStorage.getResult();
+            }
+            finally {
+                watch.close();
+            }
+        }
+    }
+
+    // Nothing is shared between threads, every leaf keeps its own bounded result
+    public void processViaStreamCollector(String[] csvFiles) {
+        String strDelimiter = "" + this.delimiter;
+        this.products = this.linesOf(csvFiles)
+                .map(line -> line.split(strDelimiter))
+                .filter(ProductFromStringArray::isWellFormed)
+                .map(ProductFromStringArray::new)
+                .collect(new ProductsTopCollector());
+    }
+
+    // Products aren't kept, they go straight to the output file, spilled runs are kept next to it until the end
+    public long exportCatalogue(String[] csvFiles, long memoryBudgetBytes) throws IOException, InterruptedException {
+        Path spillDirectory = this.path.toAbsolutePath().getParent();
+        try (CatalogueExport catalogueExport = new CatalogueExport(csvFiles, this.includeHeaders, this.delimiter, memoryBudgetBytes, spillDirectory)) {
+            long exported = catalogueExport.export(new ResultOutputCsv(this.path, this.includeHeaders, this.delimiter));
+
+            log.info("Catalogue was outputted to {}", this.path.toAbsolutePath());
+            return exported;
+        }
+    }
+
+    // Every ranking goes into its own file next to the result, named after the ranking
+    public Map<String, List<Product>> rank(String[] csvFiles, List<RankingSpec> specs) throws IOException, InterruptedException {
+        Map<String, List<Product>> rankings = new GroupedRanking(csvFiles, this.includeHeaders, this.delimiter, specs).evaluate();
+
+        for (Map.Entry<String, List<Product>> ranking : rankings.entrySet()) {
+            Path rankingPath = this.path.toAbsolutePath().resolveSibling(ranking.getKey() + ".csv");
+            ResultOutput resultOutput = new ResultOutputCsv(rankingPath, this.includeHeaders, this.delimiter);
+            resultOutput.output(ranking.getValue());
+
+            log.info("Ranking {} was outputted to {}", ranking.getKey(), rankingPath);
+        }
+
+        return rankings;
+    }
+
+    // Files are read as one of the jobs sharing the threads of the scheduler
+    public void processViaScheduler(String[] csvFiles, JobScheduler jobScheduler, int priority) throws IOException, InterruptedException {
+        try {
+            this.products = jobScheduler.submit(csvFiles, this.includeHeaders, this.delimiter, priority).get();
+        }
+        catch (ExecutionException e) {
+            throw new IOException("Files can't be reduced", e.getCause());
+        }
+    }
+
+    // Limits other than the ones of the storages are kept by a single ranking without groups
+    public void processWithLimits(String[] csvFiles, int limitTotal, int limitById) throws IOException, InterruptedException {
+        RankingSpec spec = new RankingSpec("result", RankingSpec.GroupBy.NONE, limitTotal, limitById);
+        this.products = new GroupedRanking(csvFiles, this.includeHeaders, this.delimiter, List.of(spec)).evaluate().get(spec.getName());
+    }
+
+    public void output() throws IOException {
+        ResultOutput resultOutput = new ResultOutputCsv(path, includeHeaders, delimiter);
+        resultOutput.output(this.products);
+
+        log.info("Result was outputted to {}", path.toAbsolutePath());
+    }
+
+    public int getSize() {
+        return this.products.size();
+    }
+}
@@ -1,68 +1,92 @@
-package net.ddns.arnautovevgeny.pricelist;
-
-import de.siegmar.fastcsv.reader.CsvRow;
-import lombok.EqualsAndHashCode;
-import lombok.ToString;
-
-@EqualsAndHashCode
-@ToString
-public class Product implements Comparable<Product> {
-    interface ProductCSVCreator {
-        Product create(CsvRow row);
-    }
-
-    private int id;
-    private String name;
-    private String condition;
-    private String state;
-    private float price;
-
-    public Product(int id, String name, String condition, String state, float price) {
-        this.id = id;
-        this.name = name;
-        this.condition = condition;
-        this.state = state;
-        this.price = price;
-    }
-
-    public final int getId() {
-        return this.id;
-    }
-
-    public final String getName() {
-        return this.name;
-    }
-
-    public final String getCondition() {
-        return this.condition;
-    }
-
-    public final String getState() {
-        return this.state;
-    }
-
-    public final float getPrice() {
-        return this.price;
-    }
-
-    @Override
-    public final int compareTo(Product o) {
-        int priceCompared = Float.compare(this.price, o.getPrice());
-        if (priceCompared != 0)
-            return priceCompared;
-
-        int nameCompared = this.name.compareTo(o.getName());
-        if (nameCompared != 0)
-            return nameCompared;
-
-        int conditionCompared = this.condition.compareTo(o.getCondition());
-        if (conditionCompared != 0)
-            return conditionCompared;
-
-        int stateCompared = this.state.compareTo(o.getState());
-        if (stateCompared != 0)
-            return stateCompared;
-
-        return Integer.compare(this.id, o.getId());
-    }
-}
+package net.ddns.arnautovevgeny.pricelist;
+
+import lombok.EqualsAndHashCode;
+import lombok.ToString;
+
+@EqualsAndHashCode
+@ToString
+public class Product implements Comparable<Product> {
+    private int id;
+    private String name;
+    private String condition;
+    private String state;
+    private int priceInCents;
+
+    // Price in the high half and id in the low one
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private long sortKey;
+
+    public Product(int id, String name, String condition, String state, int priceInCents) {
+        this.id = id;
+        this.name = name;
+        this.condition = condition;
+        this.state = state;
+        this.priceInCents = priceInCents;
+
+        this.sortKey = ((long) priceInCents << 32) | (id & 0xFFFFFFFFL);
+    }
+
+    public Product(int id, String name, String condition, String state, float price) {
+        this(id, name, condition, state, Price.ofFloat(price));
+    }
+
+    public final int getId() {
+        return this.id;
+    }
+
+    public final String getName() {
+        return this.name;
+    }
+
+    public final String getCondition() {
+        return this.condition;
+    }
+
+    public final String getState() {
+        return this.state;
+    }
+
+    public final float getPrice() {
+        return Price.toFloat(this.priceInCents);
+    }
+
+    public final int getPriceInCents() {
+        return this.priceInCents;
+    }
+
+    public final long getSortKey() {
+        return this.sortKey;
+    }
+
+    @Override
+    public final int compareTo(Product o) {
+        if (this == o)
+            return 0;
+
+        // Different prices are resolved by the key alone, strings are compared only on an exact price tie
+        if (((this.sortKey ^ o.sortKey) >>> 32) != 0)
+            return Long.compare(this.sortKey, o.sortKey);
+
+        // Strings from the same dictionary are the same instance, so equal ones aren't compared char by char
+        if (this.name != o.name) {
+            int nameCompared = this.name.compareTo(o.getName());
+            if (nameCompared != 0)
+                return nameCompared;
+        }
+
+        if (this.condition != o.condition) {
+            int conditionCompared = this.condition.compareTo(o.getCondition());
+            if (conditionCompared != 0)
+                return conditionCompared;
+        }
+
+        if (this.state != o.state) {
+            int stateCompared = this.state.compareTo(o.getState());
+            if (stateCompared != 0)
+                return stateCompared;
+        }
+
+        return Integer.compare(this.id, o.getId());
+    }
+}
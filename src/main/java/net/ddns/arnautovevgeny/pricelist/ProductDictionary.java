@@ -0,0 +1,20 @@
+package net.ddns.arnautovevgeny.pricelist;
+
+// Strings shared by products of a run: conditions and states take a handful of values, names repeat across files
+// Products of the same value share the same instance, so it's retained once and compared by reference
+class ProductDictionary {
+    private static final int valuesCapacity = 256;
+    private static final int valueMaxLength = 64;
+    private static final int namesCapacity = 1 << 14;
+    private static final int nameMaxLength = 128;
+
+    final StringInterner conditions;
+    final StringInterner states;
+    final StringInterner names;
+
+    {
+        conditions = new StringInterner(valuesCapacity, valueMaxLength);
+        states = new StringInterner(valuesCapacity, valueMaxLength);
+        names = new StringInterner(namesCapacity, nameMaxLength);
+    }
+}
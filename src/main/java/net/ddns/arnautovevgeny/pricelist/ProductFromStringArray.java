@@ -1,12 +1,33 @@
-package net.ddns.arnautovevgeny.pricelist;
-
-public class ProductFromStringArray extends Product {
-    public ProductFromStringArray(String[] values) {
-        super(Integer.parseInt(values[0]),
-                values[1],
-                values[2],
-                values[3],
-                Float.parseFloat(values[4])
-                );
-    }
-}
+package net.ddns.arnautovevgeny.pricelist;
+
+public class ProductFromStringArray extends Product {
+    public ProductFromStringArray(String[] values) {
+        super(Integer.parseInt(values[0]),
+                values[1],
+                values[2],
+                values[3],
+                priceOf(values)
+                );
+    }
+
+    static int priceOf(String[] values) {
+        return Price.parse(values[4]);
+    }
+
+    // Malformed values are counted by reason and skipped instead of failing the stream
+    static boolean isWellFormed(String[] values) {
+        RejectedRows.Reason reason = null;
+        if (values.length < 5)
+            reason = RejectedRows.Reason.MISSING_COLUMNS;
+        else if (Price.parseChecked(values[4]) == Price.invalid)
+            reason = RejectedRows.Reason.BAD_PRICE;
+        else if (Price.parseId(values[0]) == Price.invalidId)
+            reason = RejectedRows.Reason.BAD_ID;
+
+        if (reason == null)
+            return true;
+
+        Metrics.get().rowMalformed(reason);
+        return false;
+    }
+}
@@ -0,0 +1,177 @@
+package net.ddns.arnautovevgeny.pricelist;
+
+// Open addressing by a primitive id, every id keeps its products in a sorted array of at most limitById
+// Single writer only, no synchronization inside
+class ProductsById {
+    private static final int initialCapacity = 16;
+    private static final int initialSlotSize = 2;
+
+    private final int limitById;
+
+    private int[] keys;
+    private Product[][] slots;
+    private int[] sizes;
+    private int count;
+    private int mask;
+
+    ProductsById(int limitById) {
+        this.limitById = limitById;
+        this.allocate(initialCapacity);
+    }
+
+    private void allocate(int capacity) {
+        this.keys = new int[capacity];
+        this.slots = new Product[capacity][];
+        this.sizes = new int[capacity];
+        this.mask = capacity - 1;
+    }
+
+    private int ideal(int id) {
+        int hash = id * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & this.mask;
+    }
+
+    private int find(int id) {
+        int index = this.ideal(id);
+        while (this.slots[index] != null) {
+            if (this.keys[index] == id)
+                return index;
+            index = (index + 1) & this.mask;
+        }
+        return ~index;
+    }
+
+    // The product which has to leave the result: the evicted one, the given one if it's rejected, or null
+    Product add(Product product) {
+        int id = product.getId();
+
+        int index = this.find(id);
+        if (index < 0) {
+            if (2 * (this.count + 1) > this.keys.length) {
+                this.resize(2 * this.keys.length);
+                index = this.find(id);
+            }
+
+            index = ~index;
+            this.keys[index] = id;
+            this.slots[index] = new Product[Math.min(initialSlotSize, this.limitById)];
+            this.sizes[index] = 0;
+            this.count++;
+        }
+
+        Product[] slot = this.slots[index];
+        int size = this.sizes[index];
+
+        int position = binarySearch(slot, size, product);
+        if (position >= 0)
+            return product;
+
+        position = ~position;
+        if (size == this.limitById) {
+            if (position == size)
+                return product;
+
+            Product evicted = slot[size - 1];
+            System.arraycopy(slot, position, slot, position + 1, size - 1 - position);
+            slot[position] = product;
+
+            return evicted;
+        }
+
+        if (size == slot.length) {
+            Product[] grown = new Product[Math.min(2 * slot.length, this.limitById)];
+            System.arraycopy(slot, 0, grown, 0, size);
+            this.slots[index] = slot = grown;
+        }
+
+        System.arraycopy(slot, position, slot, position + 1, size - position);
+        slot[position] = product;
+        this.sizes[index] = size + 1;
+
+        return null;
+    }
+
+    boolean remove(Product product) {
+        int index = this.find(product.getId());
+        if (index < 0)
+            return false;
+
+        Product[] slot = this.slots[index];
+        int size = this.sizes[index];
+
+        int position = binarySearch(slot, size, product);
+        if (position < 0)
+            return false;
+
+        System.arraycopy(slot, position + 1, slot, position, size - 1 - position);
+        slot[--size] = null;
+        this.sizes[index] = size;
+
+        if (size == 0)
+            this.delete(index);
+
+        return true;
+    }
+
+    int size() {
+        return this.count;
+    }
+
+    void clear() {
+        this.allocate(initialCapacity);
+        this.count = 0;
+    }
+
+    // Backward shift deletion, so there are no tombstones to skip later
+    private void delete(int index) {
+        int next = (index + 1) & this.mask;
+        while (this.slots[next] != null) {
+            int ideal = this.ideal(this.keys[next]);
+            boolean movable = index <= next ? (ideal <= index || ideal > next) : (ideal <= index && ideal > next);
+            if (movable) {
+                this.keys[index] = this.keys[next];
+                this.slots[index] = this.slots[next];
+                this.sizes[index] = this.sizes[next];
+                index = next;
+            }
+            next = (next + 1) & this.mask;
+        }
+
+        this.slots[index] = null;
+        this.sizes[index] = 0;
+        this.count--;
+    }
+
+    private void resize(int capacity) {
+        int[] oldKeys = this.keys;
+        Product[][] oldSlots = this.slots;
+        int[] oldSizes = this.sizes;
+
+        this.allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldSlots[i] == null)
+                continue;
+
+            int index = ~this.find(oldKeys[i]);
+            this.keys[index] = oldKeys[i];
+            this.slots[index] = oldSlots[i];
+            this.sizes[index] = oldSizes[i];
+        }
+    }
+
+    private static int binarySearch(Product[] slot, int size, Product product) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int compared = slot[middle].compareTo(product);
+            if (compared < 0)
+                low = middle + 1;
+            else if (compared > 0)
+                high = middle - 1;
+            else
+                return middle;
+        }
+        return ~low;
+    }
+}
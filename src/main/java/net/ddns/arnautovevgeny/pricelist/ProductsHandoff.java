@@ -0,0 +1,17 @@
+package net.ddns.arnautovevgeny.pricelist;
+
+import java.util.Collection;
+
+// Passes products from FileReader to ProductHandler
+public interface ProductsHandoff {
+    // Blocks while there is no space, onFull is called before waiting
+    void put(Collection<Product> products, Runnable onFull);
+
+    // Empty collection if there is nothing to take right now, a ring gives a whole chunk regardless of maxSize
+    Collection<Product> poll(int maxSize);
+
+    // Everything taken by poll is given back after it's handled
+    void release(Collection<Product> products);
+
+    boolean isEmpty();
+}
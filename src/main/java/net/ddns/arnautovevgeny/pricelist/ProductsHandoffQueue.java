@@ -0,0 +1,50 @@
+package net.ddns.arnautovevgeny.pricelist;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+@Slf4j
+public class ProductsHandoffQueue implements ProductsHandoff {
+    private final BlockingQueue<Product> productsList;
+
+    public ProductsHandoffQueue(int capacity) {
+        this.productsList = new LinkedBlockingQueue<>(capacity);
+    }
+
+    @Override
+    public void put(Collection<Product> products, Runnable onFull) {
+        for (Product product : products) {
+            if (!productsList.offer(product)) {
+                onFull.run();
+
+                try {
+                    productsList.put(product);
+                } catch (InterruptedException e) {
+                    log.error("Thread was interrupted and couldn't put product into a queue", e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public Collection<Product> poll(int maxSize) {
+        List<Product> productsChunk = new LinkedList<>();
+        productsList.drainTo(productsChunk, maxSize);
+
+        return productsChunk;
+    }
+
+    @Override
+    public void release(Collection<Product> products) {
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return this.productsList.isEmpty();
+    }
+}
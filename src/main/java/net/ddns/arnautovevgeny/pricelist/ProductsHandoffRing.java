@@ -0,0 +1,136 @@
+package net.ddns.arnautovevgeny.pricelist;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+// Lock-free ring of preallocated chunks, producers publish and consumers claim whole chunks
+// Every slot has a sequence number: equal to a position when it's free to produce, position + 1 when it's published
+public class ProductsHandoffRing implements ProductsHandoff {
+    private static class Chunk extends AbstractList<Product> implements RandomAccess {
+        private final Product[] products;
+        private int size;
+        private long position;
+
+        private Chunk(int capacity) {
+            this.products = new Product[capacity];
+        }
+
+        @Override
+        public Product get(int index) {
+            Objects.checkIndex(index, this.size);
+            return this.products[index];
+        }
+
+        @Override
+        public int size() {
+            return this.size;
+        }
+    }
+
+    private static final int spinsBeforePark = 100;
+    private static final long parkNanos = 50000;
+
+    private final Chunk[] chunks;
+    private final AtomicLongArray sequences;
+    private final int mask;
+
+    private final AtomicLong producePosition;
+    private final AtomicLong consumePosition;
+
+    {
+        producePosition = new AtomicLong();
+        consumePosition = new AtomicLong();
+    }
+
+    public ProductsHandoffRing(int chunksCount, int chunkCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(2, chunksCount - 1)) << 1;
+
+        this.chunks = new Chunk[capacity];
+        this.sequences = new AtomicLongArray(capacity);
+        this.mask = capacity - 1;
+
+        for (int i = 0; i < capacity; i++) {
+            this.chunks[i] = new Chunk(chunkCapacity);
+            this.sequences.set(i, i);
+        }
+    }
+
+    private long claimToProduce() {
+        while (true) {
+            long position = this.producePosition.get();
+            long difference = this.sequences.get((int) position & this.mask) - position;
+            if (difference == 0) {
+                if (this.producePosition.compareAndSet(position, position + 1))
+                    return position;
+            }
+            else if (difference < 0)
+                return -1;
+        }
+    }
+
+    @Override
+    public void put(Collection<Product> products, Runnable onFull) {
+        Iterator<Product> iterator = products.iterator();
+        while (iterator.hasNext()) {
+            long position = this.claimToProduce();
+            for (int spins = 0; position < 0; spins++) {
+                if (spins == 0)
+                    onFull.run();
+
+                if (spins < spinsBeforePark)
+                    Thread.onSpinWait();
+                else
+                    LockSupport.parkNanos(parkNanos);
+
+                position = this.claimToProduce();
+            }
+
+            int index = (int) position & this.mask;
+            Chunk chunk = this.chunks[index];
+
+            int size = 0;
+            while (size < chunk.products.length && iterator.hasNext())
+                chunk.products[size++] = iterator.next();
+            chunk.size = size;
+
+            this.sequences.set(index, position + 1);
+        }
+    }
+
+    @Override
+    public Collection<Product> poll(int maxSize) {
+        while (true) {
+            long position = this.consumePosition.get();
+            int index = (int) position & this.mask;
+            long difference = this.sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (this.consumePosition.compareAndSet(position, position + 1)) {
+                    Chunk chunk = this.chunks[index];
+                    chunk.position = position;
+                    return chunk;
+                }
+            }
+            else if (difference < 0)
+                return List.of();
+        }
+    }
+
+    @Override
+    public void release(Collection<Product> products) {
+        if (!(products instanceof Chunk))
+            return;
+
+        Chunk chunk = (Chunk) products;
+        Arrays.fill(chunk.products, 0, chunk.size, null);
+        chunk.size = 0;
+
+        this.sequences.set((int) chunk.position & this.mask, chunk.position + this.chunks.length);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return this.consumePosition.get() >= this.producePosition.get();
+    }
+}
@@ -0,0 +1,47 @@
+package net.ddns.arnautovevgeny.pricelist;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collector;
+
+// Every leaf of a parallel stream fills its own bounded shard, shards are merged pairwise
+// A product dropped by a leaf has limitById or limitTotal better ones in it, so it can't get into the whole result either
+public class ProductsTopCollector implements Collector<Product, ResultStorageShard, List<Product>> {
+    @Override
+    public Supplier<ResultStorageShard> supplier() {
+        return () -> new ResultStorageShard(new PriceCutoff());
+    }
+
+    @Override
+    public BiConsumer<ResultStorageShard, Product> accumulator() {
+        return ResultStorageShard::handle;
+    }
+
+    @Override
+    public BinaryOperator<ResultStorageShard> combiner() {
+        return (left, right) -> {
+            ResultStorageShard smaller = left.size() < right.size() ? left : right;
+            ResultStorageShard bigger = smaller == left ? right : left;
+
+            for (Product product : smaller.getResult())
+                bigger.handle(product);
+
+            return bigger;
+        };
+    }
+
+    @Override
+    public Function<ResultStorageShard, List<Product>> finisher() {
+        return shard -> new ArrayList<>(shard.getResult());
+    }
+
+    @Override
+    public Set<Characteristics> characteristics() {
+        return Set.of(Characteristics.UNORDERED);
+    }
+}
@@ -0,0 +1,63 @@
+package net.ddns.arnautovevgeny.pricelist;
+
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Function;
+
+// One ranking of a query: cheapest products of every group with its own limits, NONE makes the whole catalogue a single group
+// Written as name:column:limitTotal:limitById, several of them are separated by commas
+@Getter
+public class RankingSpec {
+    public enum GroupBy {
+        NONE(product -> ""),
+        ID(Product::getId),
+        NAME(Product::getName),
+        CONDITION(Product::getCondition),
+        STATE(Product::getState);
+
+        private final Function<Product, Comparable<?>> key;
+
+        GroupBy(Function<Product, Comparable<?>> key) {
+            this.key = key;
+        }
+
+        Comparable<?> keyOf(Product product) {
+            return this.key.apply(product);
+        }
+    }
+
+    private final String name;
+    private final GroupBy groupBy;
+    private final int limitTotal;
+    private final int limitById;
+
+    public RankingSpec(String name, GroupBy groupBy, int limitTotal, int limitById) {
+        if (limitTotal <= 0 || limitById <= 0)
+            throw new IllegalArgumentException("Limits of ranking " + name + " have to be positive");
+
+        this.name = name;
+        this.groupBy = groupBy;
+        this.limitTotal = limitTotal;
+        this.limitById = limitById;
+    }
+
+    public static RankingSpec parse(String spec) {
+        String[] parts = spec.split(":");
+        if (parts.length != 4)
+            throw new IllegalArgumentException("Ranking " + spec + " isn't name:column:limitTotal:limitById");
+
+        GroupBy groupBy = GroupBy.valueOf(parts[1].trim().toUpperCase(Locale.ROOT));
+        return new RankingSpec(parts[0].trim(), groupBy, Integer.parseInt(parts[2].trim()), Integer.parseInt(parts[3].trim()));
+    }
+
+    public static List<RankingSpec> parseAll(String specs) {
+        List<RankingSpec> parsed = new ArrayList<>();
+        for (String spec : specs.split(","))
+            parsed.add(parse(spec));
+
+        return parsed;
+    }
+}
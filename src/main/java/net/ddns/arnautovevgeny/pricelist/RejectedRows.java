@@ -0,0 +1,122 @@
+package net.ddns.arnautovevgeny.pricelist;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+// Sidecar file of rows which couldn't become products, every line is: "file",row,reason,"row as it was"
+// Every reader collects its rows into its own batch, a full batch is appended at once under the lock
+@Slf4j
+public class RejectedRows implements AutoCloseable {
+    public enum Reason {
+        MISSING_COLUMNS,
+        BAD_ID,
+        BAD_PRICE
+    }
+
+    // Single writer only
+    class Batch {
+        private byte[] bytes;
+        private int length;
+
+        private String fileName;
+        private byte[] fileNameBytes;
+
+        {
+            bytes = new byte[batchBytes];
+        }
+
+        void add(String fileName, long row, Reason reason, byte[] source, int from, int to) {
+            if (!fileName.equals(this.fileName)) {
+                this.fileName = fileName;
+                this.fileNameBytes = fileName.getBytes(StandardCharsets.UTF_8);
+            }
+
+            this.putQuoted(this.fileNameBytes, 0, this.fileNameBytes.length);
+            this.put((byte) ',');
+            this.putAscii(Long.toString(row));
+            this.put((byte) ',');
+            this.putAscii(reason.name());
+            this.put((byte) ',');
+            this.putQuoted(source, from, to);
+            this.put((byte) '\n');
+
+            if (this.length >= batchBytes)
+                this.flush();
+        }
+
+        // Failed sidecar doesn't stop reading, rows of the batch are lost
+        void flush() {
+            if (this.length == 0)
+                return;
+
+            try {
+                write(this.bytes, this.length);
+            }
+            catch (IOException e) {
+                log.warn("Rejected rows couldn't be written to {}: {}", path, e.toString());
+            }
+            finally {
+                this.length = 0;
+            }
+        }
+
+        private void putQuoted(byte[] source, int from, int to) {
+            this.put(quote);
+            for (int i = from; i < to; i++) {
+                if (source[i] == quote)
+                    this.put(quote);
+                this.put(source[i]);
+            }
+            this.put(quote);
+        }
+
+        private void putAscii(String value) {
+            for (int i = 0; i < value.length(); i++)
+                this.put((byte) value.charAt(i));
+        }
+
+        private void put(byte value) {
+            if (this.length == this.bytes.length)
+                this.bytes = Arrays.copyOf(this.bytes, 2 * this.bytes.length);
+            this.bytes[this.length++] = value;
+        }
+    }
+
+    private static final int batchBytes = 1 << 16;
+    private static final byte quote = '"';
+
+    private final Path path;
+    private final FileChannel channel;
+
+    public RejectedRows(Path path) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    }
+
+    Batch newBatch() {
+        return new Batch();
+    }
+
+    private synchronized void write(byte[] bytes, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, length);
+        while (buffer.hasRemaining())
+            this.channel.write(buffer);
+    }
+
+    @Override
+    public void close() {
+        try {
+            this.channel.close();
+        }
+        catch (IOException e) {
+            log.warn("Rejected rows file {} wasn't properly closed: {}", this.path, e.toString());
+        }
+    }
+}
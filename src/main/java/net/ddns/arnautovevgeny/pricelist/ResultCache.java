@@ -0,0 +1,92 @@
+package net.ddns.arnautovevgeny.pricelist;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Optional;
+import java.util.UUID;
+
+// Reduced result of every single file, an entry is valid only for the same file, stamp, limits, format and columns
+@Slf4j
+public class ResultCache {
+    private static final int magic = 0x504C4345;
+    private static final int version = 2;
+
+    private final Path directory;
+    private final boolean containsHeaders;
+    private final char delimiter;
+    private final CsvSchema csvSchema;
+
+    public ResultCache(Path directory, boolean containsHeaders, char delimiter, CsvSchema csvSchema) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.containsHeaders = containsHeaders;
+        this.delimiter = delimiter;
+        this.csvSchema = csvSchema;
+    }
+
+    public ResultCache(Path directory, boolean containsHeaders, char delimiter) throws IOException {
+        this(directory, containsHeaders, delimiter, CsvSchema.of(containsHeaders));
+    }
+
+    private Path entryOf(String file) {
+        return this.directory.resolve(UUID.nameUUIDFromBytes(file.getBytes(StandardCharsets.UTF_8)) + ".bin");
+    }
+
+    // Empty if there is no entry or it's stale or corrupt, such entry is going to be overwritten
+    public Optional<Collection<Product>> get(String file, ResultState.FileStamp stamp) {
+        Path entry = this.entryOf(file);
+        if (!Files.exists(entry))
+            return Optional.empty();
+
+        try {
+            return ResultState.readChecked(entry, input -> {
+                if (input.readInt() != magic || input.readInt() != version)
+                    throw new IOException("Unknown format");
+
+                // Every field is read anyway, the checksum covers the whole entry
+                boolean matches = input.readUTF().equals(file);
+                matches &= input.readLong() == stamp.getSize();
+                matches &= input.readLong() == stamp.getModified();
+                matches &= input.readInt() == ResultStorage.limitTotal;
+                matches &= input.readInt() == ResultStorage.limitById;
+                matches &= input.readBoolean() == this.containsHeaders;
+                matches &= input.readChar() == this.delimiter;
+                matches &= input.readBoolean() == this.csvSchema.isByNames();
+                matches &= input.readUTF().equals(this.csvSchema.toString());
+
+                Collection<Product> products = ResultState.readProducts(input);
+                if (!matches)
+                    log.debug("Cache entry of {} is stale", file);
+
+                return matches ? Optional.of(products) : Optional.<Collection<Product>>empty();
+            });
+        }
+        catch (IOException e) {
+            log.warn("Cache entry {} of {} is corrupt: {}", entry, file, e.toString());
+            return Optional.empty();
+        }
+    }
+
+    public void put(String file, ResultState.FileStamp stamp, Collection<Product> products) throws IOException {
+        ResultState.writeChecked(this.entryOf(file), output -> {
+            output.writeInt(magic);
+            output.writeInt(version);
+
+            output.writeUTF(file);
+            output.writeLong(stamp.getSize());
+            output.writeLong(stamp.getModified());
+            output.writeInt(ResultStorage.limitTotal);
+            output.writeInt(ResultStorage.limitById);
+            output.writeBoolean(this.containsHeaders);
+            output.writeChar(this.delimiter);
+            output.writeBoolean(this.csvSchema.isByNames());
+            output.writeUTF(this.csvSchema.toString());
+
+            ResultState.writeProducts(output, products);
+        });
+    }
+}
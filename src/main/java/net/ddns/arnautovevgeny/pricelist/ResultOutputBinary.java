@@ -0,0 +1,169 @@
+package net.ddns.arnautovevgeny.pricelist;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+// Products in blocks of columns: a file header, then blocks until the end of the file
+// Block header: rows, min price, max price, length of the body; the body goes as
+// dictionary of conditions and states, ids, prices, condition codes, state codes, names
+// Ids and prices are fixed-width ints, codes are shorts into the dictionary, strings are UTF-8 after a varint length
+// Min and max price let a reader skip the whole block without looking into it
+public class ResultOutputBinary implements ResultOutput {
+    static final String extension = ".plb";
+    static final int magic = 0x504C4249;
+    static final int version = 1;
+    static final int fileHeaderBytes = 8;
+    static final int blockHeaderBytes = 16;
+
+    // Dictionary of a block never goes beyond a short code
+    private static final int blockRows = 4096;
+    private static final int maxVarintBytes = 5;
+
+    private final Path filePath;
+
+    private final int[] ids;
+    private final int[] prices;
+    private final short[] conditions;
+    private final short[] states;
+    private final byte[][] names;
+    private final Map<String, Short> dictionary;
+    private final List<byte[]> dictionaryEntries;
+
+    private FileChannel channel;
+    private ByteBuffer block;
+    private int rows;
+
+    {
+        ids = new int[blockRows];
+        prices = new int[blockRows];
+        conditions = new short[blockRows];
+        states = new short[blockRows];
+        names = new byte[blockRows][];
+        dictionary = new HashMap<>();
+        dictionaryEntries = new ArrayList<>();
+        block = ByteBuffer.allocate(1 << 16);
+    }
+
+    public ResultOutputBinary(Path filePath) {
+        this.filePath = filePath;
+    }
+
+    // The file is written aside and moved over the target, readers never see a part of it
+    @Override
+    public synchronized void output(Collection<Product> products) throws IOException {
+        Path target = this.filePath.toAbsolutePath();
+        Path temporary = ResultOutputCsv.temporaryOf(target);
+        try {
+            try (FileChannel fileChannel = FileChannel.open(temporary, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                this.channel = fileChannel;
+
+                ByteBuffer fileHeader = ByteBuffer.allocate(fileHeaderBytes).putInt(magic).putInt(version).flip();
+                this.write(fileHeader);
+
+                for (Product product : products) {
+                    this.add(product);
+                    if (this.rows == blockRows)
+                        this.writeBlock();
+                }
+                this.writeBlock();
+            }
+            finally {
+                this.channel = null;
+                this.rows = 0;
+                this.dictionary.clear();
+                this.dictionaryEntries.clear();
+            }
+
+            Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    private void add(Product product) {
+        this.ids[this.rows] = product.getId();
+        this.prices[this.rows] = product.getPriceInCents();
+        this.conditions[this.rows] = this.codeOf(product.getCondition());
+        this.states[this.rows] = this.codeOf(product.getState());
+        this.names[this.rows] = product.getName().getBytes(StandardCharsets.UTF_8);
+        this.rows++;
+    }
+
+    private short codeOf(String value) {
+        Short code = this.dictionary.get(value);
+        if (code == null) {
+            code = (short) this.dictionaryEntries.size();
+            this.dictionary.put(value, code);
+            this.dictionaryEntries.add(value.getBytes(StandardCharsets.UTF_8));
+        }
+        return code;
+    }
+
+    private void writeBlock() throws IOException {
+        if (this.rows == 0)
+            return;
+
+        int bodyBytes = 12 * this.rows;
+        for (byte[] entry : this.dictionaryEntries)
+            bodyBytes += maxVarintBytes + entry.length;
+        for (int row = 0; row < this.rows; row++)
+            bodyBytes += maxVarintBytes + this.names[row].length;
+
+        if (this.block.capacity() < blockHeaderBytes + maxVarintBytes + bodyBytes)
+            this.block = ByteBuffer.allocate(blockHeaderBytes + maxVarintBytes + bodyBytes);
+
+        int minPrice = Integer.MAX_VALUE;
+        int maxPrice = Integer.MIN_VALUE;
+        for (int row = 0; row < this.rows; row++) {
+            minPrice = Math.min(minPrice, this.prices[row]);
+            maxPrice = Math.max(maxPrice, this.prices[row]);
+        }
+
+        ByteBuffer block = this.block.clear();
+        block.position(blockHeaderBytes);
+
+        putVarint(block, this.dictionaryEntries.size());
+        for (byte[] entry : this.dictionaryEntries)
+            putVarint(block, entry.length).put(entry);
+
+        for (int row = 0; row < this.rows; row++)
+            block.putInt(this.ids[row]);
+        for (int row = 0; row < this.rows; row++)
+            block.putInt(this.prices[row]);
+        for (int row = 0; row < this.rows; row++)
+            block.putShort(this.conditions[row]);
+        for (int row = 0; row < this.rows; row++)
+            block.putShort(this.states[row]);
+        for (int row = 0; row < this.rows; row++)
+            putVarint(block, this.names[row].length).put(this.names[row]);
+
+        block.putInt(0, this.rows).putInt(4, minPrice).putInt(8, maxPrice).putInt(12, block.position() - blockHeaderBytes);
+        this.write(block.flip());
+
+        Arrays.fill(this.names, 0, this.rows, null);
+        this.rows = 0;
+        this.dictionary.clear();
+        this.dictionaryEntries.clear();
+    }
+
+    private void write(ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining())
+            this.channel.write(bytes);
+    }
+
+    private static ByteBuffer putVarint(ByteBuffer bytes, int value) {
+        while ((value & ~0x7F) != 0) {
+            bytes.put((byte) (value & 0x7F | 0x80));
+            value >>>= 7;
+        }
+        return bytes.put((byte) value);
+    }
+}
@@ -1,36 +1,218 @@
-package net.ddns.arnautovevgeny.pricelist;
-
-import de.siegmar.fastcsv.writer.CsvWriter;
-
-import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Path;
-import java.util.Collection;
-import java.util.LinkedList;
-
-public class ResultOutputCsv implements ResultOutput {
-    private final Path filePath;
-    private boolean headersIncluded;
-    private char separator;
-
-    public ResultOutputCsv(Path filePath, boolean headersIncluded, char separator) {
-        this.filePath = filePath;
-        this.headersIncluded = headersIncluded;
-        this.separator = separator;
-    }
-
-    @Override
-    public void output(Collection<Product> products) throws IOException {
-        CsvWriter csvWriter = new CsvWriter();
-        csvWriter.setFieldSeparator(this.separator);
-
-        Collection<String[]> data = new LinkedList<>();
-        if (this.headersIncluded)
-            data.add(new String[]{"product ID", "Name", "Condition", "State", "Price"});
-
-        for(Product product : products)
-            data.add(new String[]{Integer.toString(product.getId()), product.getName(), product.getCondition(), product.getState(), Float.toString(product.getPrice())});
-
-        csvWriter.write(this.filePath, StandardCharsets.UTF_8, data);
-    }
-}
+package net.ddns.arnautovevgeny.pricelist;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Products are encoded straight into a reusable buffer which is written out whenever it's full,
+// so neither time nor memory depend on the result size, numbers are formatted without strings
+// The file is written aside and moved over the target, readers never see a part of it
+public class ResultOutputCsv implements ResultOutput {
+    private static final String[] headers = {"product ID", "Name", "Condition", "State", "Price"};
+    private static final byte[] lineSeparator = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+    private static final byte quote = '"';
+    private static final int defaultBufferSize = 1 << 20;
+    private static final int centsInUnit = 100;
+
+    private final Path filePath;
+    private boolean headersIncluded;
+    private char separator;
+
+    private final ByteBuffer buffer;
+    private final byte[] digits;
+    private FileChannel channel;
+
+    {
+        digits = new byte[20];
+    }
+
+    public ResultOutputCsv(Path filePath, boolean headersIncluded, char separator, int bufferSize) {
+        this.filePath = filePath;
+        this.headersIncluded = headersIncluded;
+        this.separator = separator;
+
+        this.buffer = ByteBuffer.allocate(bufferSize);
+    }
+
+    public ResultOutputCsv(Path filePath, boolean headersIncluded, char separator) {
+        this(filePath, headersIncluded, separator, defaultBufferSize);
+    }
+
+    static Collection<String[]> rowsOf(Collection<Product> products, boolean headersIncluded) {
+        Collection<String[]> data = new LinkedList<>();
+        if (headersIncluded)
+            data.add(headers);
+
+        for(Product product : products)
+            data.add(new String[]{Integer.toString(product.getId()), product.getName(), product.getCondition(), product.getState(), Price.toString(product.getPriceInCents())});
+
+        return data;
+    }
+
+    // Next to the target under a name nobody else takes, a file of Files.createTempFile would be readable by its owner only
+    static Path temporaryOf(Path target) {
+        return target.resolveSibling(target.getFileName() + "." + Long.toUnsignedString(ThreadLocalRandom.current().nextLong(), 36) + ".tmp");
+    }
+
+    // The buffer is shared, so a single output goes at a time
+    @Override
+    public synchronized void output(Collection<Product> products) throws IOException {
+        Path target = this.filePath.toAbsolutePath();
+        Path temporary = temporaryOf(target);
+        try {
+            try (FileChannel fileChannel = FileChannel.open(temporary, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                this.channel = fileChannel;
+                this.buffer.clear();
+
+                if (this.headersIncluded) {
+                    for (int i = 0; i < headers.length; i++) {
+                        if (i != 0)
+                            this.putSeparator();
+                        this.putText(headers[i]);
+                    }
+                    this.putBytes(lineSeparator);
+                }
+
+                for (Product product : products)
+                    this.putProduct(product);
+
+                this.flush();
+            }
+            finally {
+                this.channel = null;
+            }
+
+            Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    private void putProduct(Product product) throws IOException {
+        this.putNumber(product.getId());
+        this.putSeparator();
+        this.putText(product.getName());
+        this.putSeparator();
+        this.putText(product.getCondition());
+        this.putSeparator();
+        this.putText(product.getState());
+        this.putSeparator();
+        this.putPrice(product.getPriceInCents());
+        this.putBytes(lineSeparator);
+    }
+
+    private void flush() throws IOException {
+        this.buffer.flip();
+        while (this.buffer.hasRemaining())
+            this.channel.write(this.buffer);
+        this.buffer.clear();
+    }
+
+    private void put(byte value) throws IOException {
+        if (!this.buffer.hasRemaining())
+            this.flush();
+        this.buffer.put(value);
+    }
+
+    private void putBytes(byte[] values) throws IOException {
+        for (byte value : values)
+            this.put(value);
+    }
+
+    private void putSeparator() throws IOException {
+        this.putChar(this.separator);
+    }
+
+    // Same rules as CsvWriter: a value is quoted only if it contains a separator, a quote or a line break
+    private void putText(String text) throws IOException {
+        boolean quoted = false;
+        for (int i = 0; i < text.length() && !quoted; i++) {
+            char current = text.charAt(i);
+            quoted = current == this.separator || current == quote || current == '\r' || current == '\n';
+        }
+
+        if (quoted)
+            this.put(quote);
+
+        for (int i = 0; i < text.length(); i++) {
+            char current = text.charAt(i);
+            if (current == quote)
+                this.put(quote);
+
+            if (Character.isHighSurrogate(current) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1)))
+                this.putCodePoint(Character.toCodePoint(current, text.charAt(++i)));
+            else
+                this.putChar(current);
+        }
+
+        if (quoted)
+            this.put(quote);
+    }
+
+    private void putChar(char value) throws IOException {
+        if (value < 0x80)
+            this.put((byte) value);
+        else
+            this.putCodePoint(value);
+    }
+
+    private void putCodePoint(int codePoint) throws IOException {
+        if (codePoint < 0x800)
+            this.put((byte) (0xC0 | codePoint >> 6));
+        else if (codePoint < 0x10000) {
+            // Lone surrogates can't be encoded, they are replaced as String.getBytes does
+            if (Character.isSurrogate((char) codePoint)) {
+                this.put((byte) '?');
+                return;
+            }
+
+            this.put((byte) (0xE0 | codePoint >> 12));
+            this.put((byte) (0x80 | codePoint >> 6 & 0x3F));
+        }
+        else {
+            this.put((byte) (0xF0 | codePoint >> 18));
+            this.put((byte) (0x80 | codePoint >> 12 & 0x3F));
+            this.put((byte) (0x80 | codePoint >> 6 & 0x3F));
+        }
+        this.put((byte) (0x80 | codePoint & 0x3F));
+    }
+
+    private void putNumber(long value) throws IOException {
+        if (value < 0) {
+            this.put((byte) '-');
+            value = -value;
+        }
+
+        int position = this.digits.length;
+        do {
+            this.digits[--position] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+
+        while (position < this.digits.length)
+            this.put(this.digits[position++]);
+    }
+
+    // Same as Price.toString: units, a dot and always two digits of cents
+    private void putPrice(int priceInCents) throws IOException {
+        if (priceInCents < 0)
+            this.put((byte) '-');
+
+        long cents = Math.abs((long) priceInCents);
+        this.putNumber(cents / centsInUnit);
+        this.put((byte) '.');
+
+        long fraction = cents % centsInUnit;
+        this.put((byte) ('0' + fraction / 10));
+        this.put((byte) ('0' + fraction % 10));
+    }
+}
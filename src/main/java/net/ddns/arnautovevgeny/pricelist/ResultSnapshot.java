@@ -0,0 +1,29 @@
+package net.ddns.arnautovevgeny.pricelist;
+
+import java.util.Collection;
+import java.util.List;
+
+// Immutable top-K at some moment, version grows whenever the storage had changed
+public final class ResultSnapshot {
+    private static final ResultSnapshot empty = new ResultSnapshot(0, List.of());
+
+    private final long version;
+    private final List<Product> products;
+
+    public ResultSnapshot(long version, Collection<Product> products) {
+        this.version = version;
+        this.products = List.copyOf(products);
+    }
+
+    public static ResultSnapshot empty() {
+        return empty;
+    }
+
+    public long getVersion() {
+        return this.version;
+    }
+
+    public List<Product> getProducts() {
+        return this.products;
+    }
+}
@@ -0,0 +1,184 @@
+package net.ddns.arnautovevgeny.pricelist;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+// Result of the files ingested so far, top-K with per-id limits is mergeable for append-only files
+// A product which isn't in the result can't get there later, so the result alone is enough to go on
+@Slf4j
+public class ResultState {
+    interface Writer {
+        void write(DataOutputStream output) throws IOException;
+    }
+
+    interface Reader<T> {
+        T read(DataInputStream input) throws IOException;
+    }
+
+    @EqualsAndHashCode
+    @ToString
+    @Getter
+    static class FileStamp {
+        private final long size;
+        private final long modified;
+
+        FileStamp(long size, long modified) {
+            this.size = size;
+            this.modified = modified;
+        }
+
+        static FileStamp of(Path path) throws IOException {
+            return new FileStamp(Files.size(path), Files.getLastModifiedTime(path).toMillis());
+        }
+    }
+
+    private static final int magic = 0x504C5354;
+    private static final int version = 1;
+
+    @Getter
+    private final Map<String, FileStamp> files;
+    @Getter
+    private final Collection<Product> products;
+
+    public ResultState(Map<String, FileStamp> files, Collection<Product> products) {
+        this.files = files;
+        this.products = products;
+    }
+
+    public static ResultState empty() {
+        return new ResultState(Map.of(), List.of());
+    }
+
+    // Ingested files have to be still there and untouched, otherwise their products can't be taken back
+    public boolean isReusableFor(Map<String, FileStamp> inputFiles) {
+        for (Map.Entry<String, FileStamp> ingested : this.files.entrySet()) {
+            FileStamp current = inputFiles.get(ingested.getKey());
+            if (!ingested.getValue().equals(current)) {
+                log.info("File {} was ingested as {}, now it's {}", ingested.getKey(), ingested.getValue(), current);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static Optional<ResultState> load(Path path) {
+        if (!Files.exists(path))
+            return Optional.empty();
+
+        try {
+            ResultState state = readChecked(path, input -> {
+                if (input.readInt() != magic || input.readInt() != version)
+                    throw new IOException("Unknown format");
+
+                if (input.readInt() != ResultStorage.limitTotal || input.readInt() != ResultStorage.limitById)
+                    throw new IOException("State was saved for other limits");
+
+                int filesCount = input.readInt();
+                Map<String, FileStamp> files = new HashMap<>(2 * filesCount);
+                for (int i = 0; i < filesCount; i++)
+                    files.put(input.readUTF(), new FileStamp(input.readLong(), input.readLong()));
+
+                return new ResultState(files, readProducts(input));
+            });
+
+            log.info("State of {} files and {} products was loaded from {}", state.files.size(), state.products.size(), path);
+            return Optional.of(state);
+        }
+        catch (IOException e) {
+            log.warn("State {} can't be used: {}", path, e.toString());
+            return Optional.empty();
+        }
+    }
+
+    public void save(Path path) throws IOException {
+        writeChecked(path, output -> {
+            output.writeInt(magic);
+            output.writeInt(version);
+            output.writeInt(ResultStorage.limitTotal);
+            output.writeInt(ResultStorage.limitById);
+
+            output.writeInt(this.files.size());
+            for (Map.Entry<String, FileStamp> file : this.files.entrySet()) {
+                output.writeUTF(file.getKey());
+                output.writeLong(file.getValue().size);
+                output.writeLong(file.getValue().modified);
+            }
+
+            writeProducts(output, this.products);
+        });
+
+        log.info("State of {} files and {} products was saved to {}", this.files.size(), this.products.size(), path);
+    }
+
+    // Checksum of everything read has to match the one at the end
+    static <T> T readChecked(Path path, Reader<T> reader) throws IOException {
+        CRC32 crc = new CRC32();
+        try (DataInputStream input = new DataInputStream(new CheckedInputStream(new BufferedInputStream(Files.newInputStream(path)), crc))) {
+            T read = reader.read(input);
+
+            long expectedCrc = crc.getValue();
+            if (input.readLong() != expectedCrc)
+                throw new IOException("Checksum mismatch");
+
+            return read;
+        }
+    }
+
+    // Written next to the target and moved over it, so a crash never leaves half of a file
+    static void writeChecked(Path path, Writer writer) throws IOException {
+        Path temporary = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName().toString(), ".tmp");
+        try {
+            CRC32 crc = new CRC32();
+            try (DataOutputStream output = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)), crc))) {
+                writer.write(output);
+                output.writeLong(crc.getValue());
+            }
+
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    static void writeProducts(DataOutput output, Collection<Product> products) throws IOException {
+        output.writeInt(products.size());
+        for (Product product : products)
+            writeProduct(output, product);
+    }
+
+    static void writeProduct(DataOutput output, Product product) throws IOException {
+        output.writeInt(product.getId());
+        output.writeUTF(product.getName());
+        output.writeUTF(product.getCondition());
+        output.writeUTF(product.getState());
+        output.writeInt(product.getPriceInCents());
+    }
+
+    static Product readProduct(DataInput input) throws IOException {
+        return new Product(input.readInt(), input.readUTF(), input.readUTF(), input.readUTF(), input.readInt());
+    }
+
+    static Collection<Product> readProducts(DataInput input) throws IOException {
+        int productsCount = input.readInt();
+        if (productsCount < 0 || productsCount > ResultStorage.limitTotal)
+            throw new IOException("Wrong count of products " + productsCount);
+
+        List<Product> products = new ArrayList<>(productsCount);
+        for (int i = 0; i < productsCount; i++)
+            products.add(readProduct(input));
+
+        return products;
+    }
+}
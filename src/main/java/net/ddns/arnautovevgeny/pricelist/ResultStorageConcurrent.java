@@ -0,0 +1,224 @@
+package net.ddns.arnautovevgeny.pricelist;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+@Slf4j
+public class ResultStorageConcurrent implements ResultStorage {
+    private static final long operationsToCleanUp = 1000;
+    private static final long outputProceedCount = 10000;
+    private static final int stripesCount = 64;
+
+    private final NavigableSet<Product> storageTotal;
+    private final AtomicInteger sizeTotal;
+    private final AtomicLong operationsCounter;
+    private final LongAdder changesCounter;
+    private final AtomicReference<ResultSnapshot> snapshot;
+
+    private final AtomicLong readTotal;
+    private final AtomicLong proceedTotal;
+
+    private final AtomicBoolean stopped;
+    private final AtomicBoolean ready;
+
+    // Every stripe is guarded by itself, products of one id are always in the same stripe
+    private final ProductsById[] storageById;
+
+    private final AtomicBoolean removingInProgress;
+
+    private final PriceCutoff priceCutoff;
+
+    {
+        storageTotal = new ConcurrentSkipListSet<>();
+        sizeTotal = new AtomicInteger();
+        operationsCounter = new AtomicLong();
+        changesCounter = new LongAdder();
+        snapshot = new AtomicReference<>(ResultSnapshot.empty());
+
+        readTotal = new AtomicLong();
+        proceedTotal = new AtomicLong();
+
+        stopped = new AtomicBoolean();
+        ready = new AtomicBoolean();
+
+        storageById = new ProductsById[stripesCount];
+        for (int i = 0; i < stripesCount; i++)
+            storageById[i] = new ProductsById(limitById);
+
+        removingInProgress = new AtomicBoolean(false);
+
+        priceCutoff = new PriceCutoff();
+    }
+
+    private ProductsById stripeOf(int id) {
+        int hash = id * 0x9E3779B9;
+        return this.storageById[(hash >>> 16) & (stripesCount - 1)];
+    }
+
+    private void removeById(Collection<Product> products) {
+        long began = System.nanoTime();
+        for (Product product : products) {
+            ProductsById stripe = this.stripeOf(product.getId());
+            synchronized (stripe) {
+                stripe.remove(product);
+            }
+        }
+
+        Metrics.get().shrunkById(System.nanoTime() - began);
+        log.debug("{} elements was removed from productsById", products.size());
+    }
+
+    private void shrinkTotal() {
+        long began = System.nanoTime();
+        int size = this.sizeTotal.get();
+
+        Collection<Product> removed = new LinkedList<>();
+        Product last;
+        for (int i = size; i > limitTotal && (last = storageTotal.pollLast()) != null; i--)
+            removed.add(last);
+
+        this.sizeTotal.addAndGet(-removed.size());
+        Metrics.get().shrunkTotal(System.nanoTime() - began, removed.size());
+
+        removeById(removed);
+    }
+
+    // Other threads could add products meanwhile, so limitById is applied to what's seen once again
+    private List<Product> validProducts() {
+        Map<Integer, Integer> countById = new HashMap<>();
+        List<Product> valid = new ArrayList<>(limitTotal);
+        for (Product product : this.storageTotal) {
+            int countOfId = countById.merge(product.getId(), 1, Integer::sum);
+            if (countOfId <= limitById && valid.add(product) && valid.size() == limitTotal)
+                break;
+        }
+        return valid;
+    }
+
+    private void updatePriceCutoff() {
+        List<Product> valid = this.validProducts();
+        if (valid.size() == limitTotal)
+            this.priceCutoff.tighten(valid.get(limitTotal - 1).getPriceInCents());
+    }
+
+    private void shrink() {
+        shrinkTotal();
+        updatePriceCutoff();
+    }
+
+    private void add(Product product) {
+        log.debug("Adding product {}", product);
+
+        // Slot of an id is bounded, so a product is rejected or evicts the worst one of its id at once
+        int sizeChange;
+        Product leaving;
+        ProductsById stripe = this.stripeOf(product.getId());
+        synchronized (stripe) {
+            leaving = stripe.add(product);
+            if (leaving == product)
+                return;
+
+            this.storageTotal.add(product);
+            sizeChange = leaving != null && this.storageTotal.remove(leaving) ? 0 : 1;
+        }
+
+        this.changesCounter.increment();
+        if (leaving != null)
+            Metrics.get().evictedById();
+
+        if (sizeChange != 0) {
+            sizeTotal.addAndGet(sizeChange);
+
+            long counter = operationsCounter.incrementAndGet();
+            if (counter % operationsToCleanUp == 0L) {
+                if (this.removingInProgress.compareAndSet(false, true)) {
+                    shrink();
+                    this.removingInProgress.set(false);
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean isReady() {
+        return this.ready.get();
+    }
+
+    @Override
+    public Collection<Product> getResult() {
+        log.debug("trying to get result...");
+
+        this.shrink();
+        return new LinkedList<>(this.storageTotal);
+    }
+
+    // Rebuilt by a reader only if something was added since the last one
+    @Override
+    public ResultSnapshot getSnapshot() {
+        long version = this.changesCounter.sum();
+        ResultSnapshot current = this.snapshot.get();
+        if (current.getVersion() == version)
+            return current;
+
+        ResultSnapshot rebuilt = new ResultSnapshot(version, this.validProducts());
+        this.snapshot.compareAndSet(current, rebuilt);
+        return rebuilt;
+    }
+
+    @Override
+    public PriceCutoff getPriceCutoff() {
+        return this.priceCutoff;
+    }
+
+    @Override
+    public void handle(Product product) {
+        if (!this.priceCutoff.rejects(product.getPriceInCents()))
+            this.add(product);
+
+        long proceed = this.proceedTotal.incrementAndGet();
+        if (proceed % outputProceedCount == 0)
+            log.debug("Totally proceed {}", proceed);
+
+        this.updateReady();
+    }
+
+    private void updateReady() {
+        // Consumers could finish before the last file is marked as read, so it's checked from both sides
+        boolean isLast = (this.stopped.get() && this.proceedTotal.get() >= this.readTotal.get());
+        if (isLast && this.ready.compareAndSet(false, true))
+            log.info("Last element was proceed. Totally proceed {}", this.proceedTotal.get());
+    }
+
+    @Override
+    public void close() {
+        this.storageTotal.clear();
+        for (ProductsById stripe : this.storageById) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+    }
+
+    @Override
+    public void addRead(int read) {
+        if (!this.stopped.get()) {
+            long productRead = this.readTotal.addAndGet(read);
+            log.info("Totally {} products read", productRead);
+        }
+    }
+
+    @Override
+    public void setStopped() {
+        log.info("All elements was read, totally read {}", this.readTotal.get());
+
+        this.stopped.set(true);
+        this.updateReady();
+    }
+}
\ No newline at end of file
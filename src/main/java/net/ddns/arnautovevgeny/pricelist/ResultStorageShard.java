@@ -0,0 +1,105 @@
+package net.ddns.arnautovevgeny.pricelist;
+
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+// Single writer only, no synchronization inside
+class ResultStorageShard {
+    private final NavigableSet<Product> storageTotal;
+    private final ProductsById storageById;
+    private final PriceCutoff priceCutoff;
+    private final int limitTotal;
+
+    // Owner copies the shard for readers when it was changed since the last copy, readers never take any lock
+    private long changes;
+    private long publishedNanos;
+    private volatile long publishedChanges;
+    private volatile List<Product> published;
+
+    {
+        storageTotal = new TreeSet<>();
+        published = List.of();
+    }
+
+    ResultStorageShard(PriceCutoff priceCutoff, int limitTotal, int limitById) {
+        this.priceCutoff = priceCutoff;
+        this.limitTotal = limitTotal;
+        this.storageById = new ProductsById(limitById);
+    }
+
+    ResultStorageShard(PriceCutoff priceCutoff) {
+        this(priceCutoff, ResultStorage.limitTotal, ResultStorage.limitById);
+    }
+
+    void handle(Product product) {
+        if (this.priceCutoff.rejects(product.getPriceInCents()))
+            return;
+
+        if (this.storageTotal.size() >= this.limitTotal && product.compareTo(this.storageTotal.last()) >= 0)
+            return;
+
+        Product leaving = this.storageById.add(product);
+        if (leaving == product)
+            return;
+
+        if (leaving != null) {
+            this.storageTotal.remove(leaving);
+            Metrics.get().evictedById();
+        }
+
+        this.storageTotal.add(product);
+        this.changes++;
+        int size = this.storageTotal.size();
+        if (size > this.limitTotal) {
+            this.storageById.remove(this.storageTotal.pollLast());
+            Metrics.get().evictedTotal();
+        }
+
+        // A full shard bounds the whole result, ids never span shards
+        if (size >= this.limitTotal)
+            this.priceCutoff.tighten(this.storageTotal.last().getPriceInCents());
+    }
+
+    // Not more often than once in intervalNanos, so a writer of single products doesn't copy the shard after every one
+    void publish(long intervalNanos) {
+        if (this.changes == this.publishedChanges)
+            return;
+
+        long now = System.nanoTime();
+        if (intervalNanos > 0 && now - this.publishedNanos < intervalNanos)
+            return;
+
+        this.published = List.copyOf(this.storageTotal);
+        this.publishedChanges = this.changes;
+        this.publishedNanos = now;
+    }
+
+    void publish() {
+        this.publish(0);
+    }
+
+    // Could be read by any thread
+    List<Product> getPublished() {
+        return this.published;
+    }
+
+    long getPublishedChanges() {
+        return this.publishedChanges;
+    }
+
+    NavigableSet<Product> getResult() {
+        return this.storageTotal;
+    }
+
+    int size() {
+        return this.storageTotal.size();
+    }
+
+    void clear() {
+        this.storageTotal.clear();
+        this.storageById.clear();
+        this.changes++;
+        this.published = List.of();
+    }
+}
@@ -0,0 +1,204 @@
+package net.ddns.arnautovevgeny.pricelist;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+@Slf4j
+public class ResultStorageSharded implements ResultStorage {
+    private static class PeekingIterator implements Comparable<PeekingIterator> {
+        private final Iterator<Product> iterator;
+        private Product current;
+
+        private PeekingIterator(Iterator<Product> iterator) {
+            this.iterator = iterator;
+            this.current = iterator.next();
+        }
+
+        private boolean advance() {
+            if (!this.iterator.hasNext())
+                return false;
+
+            this.current = this.iterator.next();
+            return true;
+        }
+
+        @Override
+        public int compareTo(PeekingIterator o) {
+            return this.current.compareTo(o.current);
+        }
+    }
+
+    private static final long outputProceedCount = 10000;
+    private static final long publishNanos = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final ResultStorageShard[] shards;
+
+    private final AtomicLong readTotal;
+    private final AtomicLong proceedTotal;
+
+    private final AtomicBoolean stopped;
+    private final AtomicBoolean ready;
+
+    private final PriceCutoff priceCutoff;
+    private final AtomicReference<ResultSnapshot> snapshot;
+
+    {
+        readTotal = new AtomicLong();
+        proceedTotal = new AtomicLong();
+
+        stopped = new AtomicBoolean();
+        ready = new AtomicBoolean();
+
+        priceCutoff = new PriceCutoff();
+        snapshot = new AtomicReference<>(ResultSnapshot.empty());
+    }
+
+    public ResultStorageSharded(int shardsCount) {
+        this.shards = new ResultStorageShard[shardsCount];
+        for (int i = 0; i < shardsCount; i++)
+            this.shards[i] = new ResultStorageShard(this.priceCutoff);
+
+        log.info("Result storage is divided into {} shards", shardsCount);
+    }
+
+    public int getShardsCount() {
+        return this.shards.length;
+    }
+
+    public int shardOf(Product product) {
+        // Spreads sequential ids, the same id always goes to the same shard
+        int hash = product.getId() * 0x9E3779B9;
+        return ((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % this.shards.length;
+    }
+
+    // Caller must be the only thread working with the shard, a chunk which changed it is published at once
+    void handle(int shard, Collection<Product> products) {
+        ResultStorageShard storageShard = this.shards[shard];
+        for (Product product : products)
+            storageShard.handle(product);
+        storageShard.publish();
+
+        this.addProceed(products.size());
+    }
+
+    // Lock is shared by writers of single products only, the rest of their changes is published once all of them are proceed
+    @Override
+    public void handle(Product product) {
+        ResultStorageShard storageShard = this.shards[this.shardOf(product)];
+        synchronized (storageShard) {
+            storageShard.handle(product);
+            storageShard.publish(publishNanos);
+        }
+
+        this.addProceed(1);
+    }
+
+    private void addProceed(int count) {
+        long previous = this.proceedTotal.getAndAdd(count);
+        long proceed = previous + count;
+        if (previous / outputProceedCount != proceed / outputProceedCount)
+            log.debug("Totally proceed {}", proceed);
+
+        this.updateReady();
+    }
+
+    private void updateReady() {
+        if (this.stopped.get() && this.proceedTotal.get() >= this.readTotal.get()) {
+            if (this.ready.compareAndSet(false, true)) {
+                for (ResultStorageShard shard : this.shards) {
+                    synchronized (shard) {
+                        shard.publish();
+                    }
+                }
+                log.info("Last element was proceed. Totally proceed {}", this.proceedTotal.get());
+            }
+        }
+    }
+
+    @Override
+    public boolean isReady() {
+        return this.ready.get();
+    }
+
+    @Override
+    public PriceCutoff getPriceCutoff() {
+        return this.priceCutoff;
+    }
+
+    @Override
+    public Collection<Product> getResult() {
+        log.debug("merging result of {} shards...", this.shards.length);
+
+        List<Iterator<Product>> iterators = new ArrayList<>(this.shards.length);
+        for (ResultStorageShard shard : this.shards)
+            iterators.add(shard.getResult().iterator());
+
+        return merge(iterators);
+    }
+
+    // Shards publish their copies themselves, a reader takes no lock and only merges them if some shard has changed since
+    @Override
+    public ResultSnapshot getSnapshot() {
+        long version = 0;
+        for (ResultStorageShard shard : this.shards)
+            version += shard.getPublishedChanges();
+
+        ResultSnapshot current = this.snapshot.get();
+        if (current.getVersion() == version)
+            return current;
+
+        List<Iterator<Product>> iterators = new ArrayList<>(this.shards.length);
+        for (ResultStorageShard shard : this.shards)
+            iterators.add(shard.getPublished().iterator());
+
+        ResultSnapshot merged = new ResultSnapshot(version, merge(iterators));
+        this.snapshot.compareAndSet(current, merged);
+        return merged;
+    }
+
+    // Ids never span shards, so every shard already obeys limitById and the k-way merge needs only limitTotal
+    private static List<Product> merge(List<Iterator<Product>> iterators) {
+        Queue<PeekingIterator> heads = new PriorityQueue<>(Math.max(1, iterators.size()));
+        for (Iterator<Product> iterator : iterators) {
+            if (iterator.hasNext())
+                heads.offer(new PeekingIterator(iterator));
+        }
+
+        List<Product> result = new LinkedList<>();
+        PeekingIterator head;
+        while (result.size() < limitTotal && (head = heads.poll()) != null) {
+            result.add(head.current);
+            if (head.advance())
+                heads.offer(head);
+        }
+
+        return result;
+    }
+
+    @Override
+    public void close() {
+        for (ResultStorageShard shard : this.shards)
+            shard.clear();
+    }
+
+    @Override
+    public void addRead(int read) {
+        if (!this.stopped.get()) {
+            long productRead = this.readTotal.addAndGet(read);
+            log.info("Totally {} products read", productRead);
+        }
+    }
+
+    @Override
+    public void setStopped() {
+        log.info("All elements was read, totally read {}", this.readTotal.get());
+
+        this.stopped.set(true);
+        this.updateReady();
+    }
+}
@@ -0,0 +1,224 @@
+package net.ddns.arnautovevgeny.pricelist;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Splits files between worker processes, every worker reduces its part and sends the partial result back
+// Top-K with per-id limits of partial results is the top-K of all files, so partial results are simply merged
+// A part whose worker didn't come in time, didn't answer in time or failed is reduced right here, the result never misses files
+// A worker has to send the token shared with the coordinator first, a peer without it gets no files and its part is reduced here,
+// local workers take the token by their environment, workers elsewhere have to be started with the same one
+@Slf4j
+public class ShardCoordinator implements AutoCloseable {
+    static final int magic = 0x504C5357;
+    static final int version = 2;
+    static final String tokenVariable = "PRICELIST_WORKERS_TOKEN";
+
+    private static final long processExitMillis = 5000;
+    private static final int tokenBits = 128;
+
+    private final ServerSocket serverSocket;
+    private final boolean containsHeaders;
+    private final char delimiter;
+    private final long acceptTimeoutMillis;
+    private final long exchangeTimeoutMillis;
+    private final String token;
+    private final List<Process> workerProcesses;
+
+    {
+        workerProcesses = new ArrayList<>();
+    }
+
+    public ShardCoordinator(InetSocketAddress address, boolean containsHeaders, char delimiter, long acceptTimeoutMillis, long exchangeTimeoutMillis,
+                            String token) throws IOException {
+        this.serverSocket = new ServerSocket();
+        this.serverSocket.bind(address);
+        this.containsHeaders = containsHeaders;
+        this.delimiter = delimiter;
+        this.acceptTimeoutMillis = acceptTimeoutMillis;
+        this.exchangeTimeoutMillis = exchangeTimeoutMillis;
+        this.token = token;
+
+        log.info("Coordinator listens on {}", this.serverSocket.getLocalSocketAddress());
+    }
+
+    // Token of local workers when none is given by the environment
+    static String newToken() {
+        return new BigInteger(tokenBits, new SecureRandom()).toString(Character.MAX_RADIX);
+    }
+
+    public int getPort() {
+        return this.serverSocket.getLocalPort();
+    }
+
+    // Local workers are JVMs of the same class path which connect back to this coordinator
+    public void spawnWorkers(int count) throws IOException {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        String coordinator = this.serverSocket.getInetAddress().getHostAddress() + ":" + this.getPort();
+        if (this.serverSocket.getInetAddress().isAnyLocalAddress())
+            coordinator = "localhost:" + this.getPort();
+
+        // Arguments of a process are seen by everyone, its environment by its owner only
+        for (int i = 0; i < count; i++) {
+            ProcessBuilder processBuilder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), PriceList.class.getName(), "--worker", coordinator)
+                    .inheritIO();
+            processBuilder.environment().put(tokenVariable, this.token);
+            this.workerProcesses.add(processBuilder.start());
+        }
+
+        log.info("{} local workers were started", count);
+    }
+
+    // Biggest files go first to the lightest part, so parts take about the same time
+    static List<List<String>> partition(String[] csvFiles, int parts) throws IOException {
+        Map<String, Long> sizes = new HashMap<>(2 * csvFiles.length);
+        for (String csvFile : csvFiles)
+            sizes.put(csvFile, Files.size(Paths.get(csvFile)));
+
+        String[] bySize = csvFiles.clone();
+        Arrays.sort(bySize, Comparator.<String, Long>comparing(sizes::get).reversed());
+
+        int partsCount = Math.max(1, Math.min(parts, csvFiles.length));
+        List<List<String>> partitions = new ArrayList<>(partsCount);
+        long[] loads = new long[partsCount];
+        for (int i = 0; i < partsCount; i++)
+            partitions.add(new ArrayList<>());
+
+        for (String csvFile : bySize) {
+            int lightest = 0;
+            for (int i = 1; i < partsCount; i++) {
+                if (loads[i] < loads[lightest])
+                    lightest = i;
+            }
+
+            partitions.get(lightest).add(csvFile);
+            loads[lightest] += sizes.get(csvFile);
+        }
+
+        return partitions;
+    }
+
+    public Collection<Product> process(String[] csvFiles, int parts) throws IOException, InterruptedException {
+        String[] files = Arrays.stream(csvFiles).map(file -> Paths.get(file).toAbsolutePath().normalize().toString()).toArray(String[]::new);
+        List<List<String>> partitions = partition(files, parts);
+
+        ExecutorService exchangeService = Executors.newFixedThreadPool(partitions.size());
+        try {
+            List<Future<Collection<Product>>> partialResults = new ArrayList<>(partitions.size());
+
+            long acceptDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.acceptTimeoutMillis);
+            for (List<String> partition : partitions) {
+                Socket socket = this.accept(acceptDeadline);
+                partialResults.add(exchangeService.submit(() -> this.exchange(socket, partition)));
+            }
+
+            List<Collection<Product>> results = new ArrayList<>(partialResults.size());
+            for (Future<Collection<Product>> partialResult : partialResults) {
+                try {
+                    results.add(partialResult.get());
+                }
+                catch (ExecutionException e) {
+                    throw new IOException("Part of files can't be reduced", e.getCause());
+                }
+            }
+
+            return PriceList.merge(results);
+        }
+        finally {
+            exchangeService.shutdownNow();
+        }
+    }
+
+    // Null when no worker came until the deadline
+    private Socket accept(long deadline) throws IOException {
+        long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        if (remainingMillis <= 0)
+            return null;
+
+        this.serverSocket.setSoTimeout((int) Math.min(remainingMillis, Integer.MAX_VALUE));
+        try {
+            Socket socket = this.serverSocket.accept();
+            socket.setKeepAlive(true);
+            socket.setSoTimeout((int) Math.min(this.exchangeTimeoutMillis, Integer.MAX_VALUE));
+            return socket;
+        }
+        catch (SocketTimeoutException e) {
+            log.warn("No more workers came in {} ms", this.acceptTimeoutMillis);
+            return null;
+        }
+    }
+
+    private Collection<Product> exchange(Socket socket, List<String> partition) throws InterruptedException {
+        if (socket == null)
+            return this.reduceHere(partition);
+
+        try (Socket worker = socket;
+             DataOutputStream output = new DataOutputStream(new BufferedOutputStream(worker.getOutputStream()));
+             DataInputStream input = new DataInputStream(new BufferedInputStream(worker.getInputStream()))) {
+            if (input.readInt() != magic || input.readInt() != version)
+                throw new IOException("Unknown worker");
+            // Compared in constant time, so the token can't be guessed a character after another
+            if (!MessageDigest.isEqual(input.readUTF().getBytes(StandardCharsets.UTF_8), this.token.getBytes(StandardCharsets.UTF_8)))
+                throw new IOException("Worker doesn't know the token");
+
+            output.writeInt(magic);
+            output.writeInt(version);
+            output.writeInt(ResultStorage.limitTotal);
+            output.writeInt(ResultStorage.limitById);
+            output.writeBoolean(this.containsHeaders);
+            output.writeChar(this.delimiter);
+
+            output.writeInt(partition.size());
+            for (String file : partition)
+                output.writeUTF(file);
+            output.flush();
+
+            if (input.readInt() != magic || input.readInt() != version)
+                throw new IOException("Unknown worker");
+
+            Collection<Product> partialResult = ResultState.readProducts(input);
+            log.info("Worker {} reduced {} files to {} products", worker.getRemoteSocketAddress(), partition.size(), partialResult.size());
+            return partialResult;
+        }
+        catch (IOException e) {
+            log.warn("Worker {} failed: {}, its part is reduced here", socket.getRemoteSocketAddress(), e.toString());
+            return this.reduceHere(partition);
+        }
+    }
+
+    private Collection<Product> reduceHere(List<String> partition) throws InterruptedException {
+        log.info("{} files are reduced by the coordinator", partition.size());
+        return ShardWorker.reduce(partition.toArray(new String[0]), this.containsHeaders, this.delimiter);
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.serverSocket.close();
+
+        for (Process process : this.workerProcesses) {
+            try {
+                if (!process.waitFor(processExitMillis, TimeUnit.MILLISECONDS)) {
+                    log.warn("Worker process {} didn't exit, it's destroyed", process.pid());
+                    process.destroyForcibly();
+                }
+            }
+            catch (InterruptedException e) {
+                process.destroyForcibly();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
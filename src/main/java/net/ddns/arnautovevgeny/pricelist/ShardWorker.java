@@ -0,0 +1,86 @@
+package net.ddns.arnautovevgeny.pricelist;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Collection;
+
+// Takes its part of files from the coordinator, reduces it by producer-consumer and sends the partial result back
+// Files are read by the same paths as the coordinator sees them, so remote workers need the same shared directory
+// and the same token as the coordinator has
+@Slf4j
+public class ShardWorker {
+    private static final int connectAttempts = 10;
+    private static final long connectRetryMillis = 1000;
+
+    private final InetSocketAddress coordinator;
+    private final String token;
+
+    public ShardWorker(InetSocketAddress coordinator, String token) {
+        this.coordinator = coordinator;
+        this.token = token;
+    }
+
+    static Collection<Product> reduce(String[] csvFiles, boolean containsHeaders, char delimiter) throws InterruptedException {
+        try (TasksBroker tasksBroker = new TasksBroker(csvFiles, containsHeaders, delimiter)) {
+            tasksBroker.start(false);
+            tasksBroker.awaitsTermination();
+
+            return tasksBroker.getResult();
+        }
+    }
+
+    private Socket connect() throws IOException, InterruptedException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return new Socket(this.coordinator.getHostString(), this.coordinator.getPort());
+            }
+            catch (ConnectException e) {
+                if (attempt == connectAttempts)
+                    throw e;
+
+                log.info("Coordinator {} isn't there yet, attempt {} of {}", this.coordinator, attempt, connectAttempts);
+                Thread.sleep(connectRetryMillis);
+            }
+        }
+    }
+
+    public void work() throws IOException, InterruptedException {
+        try (Socket socket = this.connect();
+             DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+            output.writeInt(ShardCoordinator.magic);
+            output.writeInt(ShardCoordinator.version);
+            output.writeUTF(this.token);
+            output.flush();
+
+            if (input.readInt() != ShardCoordinator.magic || input.readInt() != ShardCoordinator.version)
+                throw new IOException("Unknown coordinator");
+
+            // Partial results of other limits can't be merged
+            if (input.readInt() != ResultStorage.limitTotal || input.readInt() != ResultStorage.limitById)
+                throw new IOException("Coordinator works with other limits");
+
+            boolean containsHeaders = input.readBoolean();
+            char delimiter = input.readChar();
+
+            int filesCount = input.readInt();
+            String[] csvFiles = new String[filesCount];
+            for (int i = 0; i < filesCount; i++)
+                csvFiles[i] = input.readUTF();
+
+            log.info("{} files were taken from coordinator {}", filesCount, this.coordinator);
+            Collection<Product> partialResult = reduce(csvFiles, containsHeaders, delimiter);
+
+            output.writeInt(ShardCoordinator.magic);
+            output.writeInt(ShardCoordinator.version);
+            ResultState.writeProducts(output, partialResult);
+            output.flush();
+
+            log.info("Partial result of {} products was sent to coordinator {}", partialResult.size(), this.coordinator);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package net.ddns.arnautovevgeny.pricelist;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import de.siegmar.fastcsv.writer.CsvWriter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+// Serves the current top-K as csv, the body is rendered once per snapshot and shared by all requests
+@Slf4j
+public class SnapshotServer implements AutoCloseable {
+    private static class Rendered {
+        private final ResultSnapshot snapshot;
+        private final String etag;
+        private final byte[] body;
+
+        private Rendered(ResultSnapshot snapshot, String etag, byte[] body) {
+            this.snapshot = snapshot;
+            this.etag = etag;
+            this.body = body;
+        }
+    }
+
+    private static final String path = "/products";
+    private static final int backlog = 1024;
+
+    private final HttpServer httpServer;
+    private final ExecutorService executorService;
+    private final boolean headersIncluded;
+    private final char delimiter;
+
+    // Every new source gets its own generation, so versions of different storages never share an etag
+    private final AtomicLong generation;
+    private volatile Supplier<ResultSnapshot> source;
+    private volatile long sourceGeneration;
+    private volatile Rendered rendered;
+
+    {
+        generation = new AtomicLong();
+        source = ResultSnapshot::empty;
+    }
+
+    public SnapshotServer(InetSocketAddress address, int threads, boolean headersIncluded, char delimiter) throws IOException {
+        this.headersIncluded = headersIncluded;
+        this.delimiter = delimiter;
+
+        this.executorService = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "snapshotServer");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        this.httpServer = HttpServer.create(address, backlog);
+        this.httpServer.createContext(path, this::handle);
+        this.httpServer.setExecutor(this.executorService);
+        this.httpServer.start();
+
+        log.info("Snapshots are served at http://{}:{}{}", address.getHostString(), this.getPort(), path);
+    }
+
+    public int getPort() {
+        return this.httpServer.getAddress().getPort();
+    }
+
+    public void setSource(Supplier<ResultSnapshot> source) {
+        this.sourceGeneration = this.generation.incrementAndGet();
+        this.source = source;
+    }
+
+    private Rendered render(ResultSnapshot snapshot, long sourceGeneration) throws IOException {
+        Rendered current = this.rendered;
+        if (current != null && current.snapshot == snapshot)
+            return current;
+
+        CsvWriter csvWriter = new CsvWriter();
+        csvWriter.setFieldSeparator(this.delimiter);
+
+        StringWriter body = new StringWriter();
+        csvWriter.write(body, ResultOutputCsv.rowsOf(snapshot.getProducts(), this.headersIncluded));
+
+        Rendered fresh = new Rendered(snapshot, "\"" + sourceGeneration + "-" + snapshot.getVersion() + "\"", body.toString().getBytes(StandardCharsets.UTF_8));
+        this.rendered = fresh;
+        return fresh;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            this.respond(exchange);
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    private void respond(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        if (!method.equals("GET") && !method.equals("HEAD")) {
+            exchange.sendResponseHeaders(405, -1);
+            return;
+        }
+
+        long sourceGeneration = this.sourceGeneration;
+        Rendered rendered = this.render(this.source.get(), sourceGeneration);
+
+        exchange.getResponseHeaders().set("ETag", rendered.etag);
+        if (rendered.etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            exchange.sendResponseHeaders(304, -1);
+            return;
+        }
+
+        exchange.getResponseHeaders().set("Content-Type", "text/csv; charset=utf-8");
+        if (method.equals("HEAD")) {
+            exchange.sendResponseHeaders(200, -1);
+            return;
+        }
+
+        exchange.sendResponseHeaders(200, rendered.body.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(rendered.body);
+        }
+    }
+
+    @Override
+    public void close() {
+        this.httpServer.stop(0);
+        this.executorService.shutdown();
+    }
+}
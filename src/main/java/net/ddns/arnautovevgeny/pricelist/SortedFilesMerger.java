@@ -0,0 +1,204 @@
+package net.ddns.arnautovevgeny.pricelist;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+
+// Files sorted by price are merged lazily, no row is handled once nothing unread could get into the result
+// Files which are known to be sorted aren't read any further then, an unsorted one gives an undefined result,
+// otherwise the rest of every file is still read through only to check its order
+@Slf4j
+public class SortedFilesMerger implements AutoCloseable {
+    private class Cursor implements Comparable<Cursor> {
+        private final String fileName;
+        private final int index;
+        private CsvRowReader rowReader;
+        private int id;
+        private int priceInCents;
+        private long rowsRead;
+        private final long[] malformedByReason;
+
+        private Cursor(String fileName, int index) {
+            this.fileName = fileName;
+            this.index = index;
+            this.malformedByReason = new long[RejectedRows.Reason.values().length];
+        }
+
+        private void open() {
+            this.rowReader = new CsvRowReader(delimiter, cursorBufferSize);
+            try {
+                this.rowReader.open(Files.newInputStream(Paths.get(this.fileName)));
+
+                List<String> header = containsHeaders ? this.rowReader.readHeader() : null;
+                if (containsHeaders && header == null)
+                    this.close();
+                else
+                    this.rowReader.project(csvSchema.resolve(header, this.fileName));
+            }
+            catch (IOException e) {
+                log.error("Can't deal with handle of {} file: {}", this.fileName, e.toString());
+                this.close();
+            }
+        }
+
+        // False when the file is over, the current row stays readable until the next advance, malformed rows are skipped
+        private boolean advance() {
+            if (this.rowReader == null)
+                return false;
+
+            boolean rowRead;
+            try {
+                while ((rowRead = this.rowReader.nextRow()) && !this.isWellFormed())
+                    this.rowsRead++;
+            }
+            catch (IOException e) {
+                log.error("In file with filename {} an error was occupied {}", this.fileName, e);
+                rowRead = false;
+            }
+
+            if (!rowRead) {
+                this.close();
+                return false;
+            }
+
+            this.rowsRead++;
+            return true;
+        }
+
+        private boolean isWellFormed() {
+            if (!this.rowReader.isComplete()) {
+                this.malformedByReason[RejectedRows.Reason.MISSING_COLUMNS.ordinal()]++;
+                return false;
+            }
+
+            long priceInCents = this.rowReader.getPrice();
+            if (priceInCents == Price.invalid) {
+                this.malformedByReason[RejectedRows.Reason.BAD_PRICE.ordinal()]++;
+                return false;
+            }
+
+            long id = this.rowReader.getId();
+            if (id == Price.invalidId) {
+                this.malformedByReason[RejectedRows.Reason.BAD_ID.ordinal()]++;
+                return false;
+            }
+
+            this.id = (int) id;
+            this.priceInCents = (int) priceInCents;
+            return true;
+        }
+
+        private void close() {
+            if (this.rowReader == null)
+                return;
+
+            Metrics.get().rowsMalformed(this.fileName, this.malformedByReason);
+            Arrays.fill(this.malformedByReason, 0);
+
+            try {
+                this.rowReader.close();
+            }
+            catch (IOException e) {
+                log.warn("failed to properly close file {} {}", this.fileName, e);
+            }
+            finally {
+                this.rowReader = null;
+                log.debug("{} rows of file {} were read", this.rowsRead, this.fileName);
+            }
+        }
+
+        @Override
+        public int compareTo(Cursor o) {
+            int priceCompared = Integer.compare(this.priceInCents, o.priceInCents);
+            return priceCompared != 0 ? priceCompared : Integer.compare(this.index, o.index);
+        }
+    }
+
+    // Every file has its own cursor open at the same time, so its buffer is kept small
+    private static final int cursorBufferSize = 1 << 13;
+
+    private final boolean containsHeaders;
+    private final char delimiter;
+    private final CsvSchema csvSchema;
+    private final boolean filesSorted;
+    private final ProductDictionary dictionary;
+    private final List<Cursor> cursors;
+
+    private final PriceCutoff priceCutoff;
+    private final ResultStorageShard storage;
+    private Metrics.Watch watch;
+
+    {
+        priceCutoff = new PriceCutoff();
+        storage = new ResultStorageShard(priceCutoff);
+    }
+
+    public SortedFilesMerger(String[] csvFiles, boolean containsHeaders, char delimiter, CsvSchema csvSchema, boolean filesSorted) {
+        this.containsHeaders = containsHeaders;
+        this.delimiter = delimiter;
+        this.csvSchema = csvSchema;
+        this.filesSorted = filesSorted;
+        this.dictionary = new ProductDictionary();
+
+        this.cursors = new ArrayList<>(csvFiles.length);
+        for (int i = 0; i < csvFiles.length; i++)
+            this.cursors.add(new Cursor(csvFiles[i], i));
+    }
+
+    public SortedFilesMerger(String[] csvFiles, boolean containsHeaders, char delimiter) {
+        this(csvFiles, containsHeaders, delimiter, CsvSchema.of(containsHeaders), false);
+    }
+
+    // Empty if some file turned out not to be sorted by price, only files which aren't known to be sorted are checked to the end
+    public Optional<Collection<Product>> merge() {
+        this.watch = Metrics.get().watch(this.priceCutoff);
+
+        Queue<Cursor> heads = new PriorityQueue<>(Math.max(1, this.cursors.size()));
+        for (Cursor cursor : this.cursors) {
+            cursor.open();
+            if (cursor.advance())
+                heads.offer(cursor);
+        }
+
+        long rowsHandled = 0;
+        Cursor cursor;
+        while ((cursor = heads.poll()) != null) {
+            // Every unread row costs at least as much as the head, so nothing left could beat the full result
+            boolean rejected = this.priceCutoff.rejects(cursor.priceInCents);
+            if (rejected && this.filesSorted) {
+                log.info("Merge was stopped at price {} after {} rows", Price.toString(cursor.priceInCents), rowsHandled);
+                break;
+            }
+
+            if (!rejected) {
+                this.storage.handle(cursor.rowReader.product(cursor.id, cursor.priceInCents, this.dictionary));
+                rowsHandled++;
+            }
+
+            int previousPriceInCents = cursor.priceInCents;
+            if (cursor.advance()) {
+                if (cursor.priceInCents < previousPriceInCents) {
+                    log.warn("File {} isn't sorted by price at row {}", cursor.fileName, cursor.rowsRead);
+                    return Optional.empty();
+                }
+
+                heads.offer(cursor);
+            }
+        }
+
+        return Optional.of(new LinkedList<>(this.storage.getResult()));
+    }
+
+    @Override
+    public void close() {
+        if (this.watch != null)
+            this.watch.close();
+        for (Cursor cursor : this.cursors)
+            cursor.close();
+
+        this.storage.clear();
+    }
+}
@@ -0,0 +1,101 @@
+package net.ddns.arnautovevgeny.pricelist;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Bounded and lock-free: a slot keeps the first string hashed into it, a collision only costs a new string
+// Slots aren't overwritten, a table of old entries which keeps getting young ones is expensive for the collector
+// Entries are immutable, a racy write is safely published by final fields and the worst case is a lost entry
+class StringInterner {
+    private static class Entry {
+        private final int hash;
+        private final byte[] bytes;
+        private final String value;
+
+        private Entry(int hash, byte[] bytes, String value) {
+            this.hash = hash;
+            this.bytes = bytes;
+            this.value = value;
+        }
+    }
+
+    // A lookup which mostly misses costs more than a new string, so the interner is given up for the rest of the run
+    // if the first lookups didn't hit often enough, after that nothing is counted anymore
+    private static final int sampleLookups = 1 << 16;
+    private static final int minHitsPercent = 25;
+
+    private final Entry[] slots;
+    private final int mask;
+    private final int maxLength;
+
+    // Racy counters, an approximate hit rate is enough
+    private int lookups;
+    private int hits;
+    private volatile boolean sampled;
+    private volatile boolean bypassed;
+
+    // Capacity is rounded up to a power of two, longer values aren't kept at all
+    StringInterner(int capacity, int maxLength) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.slots = new Entry[size];
+        this.mask = size - 1;
+        this.maxLength = maxLength;
+    }
+
+    private String hit(String value) {
+        if (!this.sampled)
+            this.hits++;
+        return value;
+    }
+
+    private boolean bypassed() {
+        if (this.sampled)
+            return this.bypassed;
+
+        if (++this.lookups >= sampleLookups) {
+            this.bypassed = this.hits * 100L < (long) this.lookups * minHitsPercent;
+            this.sampled = true;
+        }
+        return false;
+    }
+
+    private int slotOf(int hash) {
+        return (hash ^ (hash >>> 16)) & this.mask;
+    }
+
+    String intern(String value) {
+        if (value.length() > this.maxLength || this.bypassed())
+            return value;
+
+        int hash = value.hashCode();
+        int slot = this.slotOf(hash);
+
+        Entry entry = this.slots[slot];
+        if (entry == null)
+            this.slots[slot] = new Entry(hash, null, value);
+        else if (entry.hash == hash && entry.value.equals(value))
+            return this.hit(entry.value);
+
+        return value;
+    }
+
+    // No string is created when the same bytes were seen before
+    String intern(byte[] bytes, int offset, int length) {
+        if (length > this.maxLength || this.bypassed())
+            return new String(bytes, offset, length, StandardCharsets.UTF_8);
+
+        int hash = 0;
+        for (int i = offset; i < offset + length; i++)
+            hash = 31 * hash + bytes[i];
+        int slot = this.slotOf(hash);
+
+        Entry entry = this.slots[slot];
+        if (entry != null && entry.hash == hash && entry.bytes != null && Arrays.equals(entry.bytes, 0, entry.bytes.length, bytes, offset, offset + length))
+            return this.hit(entry.value);
+
+        String value = new String(bytes, offset, length, StandardCharsets.UTF_8);
+        if (entry == null)
+            this.slots[slot] = new Entry(hash, Arrays.copyOfRange(bytes, offset, offset + length), value);
+        return value;
+    }
+}
@@ -1,327 +1,476 @@
-package net.ddns.arnautovevgeny.pricelist;
-
-import lombok.extern.slf4j.Slf4j;
-
-import java.util.*;
-import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.function.IntUnaryOperator;
-
-@Slf4j
-public class TasksBroker implements AutoCloseable {
-    private static final int maxProductsInQueue = 100000;
-    private static final int maxProductsToProduce = maxProductsInQueue / 100;
-    private static final int maxProductsToConsume = maxProductsToProduce / 2;
-    private static final int stepSizeToProduce = maxProductsToProduce / 10;
-    private static final int stepSizeToConsume = maxProductsToConsume / 10;
-    private static final int initialChunkToProduce = 100;
-    private static final int initialChunkToConsume = 100;
-
-    private static final int processorsCounter = Runtime.getRuntime().availableProcessors();
-    private static final int producersLimit = processorsCounter - 1;
-    private static final int consumersLimit = processorsCounter - 1;
-
-    private static final IntUnaryOperator decreaseTillOne = oldValue -> {
-        int newValue = oldValue - 1;
-        return newValue > 0 ? newValue : oldValue;
-    };
-
-    private static final IntUnaryOperator increaseProducersChunk = oldValue -> {
-        int newValue = oldValue + stepSizeToProduce;
-        return (Math.min(newValue, maxProductsToProduce));
-    };
-
-    private static final IntUnaryOperator increaseConsumersChunk = oldValue -> {
-        int newValue = oldValue + stepSizeToConsume;
-        return (Math.min(newValue, maxProductsToConsume));
-    };
-
-    private static final int warningsToOutput = 100000;
-
-    private final ExecutorService executorService;
-    private final AtomicBoolean shutdownNeeded;
-
-    private final FileReader fileReader;
-    private final ProductHandler productHandler;
-
-    private final AtomicInteger producersRequired;
-    private final AtomicInteger consumersRequired;
-
-    private final AtomicInteger producersActual;
-    private final AtomicInteger consumersActual;
-
-    private final boolean containsHeaders;
-    private final char delimiter;
-    private final Queue<String> filesList;
-    private final AtomicInteger filesToProceedCounter;
-
-    private final Queue<FileHandle> activeHandlesPool;
-    private final Queue<FileHandle> inactiveHandlesPool;
-    private final List<Queue<FileHandle>> handlesPoolList;
-
-    private final BlockingQueue<Product> productsList;
-    private final AtomicInteger productsCounter;
-    private final AtomicInteger queueFullWarnings;
-
-    private final ResultStorage resultStorage;
-
-    private boolean loadBalancer;
-    private AtomicInteger chunkSizeToProduce;
-    private AtomicInteger chunkSizeToConsume;
-
-    {
-        fileReader = new FileReader(this);
-        productHandler = new ProductHandler(this);
-
-        producersRequired = new AtomicInteger(processorsCounter / 2);
-        consumersRequired = new AtomicInteger(processorsCounter / 2);
-
-        chunkSizeToProduce = new AtomicInteger(initialChunkToProduce);
-        chunkSizeToConsume = new AtomicInteger(initialChunkToConsume);
-
-        producersActual = new AtomicInteger();
-        consumersActual = new AtomicInteger();
-
-        filesList = new ConcurrentLinkedQueue<>();
-        filesToProceedCounter = new AtomicInteger();
-
-        activeHandlesPool = new ConcurrentLinkedQueue<>();
-        inactiveHandlesPool = new ConcurrentLinkedQueue<>();
-
-        productsList = new LinkedBlockingQueue<>(maxProductsInQueue);
-
-        productsCounter = new AtomicInteger();
-        queueFullWarnings = new AtomicInteger();
-
-        executorService = Executors.newFixedThreadPool(processorsCounter);
-
-        shutdownNeeded = new AtomicBoolean();
-
-        handlesPoolList = List.of(activeHandlesPool, inactiveHandlesPool);
-
-        resultStorage = new ResultStorage();
-    }
-
-    public TasksBroker(String[] csvFiles, boolean containsHeaders, char delimiter) {
-        this.filesList.addAll(Arrays.asList(csvFiles));
-        this.containsHeaders = containsHeaders;
-        this.delimiter = delimiter;
-
-        int filesCount = this.filesToProceedCounter.addAndGet(csvFiles.length);
-        log.info("Ready to proceed {} files", filesCount);
-    }
-
-    public void start(boolean loadBalancer) {
-        this.loadBalancer = loadBalancer;
-
-        int producersCount = producersRequired.get();
-        int consumersCount = consumersRequired.get();
-
-        for (int i = producersCount; i > 0; i--) {
-            executorService.submit(fileReader);
-            producersActual.incrementAndGet();
-        }
-
-        for (int i = consumersCount; i > 0; i--) {
-            executorService.submit(productHandler);
-            consumersActual.incrementAndGet();
-        }
-
-        log.info("{} producers and {} consumers was started", producersCount, consumersCount);
-    }
-
-    private boolean producingCompleted() {
-        return filesList.isEmpty() && filesToProceedCounter.get() <= 0;
-    }
-
-    private boolean consumingCompleted() {
-        return producingCompleted() && productQueueIsEmpty();
-    }
-
-    private void updateProcessingState() {
-        if (producingCompleted() && consumingCompleted() && isReady()) {
-            if (shutdownNeeded.compareAndSet(false, true)) {
-                log.info("Shutting down the executorService");
-                executorService.shutdown();
-            }
-        }
-    }
-
-    private void increaseProducing() {
-        if (!producingCompleted()) {
-            boolean lastConsumer = consumersRequired.updateAndGet(decreaseTillOne) == 1;
-            if (lastConsumer) {
-                int chunkSize = chunkSizeToProduce.updateAndGet(increaseProducersChunk);
-                log.debug("Chunk size to produce {}", chunkSize);
-            }
-
-            int producersRequired = this.producersRequired.incrementAndGet();
-            log.debug("substituteByConsumer, consumersRequired {}, limit {}", consumersRequired, consumersLimit);
-            if (producersRequired <= producersLimit) {
-                int actual = producersActual.incrementAndGet();
-                log.debug("There are {} producers actual", actual);
-
-                executorService.submit(fileReader);
-            }
-            else
-                producersRequired = this.producersRequired.decrementAndGet();
-
-            log.debug("substituteByProducer, producersRequired {}", producersRequired);
-        }
-    }
-
-    private void increaseConsuming() {
-        if (!consumingCompleted()) {
-            boolean lastProducer = producersRequired.updateAndGet(decreaseTillOne) == 1;
-            if (lastProducer) {
-                int chunkSize = chunkSizeToConsume.updateAndGet(increaseConsumersChunk);
-                log.debug("Chunk size to consume {}", chunkSize);
-            }
-
-            int consumersCount = consumersRequired.incrementAndGet();
-            log.debug("substituteByConsumer, consumersRequired {}, limit {}", consumersCount, consumersLimit);
-            if (consumersCount <= consumersLimit) {
-                int actual = consumersActual.incrementAndGet();
-                log.debug("There are {} consumers actual", actual);
-
-                executorService.submit(productHandler);
-            }
-            else
-                consumersCount = this.consumersRequired.decrementAndGet();
-
-            log.debug("substituteByConsumer, consumersRequired {}", consumersCount);
-        }
-    }
-
-    private boolean isReady() {
-        return this.resultStorage.isReady();
-    }
-
-    boolean productQueueIsFull() {
-        return this.productsCounter.get() >= maxProductsInQueue;
-    }
-
-    private boolean productQueueIsEmpty() {
-        return this.productsList.isEmpty();
-    }
-
-    void addProducts(Collection<Product> products) {
-        for (Product product : products) {
-            if (!productsList.offer(product)) {
-                int warningsCount = queueFullWarnings.incrementAndGet();
-                if (warningsCount % warningsToOutput == 0)
-                    log.warn("Couldn't offer a product, queue is full. Currently there were {} warnings", warningsCount);
-
-                if (loadBalancer)
-                    increaseConsuming();
-
-                try {
-                    productsList.put(product);
-                } catch (InterruptedException e) {
-                    log.error("Thread was interrupted and couldn't put product into a queue", e);
-                }
-            }
-        }
-
-        this.productsCounter.addAndGet(products.size());
-    }
-
-    Collection<Product> getProducts() {
-        List<Product> productsChunk = new LinkedList<>();
-        productsList.drainTo(productsChunk, chunkSizeToConsume.get());
-
-        int chunkSize = productsChunk.size();
-        this.productsCounter.addAndGet(-chunkSize);
-
-        if (loadBalancer && chunkSize <= 0)
-            this.increaseProducing();
-
-        return productsChunk;
-    }
-
-    void addFileHandler(FileHandle fileHandle) {
-        if (fileHandle.isActive())
-            this.activeHandlesPool.offer(fileHandle);
-        else
-        {
-            int count = this.filesToProceedCounter.decrementAndGet();
-            log.info("There are {} files left to proceed, last processed {}", count, fileHandle.getFileName());
-
-            this.resultStorage.addRead(fileHandle.getLines());
-            if (count == 0)
-                this.resultStorage.setStopped();
-            else
-                this.inactiveHandlesPool.offer(fileHandle.reset());
-        }
-    }
-
-    FileHandle getFileHandler() {
-        FileHandle handle = null;
-
-        for (var fileHandlers : this.handlesPoolList) {
-            if ((handle = fileHandlers.poll()) != null) {
-                break;
-            }
-        }
-
-        if (handle == null || !handle.isActive()) {
-            String fileName = this.filesList.poll();
-            if (fileName == null)
-                handle = null;
-            else
-            {
-                if (handle == null)
-                    handle = new FileHandleCsv(containsHeaders, delimiter, chunkSizeToProduce.get());
-
-                handle.setFileName(fileName);
-            }
-        }
-
-        return handle;
-    }
-
-    boolean producerRequired() {
-        return !this.producingCompleted() && this.producersActual.get() <= this.producersRequired.get();
-    }
-
-    void producerStopped() {
-        int actual = this.producersActual.decrementAndGet();
-        log.debug("Currently {} producers", actual);
-
-        updateProcessingState();
-    }
-
-    boolean consumerRequired() {
-        return !this.consumingCompleted() && this.consumersActual.get() <= this.consumersRequired.get();
-    }
-
-    void consumerStopped() {
-        int actual = this.consumersActual.decrementAndGet();
-        log.debug("Currently {} consumers", actual);
-
-        updateProcessingState();
-    }
-
-    void handleProduct(Product product) {
-        this.resultStorage.handle(product);
-    }
-
-    public void awaitsTermination() throws InterruptedException {
-        this.executorService.awaitTermination(365, TimeUnit.DAYS);
-    }
-
-    public Collection<Product> getResult() {
-        if (this.isReady())
-            return this.resultStorage.getResult();
-        else {
-            log.error("Trying to get result while not ready");
-            return new LinkedList<>();
-        }
-    }
-
-    @Override
-    public void close() {
-        this.resultStorage.close();
-    }
+package net.ddns.arnautovevgeny.pricelist;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+@Slf4j
+public class TasksBroker implements AutoCloseable {
+    public enum Option {
+        SHARDED_STORAGE,
+        MAPPED_FILES,
+        // Files are written by ResultOutputBinary instead of csv
+        BINARY_FILES,
+        // Products are passed by whole preallocated chunks instead of one by one
+        RING_HANDOFF,
+        // Metrics are written to the log once per interval
+        METRICS_REPORTER
+    }
+
+    private static final int maxProductsInQueue = 100000;
+    private static final int maxProductsToProduce = maxProductsInQueue / 100;
+    private static final int maxProductsToConsume = maxProductsToProduce / 2;
+    private static final int initialChunkToProduce = 100;
+    private static final int initialChunkToConsume = 100;
+
+    // At least one producer and one consumer, otherwise nobody drains a full queue
+    private static final int processorsCounter = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private static final int producersLimit = processorsCounter - 1;
+    private static final int consumersLimit = processorsCounter - 1;
+
+    private static final long controllerIntervalMillis = 100;
+    private static final long reporterIntervalMillis = 1000;
+
+    private static final int warningsToOutput = 100000;
+
+    private final ExecutorService executorService;
+    private final ScheduledExecutorService scheduledService;
+    private final AtomicBoolean shutdownNeeded;
+
+    private final FileReader fileReader;
+
+    private final AtomicInteger producersRequired;
+    private final AtomicInteger consumersRequired;
+
+    private final AtomicInteger producersActual;
+    private final AtomicInteger consumersActual;
+
+    private final boolean containsHeaders;
+    private final char delimiter;
+    private final CsvSchema csvSchema;
+    private final boolean mappedFiles;
+    private final boolean binaryFiles;
+    private final ProductDictionary productDictionary;
+    private final boolean metricsReporter;
+    private Metrics.Watch watch;
+    private final Queue<String> filesList;
+    private volatile RejectedRows rejectedRows;
+    private final AtomicInteger filesToProceedCounter;
+    private final Set<String> failedFiles;
+
+    private final Queue<FileHandle> activeHandlesPool;
+    private final Queue<FileHandle> inactiveHandlesPool;
+    private final List<Queue<FileHandle>> handlesPoolList;
+
+    private final List<ProductsHandoff> productsQueues;
+    private final AtomicInteger productsCounter;
+    private final AtomicLong productsProduced;
+    private final AtomicLong productsConsumed;
+    private final AtomicInteger queueFullWarnings;
+
+    private final ResultStorage resultStorage;
+    private final ResultStorageSharded shardedStorage;
+    private final ProductHandler[] productHandlers;
+
+    private AtomicInteger chunkSizeToProduce;
+    private AtomicInteger chunkSizeToConsume;
+
+    {
+        fileReader = new FileReader(this);
+
+        producersRequired = new AtomicInteger(processorsCounter / 2);
+        consumersRequired = new AtomicInteger(processorsCounter / 2);
+
+        chunkSizeToProduce = new AtomicInteger(initialChunkToProduce);
+        chunkSizeToConsume = new AtomicInteger(initialChunkToConsume);
+
+        producersActual = new AtomicInteger();
+        consumersActual = new AtomicInteger();
+
+        filesList = new ConcurrentLinkedQueue<>();
+        filesToProceedCounter = new AtomicInteger();
+        failedFiles = ConcurrentHashMap.newKeySet();
+
+        activeHandlesPool = new ConcurrentLinkedQueue<>();
+        inactiveHandlesPool = new ConcurrentLinkedQueue<>();
+
+        productsCounter = new AtomicInteger();
+        productsProduced = new AtomicLong();
+        productsConsumed = new AtomicLong();
+        queueFullWarnings = new AtomicInteger();
+
+        executorService = Executors.newFixedThreadPool(processorsCounter);
+        scheduledService = Executors.newSingleThreadScheduledExecutor();
+
+        shutdownNeeded = new AtomicBoolean();
+
+        handlesPoolList = List.of(activeHandlesPool, inactiveHandlesPool);
+    }
+
+    public TasksBroker(String[] csvFiles, boolean containsHeaders, char delimiter, CsvSchema csvSchema, Option... options) {
+        Set<Option> optionsSet = options.length == 0 ? EnumSet.noneOf(Option.class) : EnumSet.copyOf(Arrays.asList(options));
+        boolean sharded = optionsSet.contains(Option.SHARDED_STORAGE);
+        boolean ringHandoff = optionsSet.contains(Option.RING_HANDOFF);
+
+        this.filesList.addAll(Arrays.asList(csvFiles));
+        this.containsHeaders = containsHeaders;
+        this.delimiter = delimiter;
+        this.csvSchema = csvSchema;
+        this.mappedFiles = optionsSet.contains(Option.MAPPED_FILES);
+        this.binaryFiles = optionsSet.contains(Option.BINARY_FILES);
+        this.productDictionary = new ProductDictionary();
+        this.metricsReporter = optionsSet.contains(Option.METRICS_REPORTER);
+
+        // Each shard has its own queue and is owned by exactly one consumer
+        int queuesCount = sharded ? Math.max(1, consumersRequired.get()) : 1;
+        if (sharded) {
+            this.shardedStorage = new ResultStorageSharded(queuesCount);
+            this.resultStorage = this.shardedStorage;
+        }
+        else {
+            this.shardedStorage = null;
+            this.resultStorage = new ResultStorageConcurrent();
+        }
+
+        List<ProductsHandoff> queues = new ArrayList<>(queuesCount);
+        this.productHandlers = new ProductHandler[queuesCount];
+        for (int i = 0; i < queuesCount; i++) {
+            int capacity = maxProductsInQueue / queuesCount;
+            queues.add(ringHandoff
+                    ? new ProductsHandoffRing(capacity / maxProductsToProduce, maxProductsToProduce)
+                    : new ProductsHandoffQueue(capacity));
+            this.productHandlers[i] = new ProductHandler(this, i);
+        }
+        this.productsQueues = List.copyOf(queues);
+
+        int filesCount = this.filesToProceedCounter.addAndGet(csvFiles.length);
+        log.info("Ready to proceed {} files", filesCount);
+    }
+
+    public TasksBroker(String[] csvFiles, boolean containsHeaders, char delimiter, Option... options) {
+        this(csvFiles, containsHeaders, delimiter, CsvSchema.of(containsHeaders), options);
+    }
+
+    // Malformed rows of csv files read by the default handle are kept there, mapped segments don't know their rows
+    public void setRejectedRows(RejectedRows rejectedRows) {
+        if (this.mappedFiles)
+            throw new IllegalArgumentException("Rejected rows can't be kept for mapped files, they are read by the default handle only");
+        this.rejectedRows = rejectedRows;
+    }
+
+    public void start(boolean loadBalancer) {
+        if (loadBalancer && this.isSharded()) {
+            log.info("Load balancer is not available for sharded storage, consumers are bound to shards");
+            loadBalancer = false;
+        }
+
+        this.watch = Metrics.get().watch(this.resultStorage.getPriceCutoff(), this.producersActual::get, this.consumersActual::get);
+        if (this.metricsReporter)
+            this.scheduledService.scheduleAtFixedRate(new MetricsReporter(Metrics.get()), reporterIntervalMillis, reporterIntervalMillis, TimeUnit.MILLISECONDS);
+
+        int producersCount = producersRequired.get();
+        int consumersCount = this.isSharded() ? this.productHandlers.length : consumersRequired.get();
+
+        for (int i = producersCount; i > 0; i--) {
+            executorService.submit(fileReader);
+            producersActual.incrementAndGet();
+        }
+
+        for (int i = 0; i < consumersCount; i++) {
+            executorService.submit(this.isSharded() ? productHandlers[i] : productHandlers[0]);
+            consumersActual.incrementAndGet();
+        }
+
+        log.info("{} producers and {} consumers was started", producersCount, consumersCount);
+
+        if (loadBalancer) {
+            WorkersController controller = new WorkersController(this, processorsCounter, maxProductsInQueue, maxProductsToProduce, maxProductsToConsume);
+            this.scheduledService.scheduleAtFixedRate(controller, controllerIntervalMillis, controllerIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    boolean producingCompleted() {
+        return filesList.isEmpty() && filesToProceedCounter.get() <= 0;
+    }
+
+    private boolean consumingCompleted() {
+        return producingCompleted() && productQueueIsEmpty();
+    }
+
+    private boolean consumingCompleted(int queueIndex) {
+        return producingCompleted() && this.productsQueues.get(queueIndex).isEmpty();
+    }
+
+    private boolean isSharded() {
+        return this.shardedStorage != null;
+    }
+
+    private Map<Integer, List<Product>> productsByQueue(Collection<Product> products) {
+        if (!this.isSharded())
+            return Map.of(0, products instanceof List ? (List<Product>) products : new ArrayList<>(products));
+
+        Map<Integer, List<Product>> productsByQueue = new HashMap<>();
+        for (Product product : products)
+            productsByQueue.computeIfAbsent(this.shardedStorage.shardOf(product), queueIndex -> new ArrayList<>()).add(product);
+
+        return productsByQueue;
+    }
+
+    private void updateProcessingState() {
+        if (producingCompleted() && consumingCompleted() && isReady()) {
+            if (shutdownNeeded.compareAndSet(false, true)) {
+                log.info("Shutting down the executorService");
+                scheduledService.shutdown();
+                executorService.shutdown();
+            }
+        }
+    }
+
+    // Only one worker leaves at a time, so there are never less of them than required
+    private static boolean leave(AtomicInteger actual, AtomicInteger required) {
+        int current;
+        while ((current = actual.get()) > required.get()) {
+            if (actual.compareAndSet(current, current - 1))
+                return true;
+        }
+        return false;
+    }
+
+    private void submit(AtomicInteger actual, AtomicInteger required, Runnable worker) {
+        int current;
+        while ((current = actual.get()) < required.get()) {
+            if (actual.compareAndSet(current, current + 1)) {
+                try {
+                    executorService.submit(worker);
+                } catch (RejectedExecutionException e) {
+                    actual.decrementAndGet();
+                    return;
+                }
+            }
+        }
+    }
+
+    void adjustWorkers(int producers, int consumers, int chunkToProduce, int chunkToConsume) {
+        this.chunkSizeToProduce.set(chunkToProduce);
+        this.chunkSizeToConsume.set(chunkToConsume);
+
+        this.producersRequired.set(producers);
+        this.consumersRequired.set(consumers);
+
+        if (!this.producingCompleted())
+            this.submit(this.producersActual, this.producersRequired, this.fileReader);
+        if (!this.consumingCompleted())
+            this.submit(this.consumersActual, this.consumersRequired, this.productHandlers[0]);
+    }
+
+    long getProductsProduced() {
+        return this.productsProduced.get();
+    }
+
+    long getProductsConsumed() {
+        return this.productsConsumed.get();
+    }
+
+    int getProductsQueued() {
+        return this.productsCounter.get();
+    }
+
+    int getProducersActual() {
+        return this.producersActual.get();
+    }
+
+    int getConsumersActual() {
+        return this.consumersActual.get();
+    }
+
+    private boolean isReady() {
+        return this.resultStorage.isReady();
+    }
+
+    boolean productQueueIsFull() {
+        return this.productsCounter.get() >= maxProductsInQueue;
+    }
+
+    private boolean productQueueIsEmpty() {
+        for (ProductsHandoff productsQueue : this.productsQueues) {
+            if (!productsQueue.isEmpty())
+                return false;
+        }
+        return true;
+    }
+
+    private void queueIsFull() {
+        int warningsCount = queueFullWarnings.incrementAndGet();
+        if (warningsCount % warningsToOutput == 0)
+            log.warn("Couldn't offer a product, queue is full. Currently there were {} warnings", warningsCount);
+    }
+
+    void addProducts(Collection<Product> products) {
+        long began = System.nanoTime();
+        for (Map.Entry<Integer, List<Product>> queueProducts : this.productsByQueue(products).entrySet())
+            this.productsQueues.get(queueProducts.getKey()).put(queueProducts.getValue(), this::queueIsFull);
+        Metrics.get().producerWaited(System.nanoTime() - began);
+
+        this.productsCounter.addAndGet(products.size());
+        this.productsProduced.addAndGet(products.size());
+    }
+
+    Collection<Product> getProducts(int queueIndex) {
+        Collection<Product> productsChunk = productsQueues.get(queueIndex).poll(chunkSizeToConsume.get());
+
+        int chunkSize = productsChunk.size();
+        this.productsCounter.addAndGet(-chunkSize);
+        this.productsConsumed.addAndGet(chunkSize);
+
+        return productsChunk;
+    }
+
+    void addFileHandler(FileHandle fileHandle) {
+        if (fileHandle.isActive())
+            this.activeHandlesPool.offer(fileHandle);
+        else
+        {
+            int count = this.filesToProceedCounter.decrementAndGet();
+            log.info("There are {} files left to proceed, last processed {}", count, fileHandle.getFileName());
+
+            Metrics.get().fileRead(fileHandle.getFileName(), fileHandle.getLines() + fileHandle.getLinesRejected(), fileHandle.getBytes());
+            if (fileHandle.isFailed())
+                this.failedFiles.add(fileHandle.getFileName());
+            this.resultStorage.addRead(fileHandle.getLines());
+            if (count == 0)
+                this.resultStorage.setStopped();
+            else
+                this.inactiveHandlesPool.offer(fileHandle.reset());
+        }
+    }
+
+    FileHandle getFileHandler() {
+        FileHandle handle = null;
+
+        for (var fileHandlers : this.handlesPoolList) {
+            if ((handle = fileHandlers.poll()) != null) {
+                break;
+            }
+        }
+
+        if (handle == null || !handle.isActive()) {
+            String fileName = this.filesList.poll();
+            if (fileName == null)
+                handle = null;
+            else
+            {
+                if (handle == null) {
+                    if (this.binaryFiles)
+                        handle = new FileHandleBinary(chunkSizeToProduce.get(), resultStorage.getPriceCutoff(), productDictionary);
+                    else if (this.mappedFiles)
+                        handle = new FileHandleMapped(containsHeaders, delimiter, csvSchema, chunkSizeToProduce.get(), resultStorage.getPriceCutoff(), productDictionary);
+                    else {
+                        FileHandleCsv csvHandle = new FileHandleCsv(containsHeaders, delimiter, csvSchema, chunkSizeToProduce.get(), resultStorage.getPriceCutoff(), productDictionary);
+                        if (this.rejectedRows != null)
+                            csvHandle.setRejectedRows(this.rejectedRows);
+                        handle = csvHandle;
+                    }
+                }
+
+                handle.setFileName(fileName);
+
+                // Segments are counted as separate files before anyone could finish them
+                List<FileHandle> segments = handle.split();
+                if (!segments.isEmpty()) {
+                    this.filesToProceedCounter.addAndGet(segments.size());
+                    this.activeHandlesPool.addAll(segments);
+                }
+            }
+        }
+
+        if (handle != null)
+            handle.setChunkSize(chunkSizeToProduce.get());
+
+        return handle;
+    }
+
+    boolean producerExcessive() {
+        return this.producersActual.get() > this.producersRequired.get();
+    }
+
+    // A producer which isn't required anymore is already not counted as actual
+    boolean producerRequired() {
+        if (this.producingCompleted()) {
+            this.producersActual.decrementAndGet();
+            return false;
+        }
+
+        return !leave(this.producersActual, this.producersRequired);
+    }
+
+    void producerStopped() {
+        log.debug("Currently {} producers", this.producersActual.get());
+
+        updateProcessingState();
+    }
+
+    boolean consumerExcessive() {
+        return !this.isSharded() && this.consumersActual.get() > this.consumersRequired.get();
+    }
+
+    // A consumer which isn't required anymore is already not counted as actual
+    boolean consumerRequired(int queueIndex) {
+        if (this.isSharded() ? this.consumingCompleted(queueIndex) : this.consumingCompleted()) {
+            this.consumersActual.decrementAndGet();
+            return false;
+        }
+
+        return this.isSharded() || !leave(this.consumersActual, this.consumersRequired);
+    }
+
+    void consumerStopped() {
+        log.debug("Currently {} consumers", this.consumersActual.get());
+
+        updateProcessingState();
+    }
+
+    void handleProducts(int queueIndex, Collection<Product> products) {
+        if (this.isSharded())
+            this.shardedStorage.handle(queueIndex, products);
+        else {
+            for (Product product : products)
+                this.resultStorage.handle(product);
+        }
+
+        this.productsQueues.get(queueIndex).release(products);
+    }
+
+    public void awaitsTermination() throws InterruptedException {
+        this.executorService.awaitTermination(365, TimeUnit.DAYS);
+    }
+
+    public ResultSnapshot getSnapshot() {
+        return this.resultStorage.getSnapshot();
+    }
+
+    // Files which couldn't be read to their end, only a part of their products is in the result
+    public Set<String> getFailedFiles() {
+        return this.failedFiles;
+    }
+
+    public Collection<Product> getResult() {
+        if (this.isReady())
+            return this.resultStorage.getResult();
+        else {
+            log.error("Trying to get result while not ready");
+            return new LinkedList<>();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (this.watch != null)
+            this.watch.close();
+        this.scheduledService.shutdownNow();
+        this.resultStorage.close();
+    }
 }
\ No newline at end of file
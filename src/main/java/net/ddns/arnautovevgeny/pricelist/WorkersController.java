@@ -0,0 +1,97 @@
+package net.ddns.arnautovevgeny.pricelist;
+
+import lombok.extern.slf4j.Slf4j;
+
+// Samples throughput of producers and consumers on a fixed interval and splits the workers between them
+@Slf4j
+public class WorkersController implements Runnable {
+    private static final double lowOccupancy = 0.25;
+    private static final double highOccupancy = 0.75;
+    private static final double smoothing = 0.5;
+    private static final int minChunkSize = 100;
+
+    private final TasksBroker tasksBroker;
+    private final int workersLimit;
+    private final int queueCapacity;
+    private final int maxChunkToProduce;
+    private final int maxChunkToConsume;
+
+    private long sampledBefore;
+    private long producedBefore;
+    private long consumedBefore;
+
+    // Products per second of a single worker
+    private double producerRate;
+    private double consumerRate;
+
+    public WorkersController(TasksBroker tasksBroker, int workersLimit, int queueCapacity, int maxChunkToProduce, int maxChunkToConsume) {
+        this.tasksBroker = tasksBroker;
+        this.workersLimit = workersLimit;
+        this.queueCapacity = queueCapacity;
+        this.maxChunkToProduce = maxChunkToProduce;
+        this.maxChunkToConsume = maxChunkToConsume;
+
+        this.sampledBefore = System.nanoTime();
+    }
+
+    private static double smooth(double rate, double sample) {
+        return rate == 0 ? sample : rate + smoothing * (sample - rate);
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(value, max));
+    }
+
+    @Override
+    public void run() {
+        long sampled = System.nanoTime();
+        long produced = this.tasksBroker.getProductsProduced();
+        long consumed = this.tasksBroker.getProductsConsumed();
+        int queued = this.tasksBroker.getProductsQueued();
+        int producers = this.tasksBroker.getProducersActual();
+        int consumers = this.tasksBroker.getConsumersActual();
+
+        double seconds = (sampled - this.sampledBefore) / 1e9;
+        if (seconds <= 0)
+            return;
+
+        // A side which waited for the other one doesn't show its own capacity, so its rate is kept as it was
+        double occupancy = (double) queued / this.queueCapacity;
+        if (producers > 0 && occupancy < highOccupancy)
+            this.producerRate = smooth(this.producerRate, (produced - this.producedBefore) / seconds / producers);
+        if (consumers > 0 && occupancy > lowOccupancy)
+            this.consumerRate = smooth(this.consumerRate, (consumed - this.consumedBefore) / seconds / consumers);
+
+        this.sampledBefore = sampled;
+        this.producedBefore = produced;
+        this.consumedBefore = consumed;
+
+        int producersTarget;
+        if (this.tasksBroker.producingCompleted())
+            producersTarget = 1;
+        else {
+            // Both sides should pass the same amount of products: producers * producerRate == consumers * consumerRate
+            if (this.producerRate > 0 && this.consumerRate > 0)
+                producersTarget = (int) Math.round(this.workersLimit * this.consumerRate / (this.producerRate + this.consumerRate));
+            else
+                producersTarget = producers;
+
+            if (occupancy > highOccupancy)
+                producersTarget--;
+            else if (occupancy < lowOccupancy)
+                producersTarget++;
+        }
+
+        producersTarget = clamp(producersTarget, 1, this.workersLimit - 1);
+        int consumersTarget = this.workersLimit - producersTarget;
+
+        int chunkToProduce = clamp((this.queueCapacity - queued) / producersTarget, minChunkSize, this.maxChunkToProduce);
+        int chunkToConsume = clamp(queued / consumersTarget, minChunkSize, this.maxChunkToConsume);
+
+        log.info("Occupancy {}, rates per worker {}/{}: producers {} -> {}, consumers {} -> {}, chunks {}/{}",
+                String.format("%.2f", occupancy), Math.round(this.producerRate), Math.round(this.consumerRate),
+                producers, producersTarget, consumers, consumersTarget, chunkToProduce, chunkToConsume);
+
+        this.tasksBroker.adjustWorkers(producersTarget, consumersTarget, chunkToProduce, chunkToConsume);
+    }
+}
@@ -1,275 +1,1001 @@
-package net.ddns.arnautovevgeny.pricelist;
-
-import de.siegmar.fastcsv.writer.CsvWriter;
-import lombok.Getter;
-import lombok.extern.slf4j.Slf4j;
-import org.junit.jupiter.api.AfterAll;
-import org.junit.jupiter.api.BeforeAll;
-import org.junit.jupiter.api.Test;
-
-import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ConcurrentSkipListSet;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.function.Supplier;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
-
-import static org.junit.jupiter.api.Assertions.assertIterableEquals;
-
-@Slf4j
-class AutomationTest {
-    private static class RandomProductGenerator implements Supplier<Product> {
-        static final int minPriceInCentsDefault = 1;
-        static final int maxPriceInCentsDefault = 9999999;
-
-        private final Random random = new Random();
-        private final Queue<Integer> idsToReuse = new ConcurrentLinkedQueue<>();
-
-        private final int minimalPriceInCents;
-        private final int maximalPriceInCents;
-        private final AtomicInteger numberSequence;
-
-        RandomProductGenerator(int minimalId, int minimalPriceInCents, int maximalPriceInCents) {
-            if (minimalId <= 0 || minimalPriceInCents <= 0 || maximalPriceInCents <= 0 || minimalPriceInCents > maximalPriceInCents) {
-                log.error("minimalId {}, minimalPriceInCents {}, maximalPriceInCents {}", minimalId, minimalPriceInCents, maximalPriceInCents);
-                throw new IllegalArgumentException();
-            }
-
-            this.numberSequence = new AtomicInteger(minimalId);
-            this.minimalPriceInCents = minimalPriceInCents;
-            this.maximalPriceInCents = maximalPriceInCents;
-        }
-
-        RandomProductGenerator(int minimalId, int minimalPriceInCents) {
-            this(minimalId, minimalPriceInCents, maxPriceInCentsDefault);
-        }
-
-        RandomProductGenerator(int minimalId) {
-            this(minimalId, minPriceInCentsDefault);
-        }
-
-        RandomProductGenerator() {
-            this(1);
-        }
-
-        @Override
-        public Product get() {
-            Integer id = null;
-            boolean newIdNeeded = this.random.nextBoolean();
-            if (!newIdNeeded)
-                id = this.idsToReuse.poll();
-
-            if (id == null)
-                id = this.numberSequence.getAndIncrement();
-
-            this.idsToReuse.offer(id);
-
-            float randomPrice = this.minimalPriceInCents + this.random.nextInt(maximalPriceInCents - minimalPriceInCents + 1);
-            randomPrice /= 100;
-
-            return new Product(id, "product " + id, "new", "ok", randomPrice);
-        }
-    }
-
-    private static class FileNameGenerator implements Supplier<String> {
-        @Getter
-        private final String templateName;
-        private final AtomicInteger numberSequence = new AtomicInteger();
-
-        FileNameGenerator(String templateName) {
-            this.templateName = templateName;
-        }
-
-        @Override
-        public String get() {
-            return this.templateName + this.numberSequence.incrementAndGet() + ".csv";
-        }
-    }
-
-    private static class LinesByPath {
-        @Getter
-        private Map<Path, Queue<String[]>> storage = new ConcurrentHashMap<>();
-
-        private Queue<Queue<String[]>> emptyLinesPool = new ConcurrentLinkedQueue<>();
-
-        private Queue<String[]> getFromPool() {
-            Queue<String[]> entry = emptyLinesPool.poll();
-            if (entry == null) {
-                entry = new ConcurrentLinkedQueue<>();
-                if (includeHeaders)
-                    entry.offer(new String[]{"product ID", "Name", "Condition", "State", "Price"});
-            }
-
-            return entry;
-        }
-
-        private void addToPool(Queue<String[]> entry) {
-            emptyLinesPool.offer(entry);
-        }
-
-        void addLine(Path path, String[] line) {
-            Queue<String[]> newEntry = getFromPool();
-
-            Queue<String[]> entry = storage.putIfAbsent(path, newEntry);
-            boolean isNew = entry == null;
-            if (isNew)
-                entry = newEntry;
-            else
-                addToPool(newEntry);
-
-            entry.offer(line);
-        }
-    }
-
-    private final static FileNameGenerator fileNameGenerator = new FileNameGenerator(System.getProperty("user.home") + "\\generated");
-    private final static CsvWriter csvWriter = new CsvWriter();
-
-    private static final int limitById = 20;
-    private static final int limitTotal = 1000;
-    private static final int productsToGenerateLimit = 1000000;
-    private static final int filesToCreate = 1000;
-
-    private static final boolean includeHeaders = false;
-    private static final char delimiter = ',';
-
-    private static final int expectedProductsMaxPriceInCents = 99999;
-    private static Collection<Product> expectedProducts;
-
-    private static String[] csvFiles;
-    private static Path[] csvPaths;
-
-    private static void calcExpectedResult() {
-        RandomProductGenerator expectedProductsGenerator = new RandomProductGenerator(1, RandomProductGenerator.minPriceInCentsDefault, expectedProductsMaxPriceInCents);
-
-        Map<Integer, NavigableSet<Product>> groupedByID = Stream.generate(expectedProductsGenerator).parallel().limit(10 * limitTotal * limitById).
-                collect(Collectors.groupingByConcurrent(Product::getId, Collectors.toCollection(ConcurrentSkipListSet::new)));
-
-        var expectedBeforeShrink = groupedByID.entrySet().parallelStream().map(e -> {
-                    NavigableSet<Product> products = e.getValue();
-
-                    int size = products.size();
-                    for (int i = size; i > limitById; i--)
-                        products.pollLast();
-
-                    return products;
-                }
-        ).flatMap(Collection::stream).collect(Collectors.toCollection(ConcurrentSkipListSet::new));
-
-        expectedProducts = expectedBeforeShrink.stream().limit(limitTotal).collect(Collectors.toCollection(ConcurrentSkipListSet::new));
-    }
-
-    private static void createCsvFiles(Stream<Product> generatedProducts, Path[] pathsArray) {
-        int pathSize = pathsArray.length;
-        log.info("pathsArray was generated with size {}", pathSize);
-
-        Random random = new Random();
-        LinesByPath linesByPath = new LinesByPath();
-
-        generatedProducts.parallel().map(
-                product -> new String[]{Integer.toString(product.getId()), product.getName(), product.getCondition(), product.getState(), Float.toString(product.getPrice())}
-        ).forEach(line -> {
-                    Path path = pathsArray[(random.nextInt() & Integer.MAX_VALUE) % pathSize];
-                    linesByPath.addLine(path, line);
-                }
-        );
-
-        log.info("Lines for files prepared in a parallel manner");
-
-        csvWriter.setFieldSeparator(delimiter);
-
-        var linesStorage = linesByPath.getStorage();
-        linesStorage.entrySet().parallelStream().forEach(e -> {
-            try {
-                csvWriter.write(e.getKey(), StandardCharsets.UTF_8, e.getValue());
-            } catch (IOException ex) {
-                ex.printStackTrace();
-            }
-        });
-    }
-
-    private static Stream<Product> generateProducts() {
-        calcExpectedResult();
-
-        int expectedResultSize = expectedProducts.size();
-        log.info("Expected result is obtained. It contains {} elements", expectedResultSize);
-
-        int maxExpectedId = (expectedProducts.stream().mapToInt(Product::getId).max().orElse(0));
-        int maxExpectedPriceInCents = expectedProductsMaxPriceInCents + 1;
-
-        int minimalAdditionId = maxExpectedId + 1;
-        int minimalAdditionPriceInCents = maxExpectedPriceInCents + 1;
-
-        log.info("minimal addition id {}, minimal addition price in cents {}", minimalAdditionId, minimalAdditionPriceInCents);
-
-        RandomProductGenerator additionalGenerator = new RandomProductGenerator(minimalAdditionId, minimalAdditionPriceInCents);
-
-        int additionLimit = productsToGenerateLimit - expectedResultSize;
-
-        Stream<Product> additionStream = Stream.generate(additionalGenerator).limit(additionLimit);
-
-        return Stream.concat(additionStream, expectedProducts.stream());
-    }
-
-    @BeforeAll
-    static void createFiles() {
-        var generatedProducts = generateProducts();
-
-        csvFiles = Stream.generate(fileNameGenerator).limit(filesToCreate).toArray(String[]::new);
-
-        csvPaths = Stream.of(csvFiles).map(filename -> Paths.get(filename)).toArray(Path[]::new);
-
-        createCsvFiles(generatedProducts, csvPaths);
-
-        log.info("{} files was generated in {}", filesToCreate, Paths.get(fileNameGenerator.getTemplateName()).getParent().toAbsolutePath());
-    }
-
-    @Test
-    void testViaStream() throws IOException {
-        PriceList priceList = new PriceList(Paths.get("resultStream.csv"), includeHeaders, delimiter);
-        priceList.processViaStreamAPI(csvFiles);
-
-        Collection<Product> actual = priceList.getProducts();
-        priceList.output();
-
-        assertIterableEquals(expectedProducts, actual);
-    }
-
-    private void producerConsumer(boolean loadBalancer) throws IOException, InterruptedException {
-        PriceList priceList = new PriceList(Paths.get("resultProducerConsumer.csv"), includeHeaders, delimiter);
-        priceList.processViaProducerConsumer(csvFiles, loadBalancer);
-
-        Collection<Product> actual = priceList.getProducts();
-        priceList.output();
-
-        assertIterableEquals(expectedProducts, actual);
-    }
-
-    @Test
-    void testViaProducerConsumer() throws IOException, InterruptedException {
-        this.producerConsumer(false);
-    }
-
-    @Test
-    void testViaProducerConsumerLoadBalancer() throws IOException, InterruptedException {
-        this.producerConsumer(true);
-    }
-
-    @AfterAll
-    static void outputExpectedResult() throws IOException {
-        ResultOutput resultOutput = new ResultOutputCsv(Paths.get("expected.csv"), includeHeaders, delimiter);
-        resultOutput.output(expectedProducts);
-    }
-
-    @AfterAll
-    static void removeGeneratedFiles() throws IOException {
-        for (Path path : csvPaths)
-            Files.deleteIfExists(path);
-    }
-}
+package net.ddns.arnautovevgeny.pricelist;
+
+import de.siegmar.fastcsv.writer.CsvWriter;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertIterableEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@Slf4j
+class AutomationTest {
+    private static class RandomProductGenerator implements Supplier<Product> {
+        static final int minPriceInCentsDefault = 1;
+        static final int maxPriceInCentsDefault = 9999999;
+
+        private final Random random = new Random();
+        private final Queue<Integer> idsToReuse = new ConcurrentLinkedQueue<>();
+
+        private final int minimalPriceInCents;
+        private final int maximalPriceInCents;
+        private final AtomicInteger numberSequence;
+
+        RandomProductGenerator(int minimalId, int minimalPriceInCents, int maximalPriceInCents) {
+            if (minimalId <= 0 || minimalPriceInCents <= 0 || maximalPriceInCents <= 0 || minimalPriceInCents > maximalPriceInCents) {
+                log.error("minimalId {}, minimalPriceInCents {}, maximalPriceInCents {}", minimalId, minimalPriceInCents, maximalPriceInCents);
+                throw new IllegalArgumentException();
+            }
+
+            this.numberSequence = new AtomicInteger(minimalId);
+            this.minimalPriceInCents = minimalPriceInCents;
+            this.maximalPriceInCents = maximalPriceInCents;
+        }
+
+        RandomProductGenerator(int minimalId, int minimalPriceInCents) {
+            this(minimalId, minimalPriceInCents, maxPriceInCentsDefault);
+        }
+
+        RandomProductGenerator(int minimalId) {
+            this(minimalId, minPriceInCentsDefault);
+        }
+
+        RandomProductGenerator() {
+            this(1);
+        }
+
+        @Override
+        public Product get() {
+            Integer id = null;
+            boolean newIdNeeded = this.random.nextBoolean();
+            if (!newIdNeeded)
+                id = this.idsToReuse.poll();
+
+            if (id == null)
+                id = this.numberSequence.getAndIncrement();
+
+            this.idsToReuse.offer(id);
+
+            int randomPriceInCents = this.minimalPriceInCents + this.random.nextInt(maximalPriceInCents - minimalPriceInCents + 1);
+
+            return new Product(id, "product " + id, "new", "ok", randomPriceInCents);
+        }
+    }
+
+    private static class FileNameGenerator implements Supplier<String> {
+        @Getter
+        private final String templateName;
+        private final AtomicInteger numberSequence = new AtomicInteger();
+
+        FileNameGenerator(String templateName) {
+            this.templateName = templateName;
+        }
+
+        @Override
+        public String get() {
+            return this.templateName + this.numberSequence.incrementAndGet() + ".csv";
+        }
+    }
+
+    private static class LinesByPath {
+        @Getter
+        private Map<Path, Queue<String[]>> storage = new ConcurrentHashMap<>();
+
+        private Queue<Queue<String[]>> emptyLinesPool = new ConcurrentLinkedQueue<>();
+
+        private Queue<String[]> getFromPool() {
+            Queue<String[]> entry = emptyLinesPool.poll();
+            if (entry == null) {
+                entry = new ConcurrentLinkedQueue<>();
+                if (includeHeaders)
+                    entry.offer(new String[]{"product ID", "Name", "Condition", "State", "Price"});
+            }
+
+            return entry;
+        }
+
+        private void addToPool(Queue<String[]> entry) {
+            emptyLinesPool.offer(entry);
+        }
+
+        void addLine(Path path, String[] line) {
+            Queue<String[]> newEntry = getFromPool();
+
+            Queue<String[]> entry = storage.putIfAbsent(path, newEntry);
+            boolean isNew = entry == null;
+            if (isNew)
+                entry = newEntry;
+            else
+                addToPool(newEntry);
+
+            entry.offer(line);
+        }
+    }
+
+    private final static FileNameGenerator fileNameGenerator = new FileNameGenerator(System.getProperty("user.home") + "\\generated");
+    private final static CsvWriter csvWriter = new CsvWriter();
+
+    private static final int limitById = 20;
+    private static final int limitTotal = 1000;
+    private static final int productsToGenerateLimit = 1000000;
+    private static final int filesToCreate = 1000;
+
+    private static final boolean includeHeaders = false;
+    private static final char delimiter = ',';
+
+    private static final int expectedProductsMaxPriceInCents = 99999;
+    private static Collection<Product> expectedProducts;
+
+    private static String[] csvFiles;
+    private static Path[] csvPaths;
+    private static Path[] sortedPaths;
+    private static Path[] binaryPaths;
+
+    private static void calcExpectedResult() {
+        RandomProductGenerator expectedProductsGenerator = new RandomProductGenerator(1, RandomProductGenerator.minPriceInCentsDefault, expectedProductsMaxPriceInCents);
+
+        Map<Integer, NavigableSet<Product>> groupedByID = Stream.generate(expectedProductsGenerator).parallel().limit(10 * limitTotal * limitById).
+                collect(Collectors.groupingByConcurrent(Product::getId, Collectors.toCollection(ConcurrentSkipListSet::new)));
+
+        var expectedBeforeShrink = groupedByID.entrySet().parallelStream().map(e -> {
+                    NavigableSet<Product> products = e.getValue();
+
+                    int size = products.size();
+                    for (int i = size; i > limitById; i--)
+                        products.pollLast();
+
+                    return products;
+                }
+        ).flatMap(Collection::stream).collect(Collectors.toCollection(ConcurrentSkipListSet::new));
+
+        expectedProducts = expectedBeforeShrink.stream().limit(limitTotal).collect(Collectors.toCollection(ConcurrentSkipListSet::new));
+    }
+
+    private static void createCsvFiles(Stream<Product> generatedProducts, Path[] pathsArray) {
+        int pathSize = pathsArray.length;
+        log.info("pathsArray was generated with size {}", pathSize);
+
+        Random random = new Random();
+        LinesByPath linesByPath = new LinesByPath();
+
+        generatedProducts.parallel().map(
+                product -> new String[]{Integer.toString(product.getId()), product.getName(), product.getCondition(), product.getState(), Price.toString(product.getPriceInCents())}
+        ).forEach(line -> {
+                    Path path = pathsArray[(random.nextInt() & Integer.MAX_VALUE) % pathSize];
+                    linesByPath.addLine(path, line);
+                }
+        );
+
+        log.info("Lines for files prepared in a parallel manner");
+
+        csvWriter.setFieldSeparator(delimiter);
+
+        var linesStorage = linesByPath.getStorage();
+        linesStorage.entrySet().parallelStream().forEach(e -> {
+            try {
+                csvWriter.write(e.getKey(), StandardCharsets.UTF_8, e.getValue());
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        });
+    }
+
+    private static Stream<Product> generateProducts() {
+        calcExpectedResult();
+
+        int expectedResultSize = expectedProducts.size();
+        log.info("Expected result is obtained. It contains {} elements", expectedResultSize);
+
+        int maxExpectedId = (expectedProducts.stream().mapToInt(Product::getId).max().orElse(0));
+        int maxExpectedPriceInCents = expectedProductsMaxPriceInCents + 1;
+
+        int minimalAdditionId = maxExpectedId + 1;
+        int minimalAdditionPriceInCents = maxExpectedPriceInCents + 1;
+
+        log.info("minimal addition id {}, minimal addition price in cents {}", minimalAdditionId, minimalAdditionPriceInCents);
+
+        RandomProductGenerator additionalGenerator = new RandomProductGenerator(minimalAdditionId, minimalAdditionPriceInCents);
+
+        int additionLimit = productsToGenerateLimit - expectedResultSize;
+
+        Stream<Product> additionStream = Stream.generate(additionalGenerator).limit(additionLimit);
+
+        return Stream.concat(additionStream, expectedProducts.stream());
+    }
+
+    @BeforeAll
+    static void createFiles() {
+        var generatedProducts = generateProducts();
+
+        csvFiles = Stream.generate(fileNameGenerator).limit(filesToCreate).toArray(String[]::new);
+
+        csvPaths = Stream.of(csvFiles).map(filename -> Paths.get(filename)).toArray(Path[]::new);
+
+        createCsvFiles(generatedProducts, csvPaths);
+
+        log.info("{} files was generated in {}", filesToCreate, Paths.get(fileNameGenerator.getTemplateName()).getParent().toAbsolutePath());
+    }
+
+    @Test
+    void testViaStream() throws IOException {
+        PriceList priceList = new PriceList(Paths.get("resultStream.csv"), includeHeaders, delimiter);
+        priceList.processViaStreamAPI(csvFiles);
+
+        Collection<Product> actual = priceList.getProducts();
+        priceList.output();
+
+        assertIterableEquals(expectedProducts, actual);
+    }
+
+    @Test
+    void testViaStreamCollector() throws IOException {
+        PriceList priceList = new PriceList(Paths.get("resultStreamCollector.csv"), includeHeaders, delimiter);
+        priceList.processViaStreamCollector(csvFiles);
+
+        Collection<Product> actual = priceList.getProducts();
+        priceList.output();
+
+        assertIterableEquals(expectedProducts, actual);
+    }
+
+    @Test
+    void testIncrementally() throws IOException, InterruptedException {
+        Path statePath = Files.createTempFile("priceListState", ".bin");
+        Path brokenPath = Files.createTempDirectory("priceListBroken");
+        try {
+            PriceList priceList = new PriceList(Paths.get("resultIncrementally.csv"), includeHeaders, delimiter);
+            priceList.processIncrementally(Arrays.copyOf(csvFiles, csvFiles.length / 2), statePath);
+            priceList.processIncrementally(csvFiles, statePath);
+            assertIterableEquals(expectedProducts, priceList.getProducts());
+
+            // Nothing new, the whole result comes from the state
+            priceList.processIncrementally(csvFiles, statePath);
+
+            Collection<Product> actual = priceList.getProducts();
+            priceList.output();
+
+            assertIterableEquals(expectedProducts, actual);
+
+            // File which breaks off fails the run, the state keeps only the files read to their end
+            byte[] state = Files.readAllBytes(statePath);
+            String[] withBroken = Arrays.copyOf(csvFiles, csvFiles.length + 1);
+            withBroken[csvFiles.length] = brokenPath.toString();
+            assertThrows(IOException.class, () -> priceList.processIncrementally(withBroken, statePath));
+            assertArrayEquals(state, Files.readAllBytes(statePath));
+        }
+        finally {
+            Files.deleteIfExists(statePath);
+            Files.deleteIfExists(brokenPath);
+        }
+    }
+
+    @Test
+    void testViaCache() throws IOException {
+        Path cacheDirectory = Files.createTempDirectory("priceListCache");
+        try {
+            PriceList priceList = new PriceList(Paths.get("resultCache.csv"), includeHeaders, delimiter);
+            priceList.processViaCache(csvFiles, cacheDirectory);
+            assertIterableEquals(expectedProducts, priceList.getProducts());
+
+            // Corrupt entry is rebuilt, the rest come from the cache
+            try (Stream<Path> entries = Files.list(cacheDirectory)) {
+                Path entry = entries.findAny().orElseThrow();
+                Files.write(entry, Arrays.copyOf(Files.readAllBytes(entry), 10));
+            }
+            priceList.processViaCache(csvFiles, cacheDirectory);
+
+            Collection<Product> actual = priceList.getProducts();
+            priceList.output();
+
+            assertIterableEquals(expectedProducts, actual);
+
+            // File which breaks off fails the run, a part of it is never cached
+            long entriesCount;
+            try (Stream<Path> entries = Files.list(cacheDirectory)) {
+                entriesCount = entries.count();
+            }
+            assertThrows(UncheckedIOException.class, () -> priceList.processViaCache(new String[]{cacheDirectory.toString()}, cacheDirectory));
+            try (Stream<Path> entries = Files.list(cacheDirectory)) {
+                assertEquals(entriesCount, entries.count());
+            }
+        }
+        finally {
+            try (Stream<Path> entries = Files.list(cacheDirectory)) {
+                for (Path entry : (Iterable<Path>) entries::iterator)
+                    Files.deleteIfExists(entry);
+            }
+            Files.deleteIfExists(cacheDirectory);
+        }
+    }
+
+    @Test
+    void testWatchingDirectory() throws IOException, InterruptedException {
+        Path directory = Files.createTempDirectory("priceListWatch");
+        Path output = directory.resolve("result.csv");
+        try (DirectoryWatcher directoryWatcher = new DirectoryWatcher(List.of(directory), output, includeHeaders, delimiter, 200)) {
+            // First half is already there, the second one lands while watching
+            for (int i = 0; i < csvPaths.length / 2; i++)
+                Files.copy(csvPaths[i], directory.resolve("products" + i + ".csv"));
+
+            Thread watching = new Thread(directoryWatcher);
+            watching.start();
+
+            for (int i = csvPaths.length / 2; i < csvPaths.length; i++)
+                Files.copy(csvPaths[i], directory.resolve("products" + i + ".csv"));
+
+            long deadline = System.currentTimeMillis() + 60000;
+            while (!new ArrayList<>(expectedProducts).equals(new ArrayList<>(directoryWatcher.getProducts())) && System.currentTimeMillis() < deadline)
+                Thread.sleep(100);
+            while (Files.notExists(output) && System.currentTimeMillis() < deadline)
+                Thread.sleep(100);
+
+            directoryWatcher.close();
+            watching.join();
+
+            assertIterableEquals(expectedProducts, directoryWatcher.getProducts());
+            assertEquals(limitTotal, Files.readAllLines(output).size());
+        }
+        finally {
+            try (Stream<Path> files = Files.list(directory)) {
+                for (Path file : (Iterable<Path>) files::iterator)
+                    Files.deleteIfExists(file);
+            }
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    @Test
+    void testServingSnapshots() throws IOException, InterruptedException {
+        try (SnapshotServer snapshotServer = new SnapshotServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 2, includeHeaders, delimiter)) {
+            HttpClient httpClient = HttpClient.newHttpClient();
+            HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + snapshotServer.getPort() + "/products")).build();
+
+            // Snapshots are queried all the time while products are being ingested
+            AtomicInteger responses = new AtomicInteger();
+            AtomicBoolean ingesting = new AtomicBoolean(true);
+            Thread querying = new Thread(() -> {
+                while (ingesting.get()) {
+                    try {
+                        if (httpClient.send(request, HttpResponse.BodyHandlers.ofString()).statusCode() == 200)
+                            responses.incrementAndGet();
+                    } catch (IOException | InterruptedException e) {
+                        return;
+                    }
+                }
+            });
+
+            PriceList priceList = new PriceList(Paths.get("resultServed.csv"), includeHeaders, delimiter);
+            priceList.setSnapshotServer(snapshotServer);
+
+            querying.start();
+            priceList.processViaProducerConsumer(csvFiles, false);
+            ingesting.set(false);
+            querying.join();
+
+            HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+            String expected = expectedProducts.stream()
+                    .map(product -> String.join(String.valueOf(delimiter), Integer.toString(product.getId()), product.getName(), product.getCondition(), product.getState(), Price.toString(product.getPriceInCents())))
+                    .collect(Collectors.joining("\n", "", "\n"));
+
+            assertEquals(expected, response.body().replace("\r\n", "\n"));
+            assertTrue(responses.get() > 0);
+
+            HttpRequest conditional = HttpRequest.newBuilder(request.uri()).header("If-None-Match", response.headers().firstValue("ETag").orElseThrow()).build();
+            assertEquals(304, httpClient.send(conditional, HttpResponse.BodyHandlers.discarding()).statusCode());
+        }
+    }
+
+    @Test
+    void testViaWorkers() throws IOException, InterruptedException {
+        PriceList priceList = new PriceList(Paths.get("resultWorkers.csv"), includeHeaders, delimiter);
+        priceList.processViaWorkers(csvFiles, 2, null);
+
+        Collection<Product> actual = priceList.getProducts();
+        priceList.output();
+
+        assertIterableEquals(expectedProducts, actual);
+    }
+
+    @Test
+    void testViaUntrustedWorkers() throws IOException, InterruptedException {
+        // Peer without the token and peer which never answers, parts of both are reduced by the coordinator itself
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        try (ShardCoordinator shardCoordinator = new ShardCoordinator(new InetSocketAddress(loopback, 0), includeHeaders, delimiter, 10000, 1000, "token");
+             Socket silent = new Socket(loopback, shardCoordinator.getPort())) {
+            Thread forged = new Thread(() -> {
+                try {
+                    new ShardWorker(new InetSocketAddress(loopback, shardCoordinator.getPort()), "forged").work();
+                }
+                catch (IOException e) {
+                    // Dropped by the coordinator
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            forged.start();
+
+            assertIterableEquals(expectedProducts, shardCoordinator.process(csvFiles, 2));
+            forged.join();
+        }
+    }
+
+    @Test
+    void testJobsSharingScheduler() throws IOException, InterruptedException {
+        int partsCount = 8;
+
+        // Jobs of every part and of all files at once, each with a priority of its own
+        List<Future<Collection<Product>>> parts = new ArrayList<>(partsCount);
+        Future<Collection<Product>> whole;
+        try (JobScheduler jobScheduler = new JobScheduler(2)) {
+            whole = jobScheduler.submit(csvFiles, includeHeaders, delimiter);
+            for (int part = 0; part < partsCount; part++) {
+                String[] partFiles = Arrays.copyOfRange(csvFiles, part * csvFiles.length / partsCount, (part + 1) * csvFiles.length / partsCount);
+                parts.add(jobScheduler.submit(partFiles, includeHeaders, delimiter, 1 + part));
+            }
+
+            PriceList priceList = new PriceList(Paths.get("resultScheduler.csv"), includeHeaders, delimiter);
+            priceList.processViaScheduler(csvFiles, jobScheduler, JobScheduler.defaultPriority);
+            assertIterableEquals(expectedProducts, priceList.getProducts());
+
+            assertIterableEquals(expectedProducts, whole.get());
+
+            // Results of parts never mix, so together they are the result of all files
+            List<Collection<Product>> partResults = new ArrayList<>(partsCount);
+            for (Future<Collection<Product>> part : parts)
+                partResults.add(part.get());
+            assertIterableEquals(expectedProducts, PriceList.merge(partResults));
+        }
+        catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    @Test
+    void testJobsOfDaemon() throws IOException, InterruptedException {
+        Path portPath = Files.createTempFile("priceListDaemon", ".port");
+        Path expectedPath = Paths.get("resultExpectedOfDaemon.csv");
+        Path limitedPath = Paths.get("resultLimitedOfDaemon.csv");
+        Path failedPath = Paths.get("resultFailedOfDaemon.csv");
+        Path forgedPath = Files.createTempFile("priceListForged", ".port");
+
+        JobDaemon jobDaemon = new JobDaemon(portPath);
+        Thread daemonThread = new Thread(jobDaemon::serve);
+        daemonThread.start();
+        try {
+            JobClient jobClient = new JobClient(portPath);
+
+            // Every job is seen queued and running before its output comes
+            List<JobDaemon.Status> statuses = new ArrayList<>();
+            Path output = jobClient.submit(new JobDaemon.Job(csvFiles, Paths.get("resultDaemon.csv")), (status, message) -> statuses.add(status));
+            assertEquals(List.of(JobDaemon.Status.QUEUED, JobDaemon.Status.RUNNING, JobDaemon.Status.DONE), statuses);
+
+            new ResultOutputCsv(expectedPath, includeHeaders, delimiter).output(expectedProducts);
+            assertEquals(Files.readAllLines(expectedPath), Files.readAllLines(output));
+
+            // Warmed daemon keeps taking jobs, other limits included
+            int limitTotal = 100;
+            int limitById = 5;
+            Path limited = jobClient.submit(new JobDaemon.Job(csvFiles, limitedPath, includeHeaders, delimiter, limitTotal, limitById));
+            PriceList priceList = new PriceList(Paths.get("resultLimited.csv"), includeHeaders, delimiter);
+            priceList.processWithLimits(csvFiles, limitTotal, limitById);
+            assertEquals(limitTotal, Files.readAllLines(limited).size());
+            assertEquals(priceList.getProducts().stream().map(Product::getId).collect(Collectors.toList()),
+                    Files.readAllLines(limited).stream().map(line -> Integer.parseInt(line.split(String.valueOf(delimiter))[0])).collect(Collectors.toList()));
+
+            assertThrows(IOException.class, () -> jobClient.submit(new JobDaemon.Job(csvFiles, failedPath, includeHeaders, delimiter, 0, 0)));
+            assertTrue(Files.exists(jobClient.submit(new JobDaemon.Job(Arrays.copyOf(csvFiles, 10), failedPath))));
+
+            // Only the owner reads the token, a client of the right port without it is dropped
+            if (Files.getFileStore(portPath).supportsFileAttributeView("posix"))
+                assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(portPath)));
+            Files.writeString(forgedPath, jobDaemon.getPort() + "\nforged\n");
+            assertThrows(IOException.class, () -> new JobClient(forgedPath).submit(new JobDaemon.Job(csvFiles, failedPath)));
+
+            ByteArrayOutputStream malformed = new ByteArrayOutputStream();
+            DataOutputStream malformedJob = new DataOutputStream(malformed);
+            malformedJob.writeUTF(failedPath.toString());
+            malformedJob.writeBoolean(includeHeaders);
+            malformedJob.writeChar(delimiter);
+            malformedJob.writeInt(limitTotal);
+            malformedJob.writeInt(limitById);
+            malformedJob.writeInt(JobScheduler.defaultPriority);
+            malformedJob.writeInt(-1);
+            assertThrows(IllegalArgumentException.class, () -> JobDaemon.Job.read(new DataInputStream(new ByteArrayInputStream(malformed.toByteArray()))));
+
+            // Rows are split by bytes, so a delimiter beyond ASCII is refused instead of being cut to another byte
+            assertThrows(IllegalArgumentException.class, () -> new JobDaemon.Job(csvFiles, failedPath, includeHeaders, '\u00A7', 0, 0));
+            assertThrows(IllegalArgumentException.class, () -> new PriceList(failedPath, includeHeaders, '\u0161'));
+        }
+        finally {
+            jobDaemon.close();
+            daemonThread.join();
+
+            Files.deleteIfExists(forgedPath);
+
+            Files.deleteIfExists(expectedPath);
+            Files.deleteIfExists(limitedPath);
+            Files.deleteIfExists(failedPath);
+        }
+
+        assertTrue(Files.notExists(portPath));
+    }
+
+    @Test
+    void testExportingCatalogue() throws IOException, InterruptedException {
+        Path cataloguePath = Paths.get("catalogue.csv");
+
+        // Budget is small enough for runs to be merged in several passes
+        PriceList priceList = new PriceList(cataloguePath, includeHeaders, delimiter);
+        long exported = priceList.exportCatalogue(csvFiles, 2 << 20);
+
+        Map<Integer, Long> expectedById = Stream.of(csvPaths).flatMap(path -> {
+            try {
+                return Files.readAllLines(path).stream();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }).map(line -> new ProductFromStringArray(line.split(String.valueOf(delimiter)))).distinct()
+                .collect(Collectors.groupingBy(Product::getId, Collectors.counting()));
+        long expectedCount = expectedById.values().stream().mapToLong(count -> Math.min(count, limitById)).sum();
+
+        List<Product> catalogue;
+        try (Stream<String> lines = Files.lines(cataloguePath)) {
+            catalogue = lines.map(line -> (Product) new ProductFromStringArray(line.split(String.valueOf(delimiter)))).collect(Collectors.toList());
+        }
+
+        assertEquals(expectedCount, exported);
+        assertEquals(expectedCount, catalogue.size());
+        assertIterableEquals(expectedProducts, catalogue.subList(0, limitTotal));
+        for (int i = 1; i < catalogue.size(); i++)
+            assertTrue(catalogue.get(i - 1).compareTo(catalogue.get(i)) < 0);
+    }
+
+    @Test
+    void testRankingInSingleScan() throws IOException, InterruptedException {
+        List<RankingSpec> specs = RankingSpec.parseAll("resultGlobal:none:1000:20,resultByState:state:1000:20,resultByCondition:condition:100:5");
+
+        PriceList priceList = new PriceList(Paths.get("result.csv"), includeHeaders, delimiter);
+        Map<String, List<Product>> rankings = priceList.rank(csvFiles, specs);
+
+        // Per-id limit applied to a prefix by price of the expected result gives a prefix of the stricter ranking
+        Map<Integer, Integer> sameId = new HashMap<>();
+        List<Product> expectedByCondition = expectedProducts.stream()
+                .filter(product -> sameId.merge(product.getId(), 1, Integer::sum) <= 5)
+                .limit(100)
+                .collect(Collectors.toList());
+
+        try {
+            assertEquals(List.of("resultGlobal", "resultByState", "resultByCondition"), new ArrayList<>(rankings.keySet()));
+            assertIterableEquals(expectedProducts, rankings.get("resultGlobal"));
+            assertIterableEquals(expectedProducts, rankings.get("resultByState"));
+            assertEquals(100, expectedByCondition.size());
+            assertIterableEquals(expectedByCondition, rankings.get("resultByCondition"));
+
+            List<Product> outputted;
+            try (Stream<String> lines = Files.lines(Paths.get("resultByCondition.csv"))) {
+                outputted = lines.map(line -> (Product) new ProductFromStringArray(line.split(String.valueOf(delimiter)))).collect(Collectors.toList());
+            }
+            assertIterableEquals(expectedByCondition, outputted);
+        }
+        finally {
+            for (RankingSpec spec : specs)
+                Files.deleteIfExists(Paths.get(spec.getName() + ".csv"));
+        }
+    }
+
+    @Test
+    void testWideFilesBySchema() throws IOException, InterruptedException {
+        int wideFilesCount = 100;
+        int columnsCount = 35;
+        int[] positions = {31, 12, 20, 27, 3};
+        String[] names = {"product ID", "Name", "Condition", "State", "Price"};
+
+        // Extra columns are quoted now and then, with delimiters and line breaks inside, names of the header included
+        String[] header = new String[columnsCount];
+        for (int column = 0; column < columnsCount; column++)
+            header[column] = column % 7 == 1 ? "extra" + delimiter + column : "extra " + column;
+        for (int field = 0; field < positions.length; field++)
+            header[positions[field]] = names[field];
+
+        String[] narrowFiles = Arrays.copyOf(csvFiles, wideFilesCount);
+        Path[] withHeader = new Path[wideFilesCount];
+        Path[] withoutHeader = new Path[wideFilesCount];
+        Path[] mapped = new Path[wideFilesCount];
+        try {
+            for (int i = 0; i < wideFilesCount; i++) {
+                // Mapped segments are split at line breaks, so their quoted columns have none
+                List<String[]> rows = new ArrayList<>();
+                List<String[]> mappedRows = new ArrayList<>();
+                for (String line : Files.readAllLines(csvPaths[i])) {
+                    String[] fields = line.split(String.valueOf(delimiter));
+                    String[] row = new String[columnsCount];
+                    String[] mappedRow = new String[columnsCount];
+                    for (int column = 0; column < columnsCount; column++) {
+                        row[column] = column % 7 == 0 ? "a" + delimiter + "b\nc \"" + column + "\"" : "v" + column;
+                        mappedRow[column] = column % 7 == 0 ? "a" + delimiter + "b \"" + column + "\"" : "v" + column;
+                    }
+                    for (int field = 0; field < positions.length; field++) {
+                        row[positions[field]] = fields[field];
+                        mappedRow[positions[field]] = fields[field];
+                    }
+                    rows.add(row);
+                    mappedRows.add(mappedRow);
+                }
+
+                withoutHeader[i] = Paths.get(csvFiles[i] + ".wide");
+                csvWriter.write(withoutHeader[i], StandardCharsets.UTF_8, rows);
+
+                rows.add(0, header);
+                withHeader[i] = Paths.get(csvFiles[i] + ".header");
+                csvWriter.write(withHeader[i], StandardCharsets.UTF_8, rows);
+
+                mappedRows.add(0, header);
+                mapped[i] = Paths.get(csvFiles[i] + ".mapped");
+                csvWriter.write(mapped[i], StandardCharsets.UTF_8, mappedRows);
+            }
+
+            PriceList narrow = new PriceList(Paths.get("resultNarrow.csv"), includeHeaders, delimiter);
+            narrow.processViaProducerConsumer(narrowFiles, false);
+
+            PriceList byNames = new PriceList(Paths.get("resultByNames.csv"), true, delimiter);
+            byNames.setCsvSchema(CsvSchema.parse(String.join(",", names)));
+            byNames.processViaProducerConsumer(Stream.of(withHeader).map(Path::toString).toArray(String[]::new), false);
+
+            PriceList mappedByNames = new PriceList(Paths.get("resultMappedByNames.csv"), true, delimiter);
+            mappedByNames.setCsvSchema(CsvSchema.parse(String.join(",", names)));
+            mappedByNames.processViaProducerConsumer(Stream.of(mapped).map(Path::toString).toArray(String[]::new), false, TasksBroker.Option.MAPPED_FILES);
+
+            PriceList byPositions = new PriceList(Paths.get("resultByPositions.csv"), false, delimiter);
+            byPositions.setCsvSchema(CsvSchema.byPositions(positions[0], positions[1], positions[2], positions[3], positions[4]));
+            byPositions.processViaProducerConsumer(Stream.of(withoutHeader).map(Path::toString).toArray(String[]::new), false);
+
+            assertEquals(limitTotal, narrow.getSize());
+            assertIterableEquals(narrow.getProducts(), byNames.getProducts());
+            assertIterableEquals(narrow.getProducts(), mappedByNames.getProducts());
+            assertIterableEquals(narrow.getProducts(), byPositions.getProducts());
+        }
+        finally {
+            for (int i = 0; i < wideFilesCount; i++) {
+                if (withHeader[i] != null)
+                    Files.deleteIfExists(withHeader[i]);
+                if (withoutHeader[i] != null)
+                    Files.deleteIfExists(withoutHeader[i]);
+                if (mapped[i] != null)
+                    Files.deleteIfExists(mapped[i]);
+            }
+        }
+    }
+
+    @Test
+    void testMalformedRowsAreRejected() throws IOException, InterruptedException {
+        int dirtyFilesCount = 100;
+        int malformedEvery = 50;
+
+        // Cheap rows which would get into the result if they were read at all
+        String[] malformedRows = {"x1" + delimiter + "a" + delimiter + "b" + delimiter + "c" + delimiter + "0.01",
+                "1" + delimiter + "a" + delimiter + "b" + delimiter + "c" + delimiter + "0.0.1",
+                "1" + delimiter + "a" + delimiter + "b"};
+        RejectedRows.Reason[] reasons = {RejectedRows.Reason.BAD_ID, RejectedRows.Reason.BAD_PRICE, RejectedRows.Reason.MISSING_COLUMNS};
+
+        String[] cleanFiles = Arrays.copyOf(csvFiles, dirtyFilesCount);
+        String[] dirtyFiles = new String[dirtyFilesCount];
+        Path rejectedPath = Paths.get("rejectedRows.csv");
+        long[] malformedByReason = new long[reasons.length];
+        long malformedInFirst = 0;
+        try {
+            for (int i = 0; i < dirtyFilesCount; i++) {
+                List<String> lines = new ArrayList<>();
+                for (String line : Files.readAllLines(csvPaths[i])) {
+                    if (lines.size() % malformedEvery == 0) {
+                        int reason = (lines.size() / malformedEvery) % reasons.length;
+                        lines.add(malformedRows[reason]);
+                        malformedByReason[reason]++;
+                    }
+                    lines.add(line);
+                }
+
+                if (i == 0)
+                    malformedInFirst = Arrays.stream(malformedByReason).sum();
+                dirtyFiles[i] = csvFiles[i] + ".dirty";
+                Files.write(Paths.get(dirtyFiles[i]), lines);
+            }
+            long malformed = Arrays.stream(malformedByReason).sum();
+
+            PriceList clean = new PriceList(Paths.get("resultClean.csv"), includeHeaders, delimiter);
+            clean.processViaProducerConsumer(cleanFiles, false);
+
+            Map<String, Long> byReason = Metrics.get().getRowsMalformedByReason();
+            PriceList dirty = new PriceList(Paths.get("resultDirty.csv"), includeHeaders, delimiter);
+            dirty.setRejectedRowsPath(rejectedPath);
+            dirty.processViaProducerConsumer(dirtyFiles, false);
+
+            assertEquals(limitTotal, clean.getSize());
+            assertIterableEquals(clean.getProducts(), dirty.getProducts());
+            for (int reason = 0; reason < reasons.length; reason++) {
+                String name = reasons[reason].name();
+                assertEquals(byReason.getOrDefault(name, 0L) + malformedByReason[reason], Metrics.get().getRowsMalformedByReason().get(name));
+            }
+            assertEquals(malformedInFirst, Metrics.get().getRowsMalformedByFile().get(dirtyFiles[0]));
+
+            // Every rejected row is kept as it was next to its file, number and reason
+            List<String> rejected = Files.readAllLines(rejectedPath);
+            assertEquals(malformed, rejected.size());
+            assertTrue(rejected.contains("\"" + dirtyFiles[0] + "\",1," + reasons[0] + ",\"" + malformedRows[0] + "\""));
+            for (int reason = 0; reason < reasons.length; reason++) {
+                String suffix = "," + reasons[reason] + ",\"" + malformedRows[reason] + "\"";
+                assertEquals(malformedByReason[reason], rejected.stream().filter(line -> line.endsWith(suffix)).count());
+            }
+
+            PriceList dirtyMapped = new PriceList(Paths.get("resultDirtyMapped.csv"), includeHeaders, delimiter);
+            dirtyMapped.processViaProducerConsumer(dirtyFiles, false, TasksBroker.Option.MAPPED_FILES);
+            assertIterableEquals(clean.getProducts(), dirtyMapped.getProducts());
+
+            PriceList dirtyStream = new PriceList(Paths.get("resultDirtyStream.csv"), includeHeaders, delimiter);
+            dirtyStream.processViaStreamAPI(dirtyFiles);
+            assertIterableEquals(clean.getProducts(), dirtyStream.getProducts());
+        }
+        finally {
+            for (String dirtyFile : dirtyFiles) {
+                if (dirtyFile != null)
+                    Files.deleteIfExists(Paths.get(dirtyFile));
+            }
+            Files.deleteIfExists(rejectedPath);
+        }
+    }
+
+    private void producerConsumer(boolean loadBalancer, TasksBroker.Option... options) throws IOException, InterruptedException {
+        PriceList priceList = new PriceList(Paths.get("resultProducerConsumer.csv"), includeHeaders, delimiter);
+        priceList.processViaProducerConsumer(csvFiles, loadBalancer, options);
+
+        Collection<Product> actual = priceList.getProducts();
+        priceList.output();
+
+        assertIterableEquals(expectedProducts, actual);
+    }
+
+    @Test
+    void testViaProducerConsumer() throws IOException, InterruptedException {
+        this.producerConsumer(false);
+    }
+
+    @Test
+    void testViaProducerConsumerLoadBalancer() throws IOException, InterruptedException {
+        this.producerConsumer(true);
+    }
+
+    @Test
+    void testViaProducerConsumerSharded() throws IOException, InterruptedException {
+        this.producerConsumer(false, TasksBroker.Option.SHARDED_STORAGE);
+    }
+
+    @Test
+    void testViaProducerConsumerMappedFiles() throws IOException, InterruptedException {
+        this.producerConsumer(false, TasksBroker.Option.MAPPED_FILES);
+    }
+
+    @Test
+    void testViaProducerConsumerRingHandoff() throws IOException, InterruptedException {
+        this.producerConsumer(false, TasksBroker.Option.RING_HANDOFF);
+    }
+
+    @Test
+    void testViaProducerConsumerShardedRingHandoff() throws IOException, InterruptedException {
+        this.producerConsumer(false, TasksBroker.Option.SHARDED_STORAGE, TasksBroker.Option.RING_HANDOFF);
+    }
+
+    @Test
+    void testViaProducerConsumerMetricsReporter() throws IOException, InterruptedException {
+        long filesRead = Metrics.get().getFilesRead();
+        this.producerConsumer(false, TasksBroker.Option.METRICS_REPORTER);
+
+        assertEquals(filesRead + csvFiles.length, Metrics.get().getFilesRead());
+    }
+
+    private static String[] sortedCsvFiles() throws IOException {
+        FileNameGenerator sortedNameGenerator = new FileNameGenerator(fileNameGenerator.getTemplateName().replace("generated", "sorted"));
+
+        sortedPaths = new Path[csvPaths.length];
+        for (int i = 0; i < csvPaths.length; i++) {
+            List<String> lines = Files.readAllLines(csvPaths[i]);
+            lines.sort(Comparator.comparingInt(line -> Price.parse(line.split(String.valueOf(delimiter))[4])));
+
+            sortedPaths[i] = Paths.get(sortedNameGenerator.get());
+            Files.write(sortedPaths[i], lines);
+        }
+
+        return Stream.of(sortedPaths).map(Path::toString).toArray(String[]::new);
+    }
+
+    @Test
+    void testViaProducerConsumerBinaryFiles() throws IOException, InterruptedException {
+        FileNameGenerator binaryNameGenerator = new FileNameGenerator(fileNameGenerator.getTemplateName().replace("generated", "binary"));
+
+        binaryPaths = new Path[csvPaths.length];
+        for (int i = 0; i < csvPaths.length; i++) {
+            List<Product> products = Files.readAllLines(csvPaths[i]).stream()
+                    .map(line -> (Product) new ProductFromStringArray(line.split(String.valueOf(delimiter))))
+                    .sorted()
+                    .collect(Collectors.toList());
+
+            binaryPaths[i] = Paths.get(binaryNameGenerator.get().replace(".csv", ResultOutputBinary.extension));
+            new ResultOutputBinary(binaryPaths[i]).output(products);
+        }
+
+        PriceList priceList = new PriceList(Paths.get("resultBinaryFiles.csv"), includeHeaders, delimiter);
+        priceList.processViaProducerConsumer(Stream.of(binaryPaths).map(Path::toString).toArray(String[]::new), false, TasksBroker.Option.BINARY_FILES);
+
+        Collection<Product> actual = priceList.getProducts();
+        priceList.output();
+
+        assertIterableEquals(expectedProducts, actual);
+    }
+
+    @Test
+    void testBrokenBinaryBlocks() throws IOException {
+        Path binaryPath = Files.createTempFile("priceListBroken", ResultOutputBinary.extension);
+        try {
+            // Offset in the first block and what's put there: a negative body, more rows than the body holds,
+            // a body beyond the file and a varint which never ends, every one ends the file instead of the reader
+            int blockStart = ResultOutputBinary.fileHeaderBytes;
+            int bodyStart = blockStart + ResultOutputBinary.blockHeaderBytes;
+            Object[][] brokenFields = {
+                    {blockStart + 12, new byte[]{-1, -1, -1, -1}},
+                    {blockStart, new byte[]{0x7F, -1, -1, -1}},
+                    {blockStart + 12, new byte[]{0x7F, -1, -1, -1}},
+                    {bodyStart, new byte[]{-1, -1, -1, -1, -1, -1}}
+            };
+
+            for (Object[] brokenField : brokenFields) {
+                new ResultOutputBinary(binaryPath).output(expectedProducts);
+                try (FileChannel channel = FileChannel.open(binaryPath, StandardOpenOption.WRITE)) {
+                    channel.write(ByteBuffer.wrap((byte[]) brokenField[1]), (int) brokenField[0]);
+                }
+
+                FileHandle fileHandle = new FileHandleBinary(1000, new PriceCutoff(), new ProductDictionary());
+                fileHandle.setFileName(binaryPath.toString());
+
+                assertEquals(Optional.of(List.of()), fileHandle.getProducts());
+                assertFalse(fileHandle.isActive());
+            }
+        }
+        finally {
+            Files.deleteIfExists(binaryPath);
+        }
+    }
+
+    @Test
+    void testViaSortedMerge() throws IOException, InterruptedException {
+        PriceList priceList = new PriceList(Paths.get("resultSortedMerge.csv"), includeHeaders, delimiter);
+        priceList.processViaSortedMerge(sortedCsvFiles());
+
+        Collection<Product> actual = priceList.getProducts();
+        priceList.output();
+
+        assertIterableEquals(expectedProducts, actual);
+    }
+
+    @Test
+    void testViaSortedMergeOfKnownSortedFiles() throws IOException, InterruptedException {
+        PriceList priceList = new PriceList(Paths.get("resultSortedMerge.csv"), includeHeaders, delimiter);
+        priceList.processViaSortedMerge(sortedCsvFiles(), true);
+
+        assertIterableEquals(expectedProducts, priceList.getProducts());
+    }
+
+    @Test
+    void testViaSortedMergeOfUnsortedTail() throws IOException, InterruptedException {
+        String[] files = sortedCsvFiles();
+
+        // Cheapest row of all at the very end of a file, long after no more rows get into the result
+        String[] fields = Files.readAllLines(sortedPaths[0]).get(0).split(String.valueOf(delimiter));
+        fields[4] = Price.toString(1);
+        Files.writeString(sortedPaths[0], String.join(String.valueOf(delimiter), fields) + System.lineSeparator(), StandardOpenOption.APPEND);
+
+        PriceList expected = new PriceList(Paths.get("resultSortedMerge.csv"), includeHeaders, delimiter);
+        expected.processViaProducerConsumer(files, false);
+
+        PriceList priceList = new PriceList(Paths.get("resultSortedMerge.csv"), includeHeaders, delimiter);
+        priceList.processViaSortedMerge(files);
+
+        assertIterableEquals(expected.getProducts(), priceList.getProducts());
+    }
+
+    @Test
+    void testViaSortedMergeOfUnsortedFiles() throws IOException, InterruptedException {
+        PriceList priceList = new PriceList(Paths.get("resultSortedMerge.csv"), includeHeaders, delimiter);
+        priceList.processViaSortedMerge(csvFiles);
+
+        Collection<Product> actual = priceList.getProducts();
+        priceList.output();
+
+        assertIterableEquals(expectedProducts, actual);
+    }
+
+    @Test
+    void testOutputCsv() throws IOException {
+        List<Product> products = new ArrayList<>(expectedProducts);
+        products.add(new Product(1, "name, with \"quotes\"", "line\nbreak", "ünïcødé \uD83D\uDE00", -1234));
+        products.add(new Product(2, "", "lone \uD800 surrogate", "ok", 5));
+
+        // Small buffer, so it's written out many times in the middle of rows
+        Path actualPath = Paths.get("resultOutputCsv.csv");
+        new ResultOutputCsv(actualPath, true, delimiter, 64).output(products);
+
+        CsvWriter csvWriter = new CsvWriter();
+        csvWriter.setFieldSeparator(delimiter);
+        StringWriter expected = new StringWriter();
+        csvWriter.write(expected, ResultOutputCsv.rowsOf(products, true));
+
+        try {
+            // Lone surrogate is replaced only when it's encoded
+            String expectedEncoded = new String(expected.toString().getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8);
+            assertEquals(expectedEncoded, new String(Files.readAllBytes(actualPath), StandardCharsets.UTF_8));
+        }
+        finally {
+            Files.deleteIfExists(actualPath);
+        }
+    }
+
+    @AfterAll
+    static void outputExpectedResult() throws IOException {
+        ResultOutput resultOutput = new ResultOutputCsv(Paths.get("expected.csv"), includeHeaders, delimiter);
+        resultOutput.output(expectedProducts);
+    }
+
+    @AfterAll
+    static void removeGeneratedFiles() throws IOException {
+        for (Path path : csvPaths)
+            Files.deleteIfExists(path);
+
+        if (sortedPaths != null) {
+            for (Path path : sortedPaths)
+                Files.deleteIfExists(path);
+        }
+
+        if (binaryPaths != null) {
+            for (Path path : binaryPaths)
+                Files.deleteIfExists(path);
+        }
+    }
+}